@@ -0,0 +1,167 @@
+package com.liemily.imagerecognition;
+
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TrainingSet that adds randomly altered variants of another TrainingSet's images each time it is iterated over,
+ * such as on each training iteration, see InputAugmenter.
+ *
+ * Each TrainingPair of the underlying set is joined by the configured number of new variants.
+ * As in a ShardedTrainingSet, they pass through a bounded shuffle buffer, so that the variants of a TrainingPair
+ * are spread among those of the TrainingPairs around it rather than filling a batch on their own.
+ * The variants are created on worker threads a little ahead of being read,
+ * so only those in the shuffle buffer and in progress are held in memory, and they are dropped once they have been read.
+ * The alterations and the shuffle are chosen on the reading thread, so a seeded Random gives the same TrainingPairs
+ * in the same order however the work is scheduled
+ * @author Emily Li
+ */
+public class AugmentedTrainingSet extends TrainingSet {
+    private final TrainingSet trainingSet;
+    private final InputAugmenter inputAugmenter;
+    private final int variants;
+    private final int window;
+    private final int shuffleBufferSize;
+    private final Random random;
+    private final ExecutorService executorService;
+
+    /**
+     * @param trainingSet TrainingSet whose images are augmented
+     * @param inputAugmenter Creates the variants
+     * @param variants Number of variants following each of the TrainingSet's TrainingPairs
+     * @param threads Number of worker threads creating the variants, which finish when they have been idle for a while
+     * @param shuffleBufferSize Number of TrainingPairs shuffled together while iterating, where 1 keeps each TrainingPair followed by its variants
+     * @param random Random used to choose how each variant is altered and to shuffle
+     */
+    public AugmentedTrainingSet(TrainingSet trainingSet, InputAugmenter inputAugmenter, int variants, int threads, int shuffleBufferSize, Random random) {
+        super(Collections.emptyList());
+        if (variants < 0 || threads < 1 || shuffleBufferSize < 1) {
+            throw new IllegalArgumentException("Invalid augmentation with " + variants + " variants on " + threads
+                    + " threads with a shuffle buffer of " + shuffleBufferSize);
+        }
+        this.trainingSet = trainingSet;
+        this.inputAugmenter = inputAugmenter;
+        this.variants = variants;
+        this.window = threads * 4;
+        this.shuffleBufferSize = shuffleBufferSize;
+        this.random = random;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "augmentation-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.executorService = threadPoolExecutor;
+    }
+
+    /**
+     * Augmented training sets cannot be added to, and the underlying TrainingSet should be added to instead
+     */
+    @Override
+    public void addTrainingPair(TrainingPair trainingPair) {
+        throw new UnsupportedOperationException("Augmented training sets are read-only");
+    }
+
+    /**
+     * @return Returns a read-only collection of the underlying TrainingPairs and their variants,
+     *          whose iterators each create new variants
+     */
+    @Override
+    public Collection<TrainingPair> getTrainingPairs() {
+        return new AbstractCollection<TrainingPair>() {
+            @Override
+            public Iterator<TrainingPair> iterator() {
+                return new AugmentingIterator(trainingSet.getTrainingPairs().iterator());
+            }
+
+            @Override
+            public int size() {
+                return trainingSet.getTrainingPairs().size() * (1 + variants);
+            }
+        };
+    }
+
+    public TrainingSet getTrainingSet() {
+        return trainingSet;
+    }
+
+    /**
+     * Reads the underlying TrainingPairs, keeping the variants of the next few in progress on the worker threads
+     * ahead of the shuffle buffer.
+     * The variants and the shuffle have a Random each, so that how far ahead the variants are started does not change either
+     */
+    private class AugmentingIterator implements Iterator<TrainingPair> {
+        private final Iterator<TrainingPair> trainingPairs;
+        private final Random variantRandom;
+        private final Random shuffleRandom;
+        private final Deque<Future<TrainingPair>> pending = new ArrayDeque<>();
+        private final List<Future<TrainingPair>> buffer = new ArrayList<>();
+        private TrainingPair current;
+        private int remainingVariants;
+
+        private AugmentingIterator(Iterator<TrainingPair> trainingPairs) {
+            this.trainingPairs = trainingPairs;
+            this.variantRandom = new Random(random.nextLong());
+            this.shuffleRandom = new Random(random.nextLong());
+        }
+
+        private void fill() {
+            while (true) {
+                while (pending.size() < window && (remainingVariants > 0 || trainingPairs.hasNext())) {
+                    pending.add(start());
+                }
+                if (buffer.size() >= shuffleBufferSize || pending.isEmpty()) {
+                    return;
+                }
+                buffer.add(pending.poll());
+            }
+        }
+
+        /**
+         * @return Returns the next TrainingPair in order, which is either an original or a variant being created
+         */
+        private Future<TrainingPair> start() {
+            if (remainingVariants == 0) {
+                current = trainingPairs.next();
+                remainingVariants = variants;
+                return CompletableFuture.completedFuture(current);
+            }
+            TrainingPair original = current;
+            long seed = variantRandom.nextLong();
+            remainingVariants--;
+            return executorService.submit(() -> new TrainingPair(original.getName(),
+                    inputAugmenter.augment(original.getInput(), new Random(seed)), original.getOutput()));
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return !buffer.isEmpty();
+        }
+
+        @Override
+        public TrainingPair next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int slot = shuffleRandom.nextInt(buffer.size());
+            Future<TrainingPair> trainingPair = buffer.get(slot);
+            buffer.set(slot, buffer.get(buffer.size() - 1));
+            buffer.remove(buffer.size() - 1);
+            try {
+                return trainingPair.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while augmenting training pairs", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to augment training pair", e.getCause());
+            }
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package com.liemily.imagerecognition;
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 
 /**
  * Simple image converter using java.awt.* to convert images to black and white
@@ -22,4 +22,50 @@ public class BWImageConverter extends ImageConverter {
     protected double getNodeValue(int rgb) {
         return rgb == WHITE ? 0 : 1;
     }
+
+    /**
+     * Reads the packed bits of black and white images directly from their raster, one bit per pixel,
+     * rather than converting every pixel to an RGB value. Other images are read as RGB values
+     */
+    @Override
+    protected void writeNodes(BufferedImage preProcessedImg, double[] nodes, int offset) {
+        if (!isPackedBlackAndWhite(preProcessedImg)) {
+            super.writeNodes(preProcessedImg, nodes, offset);
+            return;
+        }
+
+        int width = preProcessedImg.getWidth();
+        int height = preProcessedImg.getHeight();
+        WritableRaster raster = preProcessedImg.getRaster();
+        MultiPixelPackedSampleModel sampleModel = (MultiPixelPackedSampleModel) raster.getSampleModel();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int bitOffset = sampleModel.getDataBitOffset();
+        for (int y = 0; y < height; y++) {
+            int scanline = y * scanlineStride;
+            for (int x = 0; x < width; x++) {
+                int bit = bitOffset + x;
+                // Pixels are packed most significant bit first, and a set bit is the white entry of the palette
+                boolean white = (data[scanline + (bit >> 3)] & (0x80 >> (bit & 7))) != 0;
+                nodes[offset + x * height + y] = white ? 0 : 1;
+            }
+        }
+    }
+
+    /**
+     * @return Returns true if the image is stored one bit per pixel with a palette of black followed by white,
+     *          as created by preProcess
+     */
+    private boolean isPackedBlackAndWhite(BufferedImage img) {
+        if (img.getType() != BufferedImage.TYPE_BYTE_BINARY || !(img.getColorModel() instanceof IndexColorModel)) {
+            return false;
+        }
+        IndexColorModel colorModel = (IndexColorModel) img.getColorModel();
+        WritableRaster raster = img.getRaster();
+        return colorModel.getMapSize() == 2 && colorModel.getRGB(0) == BLACK && colorModel.getRGB(1) == WHITE
+                && raster.getSampleModel() instanceof MultiPixelPackedSampleModel
+                && ((MultiPixelPackedSampleModel) raster.getSampleModel()).getPixelBitStride() == 1
+                && raster.getDataBuffer() instanceof DataBufferByte
+                && raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+    }
 }
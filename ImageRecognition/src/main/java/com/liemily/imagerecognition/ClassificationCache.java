@@ -0,0 +1,216 @@
+package com.liemily.imagerecognition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of classifications keyed by a hash of what was classified, so that an image seen before is not passed through the network again.
+ *
+ * Images can be keyed by a hash of their encoded bytes, worked out while they are decoded,
+ * or by a hash of the input produced from them, which also recognises the same image encoded differently.
+ * The least recently used classifications are evicted beyond the maximum number of entries.
+ *
+ * Classifications only hold for the network that produced them, so the cache is invalidated when the network is replaced.
+ * A classification is only stored if no invalidation has happened since the generation it was started in,
+ * so that one finished on a replaced network is not stored.
+ * Hits and misses are counted separately for content keys and input keys,
+ * as an image missed by its content key is usually looked up again by its input key
+ * @author Emily Li
+ */
+public class ClassificationCache {
+    private static final byte CONTENT_KEY = 0;
+    private static final byte BINARY_INPUT_KEY = 1;
+    private static final byte INPUT_KEY = 2;
+
+    private final int maxEntries;
+    // Guarded by this, in order of least recent use
+    private final LinkedHashMap<Key, Enum> classifications;
+    private long generation;
+    private long contentHits;
+    private long contentMisses;
+    private long inputHits;
+    private long inputMisses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * @param maxEntries Largest number of classifications to keep
+     */
+    public ClassificationCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of cached classifications: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.classifications = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Wraps a stream of an image's encoded bytes so that its content key is worked out as it is read
+     * @param is Stream of an encoded image
+     * @return Returns a stream to read the image from, to pass to getContentKey afterwards
+     */
+    public static DigestInputStream digestContent(InputStream is) {
+        MessageDigest digest = createDigest();
+        digest.update(CONTENT_KEY);
+        return new DigestInputStream(is, digest);
+    }
+
+    /**
+     * Reads whatever remains of a stream returned by digestContent
+     * @param is Stream returned by digestContent
+     * @return Returns a key for the bytes of the whole stream
+     * @throws IOException
+     */
+    public static Key getContentKey(DigestInputStream is) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (is.read(buffer) != -1) {
+            // Only the digest of the remaining bytes is needed
+        }
+        return new Key(is.getMessageDigest().digest(), true);
+    }
+
+    /**
+     * @param input Input layer values produced from an image
+     * @return Returns a key for the input, taking one bit per node when every node is 0 or 1
+     */
+    public static Key getInputKey(double[] input) {
+        boolean binary = true;
+        for (double node : input) {
+            binary &= node == 0 || node == 1;
+        }
+
+        MessageDigest digest = createDigest();
+        if (binary) {
+            byte[] bits = new byte[(input.length + 7) / 8];
+            for (int n = 0; n < input.length; n++) {
+                if (input[n] == 1) {
+                    bits[n >> 3] |= 1 << (n & 7);
+                }
+            }
+            digest.update(BINARY_INPUT_KEY);
+            digest.update(bits);
+        } else {
+            ByteBuffer values = ByteBuffer.allocate(input.length * Double.BYTES);
+            values.asDoubleBuffer().put(input);
+            digest.update(INPUT_KEY);
+            digest.update(values);
+        }
+        // The input size distinguishes inputs whose bits are the same
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(0, input.length));
+        return new Key(digest.digest(), false);
+    }
+
+    /**
+     * @return Returns the current generation, to pass to put for a classification that is about to be started
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @param key Key of an image
+     * @return Returns the cached classification, or null if there is none
+     */
+    public synchronized Enum get(Key key) {
+        Enum classification = classifications.get(key);
+        if (key.content) {
+            if (classification == null) {
+                contentMisses++;
+            } else {
+                contentHits++;
+            }
+        } else {
+            if (classification == null) {
+                inputMisses++;
+            } else {
+                inputHits++;
+            }
+        }
+        return classification;
+    }
+
+    /**
+     * Stores a classification unless the cache has been invalidated since the given generation
+     * @param key Key of an image
+     * @param classification Classification of the image, which is not stored if null
+     * @param generation Generation returned by getGeneration before the classification was started
+     */
+    public synchronized void put(Key key, Enum classification, long generation) {
+        if (classification == null || generation != this.generation) {
+            return;
+        }
+        classifications.put(key, classification);
+        Iterator<Enum> leastRecentlyUsed = classifications.values().iterator();
+        while (classifications.size() > maxEntries) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every classification and starts a new generation, such as when the network is replaced
+     */
+    public synchronized void invalidate() {
+        classifications.clear();
+        generation++;
+        invalidations++;
+    }
+
+    /**
+     * @return Returns the number of classifications held, the number of hits and misses by content key and by input key,
+     *          and the number of evictions and invalidations since creation
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("entries", (long) classifications.size());
+        statistics.put("contentHits", contentHits);
+        statistics.put("contentMisses", contentMisses);
+        statistics.put("inputHits", inputHits);
+        statistics.put("inputMisses", inputMisses);
+        statistics.put("evictions", evictions);
+        statistics.put("invalidations", invalidations);
+        return statistics;
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Hash of an image's bytes or input
+     */
+    public static final class Key {
+        private final byte[] hash;
+        // Only used to count hits and misses, as the hash already differs between content and input keys
+        private final boolean content;
+
+        private Key(byte[] hash, boolean content) {
+            this.hash = hash;
+            this.content = content;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+        }
+
+        @Override
+        public int hashCode() {
+            // The hash is already evenly distributed
+            return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+        }
+    }
+}
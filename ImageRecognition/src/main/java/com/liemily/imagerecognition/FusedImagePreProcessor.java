@@ -0,0 +1,145 @@
+package com.liemily.imagerecognition;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Resizes, binarises and flattens an image into input node values in a single pass,
+ * without creating the resized and black and white images that the ImageNetworkAccessor otherwise goes through.
+ *
+ * The image is scaled to fit the network's square input the same way as the ImageNetworkAccessor's resize,
+ * keeping its proportions, and each pixel of the scaled image is 1 if darker than the threshold or 0 otherwise.
+ * Node values are written column by column, as by the ImageConverter, and the input is padded with 0 or truncated to fit
+ * @author Emily Li
+ */
+public class FusedImagePreProcessor {
+    /**
+     * How the pixels of the scaled image are sampled from the original image
+     */
+    public enum ResamplingMethod {
+        /**
+         * Takes the pixel nearest the centre of each scaled pixel, which is fastest
+         */
+        NEAREST,
+        /**
+         * Averages every pixel covered by each scaled pixel, which keeps thin features when shrinking large photos
+         */
+        AREA
+    }
+
+    private final ResamplingMethod resamplingMethod;
+    private final int threshold;
+
+    /**
+     * @param resamplingMethod How the scaled pixels are sampled
+     * @param threshold Brightness from 0 to 256 below which a pixel is treated as black
+     */
+    public FusedImagePreProcessor(ResamplingMethod resamplingMethod, int threshold) {
+        if (threshold < 0 || threshold > 256) {
+            throw new IllegalArgumentException("Threshold must be between 0 and 256 but was " + threshold);
+        }
+        this.resamplingMethod = resamplingMethod;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Writes the input node values of an image scaled to fit a square input layer
+     * @param img BufferedImage provided by the user
+     * @param nodes Array to write the node values to
+     * @param offset Position in the array of the first node
+     * @param inputSize Size of the input layer, whose square root is the side of the scaled image
+     */
+    public void writeInput(BufferedImage img, double[] nodes, int offset, int inputSize) {
+        int side = (int) Math.sqrt(inputSize);
+        int width = img.getWidth();
+        int height = img.getHeight();
+
+        // Matches the proportions chosen by Scalr's automatic resize mode
+        float ratio = (float) height / (float) width;
+        int scaledWidth;
+        int scaledHeight;
+        if (ratio <= 1) {
+            scaledWidth = side;
+            scaledHeight = side == width ? height : Math.round((float) side * ratio);
+        } else {
+            scaledHeight = side;
+            scaledWidth = side == height ? width : Math.round((float) side / ratio);
+        }
+        scaledWidth = Math.max(scaledWidth, 1);
+        scaledHeight = Math.max(scaledHeight, 1);
+
+        int[] columnStarts = new int[scaledWidth];
+        int[] columnEnds = new int[scaledWidth];
+        getSourceRanges(width, columnStarts, columnEnds);
+        int[] rowStarts = new int[scaledHeight];
+        int[] rowEnds = new int[scaledHeight];
+        getSourceRanges(height, rowStarts, rowEnds);
+        int[] rgbRow = new int[width];
+        long[] brightnessSums = new long[scaledWidth];
+        Arrays.fill(nodes, offset, offset + inputSize, 0.0);
+
+        for (int y = 0; y < scaledHeight; y++) {
+            int fromRow = rowStarts[y];
+            int toRow = rowEnds[y];
+            if (resamplingMethod == ResamplingMethod.NEAREST) {
+                fromRow = (fromRow + toRow - 1) / 2;
+                toRow = fromRow + 1;
+            }
+
+            Arrays.fill(brightnessSums, 0);
+            for (int sourceY = fromRow; sourceY < toRow; sourceY++) {
+                img.getRGB(0, sourceY, width, 1, rgbRow, 0, width);
+                for (int x = 0; x < scaledWidth; x++) {
+                    int fromColumn = columnStarts[x];
+                    int toColumn = columnEnds[x];
+                    if (resamplingMethod == ResamplingMethod.NEAREST) {
+                        fromColumn = (fromColumn + toColumn - 1) / 2;
+                        toColumn = fromColumn + 1;
+                    }
+                    for (int sourceX = fromColumn; sourceX < toColumn; sourceX++) {
+                        brightnessSums[x] += getBrightness(rgbRow[sourceX]);
+                    }
+                }
+            }
+
+            for (int x = 0; x < scaledWidth; x++) {
+                int node = x * scaledHeight + y;
+                if (node >= inputSize) {
+                    continue;
+                }
+                long pixelCount = (long) (toRow - fromRow) * (resamplingMethod == ResamplingMethod.NEAREST ? 1 : columnEnds[x] - columnStarts[x]);
+                nodes[offset + node] = brightnessSums[x] < (long) threshold * pixelCount ? 1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Finds the source pixels covered by each scaled pixel.
+     * Each scaled pixel covers at least one source pixel, so enlarging an image repeats pixels
+     * @param sourceSize Number of source pixels
+     * @param starts Array to write the first source pixel of each scaled pixel to, inclusive
+     * @param ends Array to write the last source pixel of each scaled pixel to, exclusive
+     */
+    private static void getSourceRanges(int sourceSize, int[] starts, int[] ends) {
+        int scaledSize = starts.length;
+        for (int i = 0; i < scaledSize; i++) {
+            starts[i] = (int) ((long) i * sourceSize / scaledSize);
+            ends[i] = Math.max(starts[i] + 1, (int) ((long) (i + 1) * sourceSize / scaledSize));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FusedImagePreProcessor{" +
+                "resamplingMethod=" + resamplingMethod +
+                ", threshold=" + threshold +
+                '}';
+    }
+
+    private static int getBrightness(int rgb) {
+        int red = (rgb >> 16) & 0xFF;
+        int green = (rgb >> 8) & 0xFF;
+        int blue = rgb & 0xFF;
+        return (red * 299 + green * 587 + blue * 114) / 1000;
+    }
+}
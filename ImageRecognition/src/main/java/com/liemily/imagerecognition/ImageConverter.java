@@ -1,13 +1,12 @@
 package com.liemily.imagerecognition;
 
 import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.awt.image.BufferedImage;
 import java.lang.invoke.MethodHandles;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Abstract class to be used by the ImageNetworkAccessor to convert images to NeuronLayer representations
@@ -26,24 +25,71 @@ public abstract class ImageConverter {
      */
     public NeuronLayer convertToLayer(BufferedImage img) {
         BufferedImage preProcessedImg = preProcess(img);
-        int whiteValues = 0;
+        double[] nodes = new double[preProcessedImg.getWidth() * preProcessedImg.getHeight()];
+        writeNodes(preProcessedImg, nodes, 0);
 
-        List<Double> nodes = new ArrayList<>();
-        for (int x = 0; x < preProcessedImg.getWidth(); x++) {
-            for (int y = 0; y < preProcessedImg.getHeight(); y++) {
-                double nodeValue = getNodeValue(preProcessedImg.getRGB(x, y));
-                if (nodeValue == 0) {
+        if (logger.isDebugEnabled()) {
+            int whiteValues = 0;
+            for (double node : nodes) {
+                if (node == 0) {
                     whiteValues++;
                 }
-                nodes.add(nodeValue);
             }
+            logger.debug("Converted image to layer with " + whiteValues + " white values");
         }
+        return new NeuronLayer(nodes);
+    }
+
+    /**
+     * Converts an image into a caller supplied array, such as a reused buffer or one row of a matrix,
+     * giving the same node values as convertToLayer
+     * @param img BufferedImage passed in by the user
+     * @param nodes Array to write the node values to
+     * @param offset Position in the array of the first node
+     * @return Returns the number of nodes written, i.e. the width multiplied by the height of the pre-processed image
+     */
+    public int convertToNodes(BufferedImage img, double[] nodes, int offset) {
+        BufferedImage preProcessedImg = preProcess(img);
+        writeNodes(preProcessedImg, nodes, offset);
+        return preProcessedImg.getWidth() * preProcessedImg.getHeight();
+    }
 
-        double[] values = nodes.stream().mapToDouble(d -> d).toArray();
-        NeuronLayer neuronLayer = new NeuronLayer(nodes.size());
-        neuronLayer.setNodes(values);
-        logger.debug("Converted image to layer with " + whiteValues + " white values");
-        return neuronLayer;
+    /**
+     * Sparse form of convertToLayer, holding only the node values that are not 0 in the same order as convertToLayer.
+     * This suits binarised images, which are mostly background
+     * @param img BufferedImage passed in by the user
+     * @return Represents the image as a sparse vector
+     */
+    public SparseVector convertToSparseVector(BufferedImage img) {
+        BufferedImage preProcessedImg = preProcess(img);
+        double[] nodes = new double[preProcessedImg.getWidth() * preProcessedImg.getHeight()];
+        writeNodes(preProcessedImg, nodes, 0);
+
+        SparseVector sparseVector = SparseVector.of(nodes);
+        logger.debug("Converted image to sparse vector with " + sparseVector.getNonZeroCount() + " non-zero values");
+        return sparseVector;
+    }
+
+    /**
+     * Writes the node value of every pixel of a pre-processed image, column by column,
+     * so that the pixel at (x, y) is written to offset + x * height + y.
+     *
+     * Rows of RGB values are read in bulk rather than one pixel at a time.
+     * Concrete implementations that know the layout of their pre-processed images may read the raster directly instead
+     * @param preProcessedImg Image returned by preProcess
+     * @param nodes Array to write the node values to
+     * @param offset Position in the array of the first node
+     */
+    protected void writeNodes(BufferedImage preProcessedImg, double[] nodes, int offset) {
+        int width = preProcessedImg.getWidth();
+        int height = preProcessedImg.getHeight();
+        int[] rgbRow = new int[width];
+        for (int y = 0; y < height; y++) {
+            preProcessedImg.getRGB(0, y, width, 1, rgbRow, 0, width);
+            for (int x = 0; x < width; x++) {
+                nodes[offset + x * height + y] = getNodeValue(rgbRow[x]);
+            }
+        }
     }
 
     /**
@@ -9,6 +9,9 @@ import org.imgscalr.Scalr;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * API exposing a neural network
@@ -19,9 +22,12 @@ import java.util.Arrays;
  */
 public class ImageNetworkAccessor {
     private ImageConverter imageConverter;
-    private NeuralNetwork neuralNetwork;
+    private volatile NeuralNetwork neuralNetwork;
     private RecognitionOutputs recognitionOutputs;
     private boolean resizeImg;
+    private FusedImagePreProcessor fusedImagePreProcessor;
+    private InferenceBatcher inferenceBatcher;
+    private ClassificationCache classificationCache;
 
     public ImageNetworkAccessor(ImageConverter imageConverter, NeuralNetwork neuralNetwork, RecognitionOutputs recognitionOutputs, boolean resizeImg) {
         this.imageConverter = imageConverter;
@@ -31,16 +37,57 @@ public class ImageNetworkAccessor {
     }
 
     /**
-     * Exposes the neural network's functionality to the user
+     * Exposes the neural network's functionality to the user.
+     * The network's own layers are left untouched so that multiple images can be identified concurrently,
+     * and the network is read once so that an identification finishes on the network it started with if the network is replaced.
+     * If an InferenceBatcher has been set, the input is activated together with those of other concurrent identifications.
+     * If a ClassificationCache has been set, an input that has been identified before is not activated again
      * @param img BufferedImage that the ImageNetworkAccessor processes into a NeuronLayer representation
      * @return Returns an Enum, where a collection has been specified by the user to the RecognitionOutputs object
      * @throws IOException
      */
     public Enum identify(BufferedImage img) throws IOException {
-        setInput(img, resizeImg);
-        neuralNetwork.activate();
-        NeuronLayer outputLayer = neuralNetwork.getOutputLayer();
-        return getRecognitionOutputs().getClassification(outputLayer);
+        ClassificationCache cache = classificationCache;
+        // The generation is read before the network so that a result from a network replaced meanwhile is not cached
+        long generation = cache == null ? 0 : cache.getGeneration();
+        NeuralNetwork network = neuralNetwork;
+        NeuronLayer input = getInput(img, resizeImg);
+        ClassificationCache.Key key = null;
+        if (cache != null) {
+            key = ClassificationCache.getInputKey(input.getNodes());
+            Enum cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        double[] outputs = inferenceBatcher == null ? network.activate(input.getNodes()) : activateInBatch(network, input.getNodes());
+        Enum classification = getRecognitionOutputs().getClassification(new NeuronLayer(outputs));
+        if (cache != null) {
+            cache.put(key, classification, generation);
+        }
+        return classification;
+    }
+
+    /**
+     * Waits for an input to be activated by the InferenceBatcher.
+     * If the waiting thread is interrupted, the input is withdrawn from its batch and the identification is cancelled,
+     * as it would be by the network itself
+     */
+    private double[] activateInBatch(NeuralNetwork network, double[] input) throws IOException {
+        CompletableFuture<double[]> outputs = inferenceBatcher.activate(network, input);
+        try {
+            return outputs.get();
+        } catch (InterruptedException e) {
+            outputs.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Identification was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Failed to activate the network", e.getCause());
+        }
     }
 
     /**
@@ -51,11 +98,38 @@ public class ImageNetworkAccessor {
      */
     public double trainNetwork(TrainingSet trainingSet, int iterations) {
         if (neuralNetwork instanceof SupervisedLearningInterface) {
-            return ((SupervisedLearningInterface) neuralNetwork).train(trainingSet, iterations);
+            double error = ((SupervisedLearningInterface) neuralNetwork).train(trainingSet, iterations);
+            invalidateClassifications();
+            return error;
+        }
+        return -1;
+    }
+
+    /**
+     * Trains the network with a single iteration over a given training set if the network implements the SupervisedLearningInterface,
+     * so that the caller can follow the progress of training
+     * @param trainingSet Collection of input-output pairs where the input is a representation of an image, and the output is the identifier
+     * @return Returns error if the network has been trained, else -1
+     */
+    public double trainNetwork(TrainingSet trainingSet) {
+        if (neuralNetwork instanceof SupervisedLearningInterface) {
+            double error = ((SupervisedLearningInterface) neuralNetwork).train(trainingSet);
+            invalidateClassifications();
+            return error;
         }
         return -1;
     }
 
+    /**
+     * Invalidates any ClassificationCache, as the classifications it holds came from weights that have since changed
+     */
+    private void invalidateClassifications() {
+        ClassificationCache cache = classificationCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
     /**
      * See getInput(BufferedImage img, boolean resize)
      * @param img
@@ -66,12 +140,19 @@ public class ImageNetworkAccessor {
     }
 
     /**
-     * Converts a BufferedImage to NeuronLayer representation
+     * Converts a BufferedImage to NeuronLayer representation.
+     * If a FusedImagePreProcessor has been set, resized images are converted by it in a single pass instead
      * @param img BufferedImage provided by the user
      * @param resize boolean specifying whether the image should be resized to fit the neural network's existing input layer
      * @throws IOException
      */
     public NeuronLayer getInput(BufferedImage img, boolean resize) throws IOException {
+        if (resize && fusedImagePreProcessor != null) {
+            int inputSize = neuralNetwork.getInputLayer().size();
+            double[] nodes = new double[inputSize];
+            fusedImagePreProcessor.writeInput(img, nodes, 0, inputSize);
+            return new NeuronLayer(nodes);
+        }
         BufferedImage inputImg = resize ? resize(img) : img;
         NeuronLayer input = imageConverter.convertToLayer(inputImg);
         if (resize) {
@@ -123,6 +204,68 @@ public class ImageNetworkAccessor {
         neuronLayer.setNodes(Arrays.copyOf(neuronLayer.getNodes(), neuralNetwork.getInputLayer().size()));
     }
 
+    /**
+     * @return Returns the width and height that images are resized to, below which an image loses detail used by the network,
+     *          or 0 if images are not resized
+     */
+    public int getMinimumImageSize() {
+        return resizeImg ? (int) Math.sqrt(neuralNetwork.getInputLayer().size()) : 0;
+    }
+
+    /**
+     * Describes everything that determines the input produced for an image, other than whether it is resized,
+     * so that stored inputs can be recognised as out of date when any of it changes
+     * @return Returns a description of the ImageConverter, any FusedImagePreProcessor and the input layer size
+     */
+    public String getInputSettings() {
+        return imageConverter.getClass().getName() + ";" + fusedImagePreProcessor + ";" + neuralNetwork.getInputLayer().size();
+    }
+
+    public NeuralNetwork getNeuralNetwork() {
+        return neuralNetwork;
+    }
+
+    /**
+     * Replaces the network used for identification, such as with a quantised copy of the trained network.
+     * The replacement is published atomically, so identifications already in progress finish on the previous network
+     * and later ones use the new network, without either waiting. Any ClassificationCache is invalidated
+     * @param neuralNetwork Network with the same input layer size and number of outputs
+     */
+    public void setNeuralNetwork(NeuralNetwork neuralNetwork) {
+        this.neuralNetwork = neuralNetwork;
+        invalidateClassifications();
+    }
+
+    /**
+     * Sets a stage that resizes and converts images in a single pass, replacing the resize and ImageConverter
+     * for images that are resized. Setting null restores them
+     * @param fusedImagePreProcessor Stage used for resized images, or null
+     */
+    public void setFusedImagePreProcessor(FusedImagePreProcessor fusedImagePreProcessor) {
+        this.fusedImagePreProcessor = fusedImagePreProcessor;
+    }
+
+    /**
+     * Sets a batcher that activates the network for the inputs of concurrent identifications together.
+     * Setting null activates each input on its own thread again
+     * @param inferenceBatcher Batcher used by identify, or null
+     */
+    public void setInferenceBatcher(InferenceBatcher inferenceBatcher) {
+        this.inferenceBatcher = inferenceBatcher;
+    }
+
+    /**
+     * Sets a cache of classifications, which is invalidated whenever the network is replaced. Setting null stops caching
+     * @param classificationCache Cache used by identify, or null
+     */
+    public void setClassificationCache(ClassificationCache classificationCache) {
+        this.classificationCache = classificationCache;
+    }
+
+    public ClassificationCache getClassificationCache() {
+        return classificationCache;
+    }
+
     public RecognitionOutputs getRecognitionOutputs() {
         return recognitionOutputs;
     }
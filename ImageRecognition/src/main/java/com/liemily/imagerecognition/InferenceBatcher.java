@@ -0,0 +1,253 @@
+package com.liemily.imagerecognition;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.training.TrainingBatch;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers inputs submitted by concurrent identifications into batches, so that each batch is passed through the network
+ * as one matrix rather than every input reading all of the network's weights on its own.
+ *
+ * A single dispatcher thread waits for an input, then collects further inputs until the batch window has passed
+ * or the batch is full, and hands the batch to a pool of activation threads, so that the next batch can be collected
+ * while earlier ones are being activated. The activation threads are separate from the threads submitting inputs,
+ * which wait for their outputs. Inputs submitted for different networks, such as either side of a model being replaced,
+ * are activated in separate batches on their own network. Inputs whose futures have already been cancelled are left out of the batch.
+ *
+ * Any failure, including an Error, fails only the inputs it affects, and the dispatcher carries on with the next batch
+ * @author Emily Li
+ */
+public class InferenceBatcher implements Closeable {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final int activationThreads;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread dispatcher;
+    private final ExecutorService activationPool;
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong inputCount = new AtomicLong();
+    // Held while checking closed and queueing an input, so that no input is queued once close has drained the queue
+    private final Object closeLock = new Object();
+    private volatile boolean closed;
+
+    // Each activation thread reuses the buffers of its last batch while the layer sizes stay the same,
+    // and holds no reference to the network, so that a replaced network is not kept in memory
+    private final ThreadLocal<ScratchBatch> batches = new ThreadLocal<>();
+
+    /**
+     * Creates a batcher that activates one batch at a time
+     * @param maxBatchSize Largest number of inputs activated together
+     * @param windowMicros Longest time in microseconds that the first input of a batch waits for others to join it
+     */
+    public InferenceBatcher(int maxBatchSize, long windowMicros) {
+        this(maxBatchSize, windowMicros, 1);
+    }
+
+    /**
+     * @param maxBatchSize Largest number of inputs activated together
+     * @param windowMicros Longest time in microseconds that the first input of a batch waits for others to join it
+     * @param activationThreads Number of batches that can be activated at once
+     */
+    public InferenceBatcher(int maxBatchSize, long windowMicros, int activationThreads) {
+        if (maxBatchSize < 1 || windowMicros < 0 || activationThreads < 1) {
+            throw new IllegalArgumentException("Invalid batching: maxBatchSize=" + maxBatchSize + ", windowMicros=" + windowMicros
+                    + ", activationThreads=" + activationThreads);
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.activationThreads = activationThreads;
+        AtomicInteger threadCount = new AtomicInteger();
+        activationPool = Executors.newFixedThreadPool(activationThreads, runnable -> {
+            Thread thread = new Thread(runnable, "inference-batch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher = new Thread(this::dispatch, "inference-batcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Submits an input to be activated in the next batch
+     * @param neuralNetwork Network to activate the input with
+     * @param input Values for the input layer, which must not be altered until the future completes
+     * @return Returns a future completed with the values of the output layer
+     */
+    public CompletableFuture<double[]> activate(NeuralNetwork neuralNetwork, double[] input) {
+        Request request = new Request(neuralNetwork, input);
+        synchronized (closeLock) {
+            if (closed) {
+                request.future.completeExceptionally(new IllegalStateException("The InferenceBatcher has been closed"));
+                return request.future;
+            }
+            queue.add(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * @return Returns the number of batches activated since the InferenceBatcher was created
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return Returns the number of inputs activated since the InferenceBatcher was created
+     */
+    public long getInputCount() {
+        return inputCount.get();
+    }
+
+    /**
+     * Stops the dispatcher thread, failing any inputs not yet handed to an activation thread.
+     * Batches already being activated are completed
+     */
+    @Override
+    public void close() {
+        synchronized (closeLock) {
+            closed = true;
+        }
+        dispatcher.interrupt();
+        activationPool.shutdown();
+        Request request;
+        while ((request = queue.poll()) != null) {
+            request.future.completeExceptionally(new IllegalStateException("The InferenceBatcher has been closed"));
+        }
+    }
+
+    private void dispatch() {
+        List<Request> requests = new ArrayList<>(maxBatchSize);
+        while (!closed) {
+            try {
+                requests.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (requests.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    Request request = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (request == null) {
+                        break;
+                    }
+                    requests.add(request);
+                }
+                requests.removeIf(request -> request.future.isDone());
+                while (!requests.isEmpty()) {
+                    NeuralNetwork neuralNetwork = requests.get(0).neuralNetwork;
+                    List<Request> sameNetwork = new ArrayList<>(requests.size());
+                    requests.removeIf(request -> request.neuralNetwork == neuralNetwork && sameNetwork.add(request));
+                    submit(neuralNetwork, sameNetwork);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable e) {
+                // The dispatcher must keep running, or every later input would wait forever
+                logger.error("Failed to dispatch a batch of " + requests.size() + " inputs", e);
+                fail(requests, e);
+                requests.clear();
+            }
+        }
+        fail(requests, new IllegalStateException("The InferenceBatcher has been closed"));
+    }
+
+    private void submit(NeuralNetwork neuralNetwork, List<Request> requests) {
+        try {
+            activationPool.execute(() -> activate(neuralNetwork, requests));
+        } catch (RejectedExecutionException e) {
+            fail(requests, new IllegalStateException("The InferenceBatcher has been closed", e));
+        }
+    }
+
+    private void activate(NeuralNetwork neuralNetwork, List<Request> requests) {
+        try {
+            if (requests.size() == 1) {
+                Request request = requests.get(0);
+                request.future.complete(neuralNetwork.activate(request.input));
+            } else {
+                int[] layerSizes = getLayerSizes(neuralNetwork);
+                ScratchBatch scratchBatch = batches.get();
+                if (scratchBatch == null || !Arrays.equals(scratchBatch.layerSizes, layerSizes)) {
+                    scratchBatch = new ScratchBatch(layerSizes, new TrainingBatch(neuralNetwork, maxBatchSize));
+                    batches.set(scratchBatch);
+                }
+                TrainingBatch batch = scratchBatch.batch;
+                List<double[]> inputs = new ArrayList<>(requests.size());
+                for (Request request : requests) {
+                    inputs.add(request.input);
+                }
+                batch.setInputs(inputs);
+                neuralNetwork.activate(batch);
+                for (int row = 0; row < requests.size(); row++) {
+                    requests.get(row).future.complete(batch.getOutput(row));
+                }
+            }
+        } catch (Throwable e) {
+            logger.warn("Failed to activate a batch of " + requests.size() + " inputs", e);
+            // The buffers may have been left part way through the batch
+            batches.remove();
+            fail(requests, e);
+        }
+        batchCount.incrementAndGet();
+        inputCount.addAndGet(requests.size());
+    }
+
+    private static int[] getLayerSizes(NeuralNetwork neuralNetwork) {
+        List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+        int[] layerSizes = new int[neuronLayers.size()];
+        for (int i = 0; i < layerSizes.length; i++) {
+            layerSizes[i] = neuronLayers.get(i).size();
+        }
+        return layerSizes;
+    }
+
+    private static void fail(List<Request> requests, Throwable e) {
+        for (Request request : requests) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InferenceBatcher{" +
+                "maxBatchSize=" + maxBatchSize +
+                ", windowMicros=" + TimeUnit.NANOSECONDS.toMicros(windowNanos) +
+                ", activationThreads=" + activationThreads +
+                '}';
+    }
+
+    /**
+     * Buffers of a batch and the layer sizes they were sized for, which any network with the same layer sizes can use
+     */
+    private static class ScratchBatch {
+        private final int[] layerSizes;
+        private final TrainingBatch batch;
+
+        private ScratchBatch(int[] layerSizes, TrainingBatch batch) {
+            this.layerSizes = layerSizes;
+            this.batch = batch;
+        }
+    }
+
+    private static class Request {
+        private final NeuralNetwork neuralNetwork;
+        private final double[] input;
+        private final CompletableFuture<double[]> future = new CompletableFuture<>();
+
+        private Request(NeuralNetwork neuralNetwork, double[] input) {
+            this.neuralNetwork = neuralNetwork;
+            this.input = input;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.liemily.imagerecognition;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+
+import java.util.Random;
+
+/**
+ * Creates randomly altered variants of image inputs, so that a network learns to recognise images
+ * that are rotated, shifted, scaled or noisier than those it was trained with.
+ *
+ * The input is treated as the square image written by the ImageConverter, column by column,
+ * whose side is the square root of the input size. Each variant is rotated about the centre, scaled, and shifted
+ * by random amounts up to the configured maximums, sampling the nearest node of the original input.
+ * Nodes that come from outside the original are given the background value, which is the average of the original's border,
+ * rounded when the input is binary. Finally, each node is inverted with the noise probability
+ * @author Emily Li
+ */
+public class InputAugmenter {
+    private final double maxRotationDegrees;
+    private final double maxShift;
+    private final double maxScale;
+    private final double noise;
+
+    /**
+     * @param maxRotationDegrees Largest rotation either way, in degrees
+     * @param maxShift Largest shift in each direction, as a fraction of the image's side
+     * @param maxScale Largest change in size, as a fraction of the original size
+     * @param noise Probability of inverting each node, from 0 to 1
+     */
+    public InputAugmenter(double maxRotationDegrees, double maxShift, double maxScale, double noise) {
+        if (maxShift < 0 || maxScale < 0 || maxScale >= 1 || noise < 0 || noise > 1) {
+            throw new IllegalArgumentException("Invalid augmentation: maxShift=" + maxShift + ", maxScale=" + maxScale + ", noise=" + noise);
+        }
+        this.maxRotationDegrees = Math.abs(maxRotationDegrees);
+        this.maxShift = maxShift;
+        this.maxScale = maxScale;
+        this.noise = noise;
+    }
+
+    /**
+     * Creates a random variant of an input, leaving the input unchanged
+     * @param input Input layer of an image
+     * @param random Random that decides how the variant is altered
+     * @return Returns a new input layer of the same size
+     */
+    public NeuronLayer augment(NeuronLayer input, Random random) {
+        double[] nodes = input.getNodes();
+        int side = (int) Math.sqrt(nodes.length);
+        double[] augmented = nodes.clone();
+        if (side == 0) {
+            return new NeuronLayer(augmented);
+        }
+
+        double rotation = Math.toRadians(maxRotationDegrees) * (2 * random.nextDouble() - 1);
+        double scale = 1 + maxScale * (2 * random.nextDouble() - 1);
+        double shiftX = maxShift * side * (2 * random.nextDouble() - 1);
+        double shiftY = maxShift * side * (2 * random.nextDouble() - 1);
+        double cos = Math.cos(rotation) / scale;
+        double sin = Math.sin(rotation) / scale;
+        double centre = (side - 1) / 2.0;
+        double background = getBackground(nodes, side);
+
+        // Maps each node of the variant back to the node of the original it comes from
+        for (int x = 0; x < side; x++) {
+            double dx = x - centre - shiftX;
+            for (int y = 0; y < side; y++) {
+                double dy = y - centre - shiftY;
+                int sourceX = (int) Math.round(cos * dx + sin * dy + centre);
+                int sourceY = (int) Math.round(-sin * dx + cos * dy + centre);
+                boolean inside = sourceX >= 0 && sourceX < side && sourceY >= 0 && sourceY < side;
+                augmented[x * side + y] = inside ? nodes[sourceX * side + sourceY] : background;
+            }
+        }
+
+        if (noise > 0) {
+            for (int n = 0; n < side * side; n++) {
+                if (random.nextDouble() < noise) {
+                    augmented[n] = 1 - augmented[n];
+                }
+            }
+        }
+        return new NeuronLayer(augmented);
+    }
+
+    private static double getBackground(double[] nodes, int side) {
+        double sum = 0;
+        int count = 0;
+        boolean binary = true;
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                double node = nodes[x * side + y];
+                binary &= node == 0 || node == 1;
+                if (x == 0 || y == 0 || x == side - 1 || y == side - 1) {
+                    sum += node;
+                    count++;
+                }
+            }
+        }
+        double background = sum / count;
+        return binary ? Math.round(background) : background;
+    }
+
+    @Override
+    public String toString() {
+        return "InputAugmenter{" +
+                "maxRotationDegrees=" + maxRotationDegrees +
+                ", maxShift=" + maxShift +
+                ", maxScale=" + maxScale +
+                ", noise=" + noise +
+                '}';
+    }
+}
@@ -0,0 +1,101 @@
+package com.liemily.imagerecognition;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for augmenting training sets with altered variants of their images
+ * @author Emily Li
+ */
+public class AugmentedTrainingSetTest {
+    private static final int SIDE = 12;
+    private static final int VARIANTS = 2;
+
+    private TrainingSet trainingSet;
+
+    @Before
+    public void setup() {
+        Random random = new Random(3);
+        List<TrainingPair> trainingPairs = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            NeuronLayer input = new NeuronLayer(new double[SIDE * SIDE]);
+            for (int n = 0; n < SIDE * SIDE; n++) {
+                input.getNodes()[n] = random.nextInt(4) == 0 ? 1 : 0;
+            }
+            NeuronLayer output = new NeuronLayer(new double[3]);
+            output.getNodes()[i] = 1;
+            trainingPairs.add(new TrainingPair(input, output));
+        }
+        trainingSet = new TrainingSet(trainingPairs);
+    }
+
+    // An augmenter that alters nothing must give back the same input, and noise alone must invert it
+    @Test
+    public void testAugmenterLimits() {
+        NeuronLayer input = trainingSet.getTrainingPairs().iterator().next().getInput();
+        assertEquals(input, new InputAugmenter(0, 0, 0, 0).augment(input, new Random(1)));
+
+        double[] inverted = new InputAugmenter(0, 0, 0, 1).augment(input, new Random(1)).getNodes();
+        for (int n = 0; n < inverted.length; n++) {
+            assertEquals(1 - input.getNodes()[n], inverted[n], 0);
+        }
+    }
+
+    // Without shuffling, each TrainingPair must be followed by its variants,
+    // which are new on every iteration but repeatable given a seed
+    @Test
+    public void testVariantsFollowEachTrainingPair() {
+        InputAugmenter inputAugmenter = new InputAugmenter(20, 0.1, 0.1, 0.02);
+        TrainingSet augmented = new AugmentedTrainingSet(trainingSet, inputAugmenter, VARIANTS, 2, 1, new Random(4));
+        TrainingSet repeated = new AugmentedTrainingSet(trainingSet, inputAugmenter, VARIANTS, 3, 1, new Random(4));
+        assertEquals(trainingSet.getTrainingPairs().size() * (1 + VARIANTS), augmented.getTrainingPairs().size());
+
+        List<TrainingPair> first = new ArrayList<>(augmented.getTrainingPairs());
+        List<TrainingPair> second = new ArrayList<>(augmented.getTrainingPairs());
+        assertEquals(first.size(), augmented.getTrainingPairs().size());
+        int i = 0;
+        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+            assertSame(trainingPair, first.get(i));
+            for (int v = 1; v <= VARIANTS; v++) {
+                assertSame(trainingPair.getOutput(), first.get(i + v).getOutput());
+                assertNotEquals(trainingPair.getInput(), first.get(i + v).getInput());
+                assertNotEquals(first.get(i + v).getInput(), second.get(i + v).getInput());
+            }
+            i += 1 + VARIANTS;
+        }
+
+        i = 0;
+        for (TrainingPair trainingPair : repeated.getTrainingPairs()) {
+            assertEquals(first.get(i++).getInput(), trainingPair.getInput());
+        }
+    }
+
+    // With a shuffle buffer, every TrainingPair and variant must still be read once,
+    // but the variants must be spread among other TrainingPairs rather than all following their original
+    @Test
+    public void testVariantsInterleaved() {
+        InputAugmenter inputAugmenter = new InputAugmenter(20, 0.1, 0.1, 0.02);
+        int size = trainingSet.getTrainingPairs().size() * (1 + VARIANTS);
+        List<TrainingPair> shuffled = new ArrayList<>(new AugmentedTrainingSet(trainingSet, inputAugmenter, VARIANTS, 2, size, new Random(4)).getTrainingPairs());
+        assertEquals(size, shuffled.size());
+
+        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+            assertEquals(1, shuffled.stream().filter(shuffledPair -> shuffledPair == trainingPair).count());
+            assertEquals(1 + VARIANTS, shuffled.stream().filter(shuffledPair -> shuffledPair.getOutput() == trainingPair.getOutput()).count());
+        }
+        boolean interleaved = false;
+        for (int i = 1; i < shuffled.size(); i++) {
+            interleaved |= i % (1 + VARIANTS) != 0 && shuffled.get(i).getOutput() != shuffled.get(i - 1).getOutput();
+        }
+        assertTrue(interleaved);
+    }
+}
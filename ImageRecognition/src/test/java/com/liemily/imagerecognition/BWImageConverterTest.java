@@ -0,0 +1,55 @@
+package com.liemily.imagerecognition;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for converting images to black and white node values
+ * @author Emily Li
+ */
+public class BWImageConverterTest {
+    private BWImageConverter imageConverter;
+    private BufferedImage img;
+
+    @Before
+    public void setup() {
+        imageConverter = new BWImageConverter();
+        // An odd width leaves a partly used byte at the end of every packed scanline
+        img = new BufferedImage(13, 7, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(6);
+        for (int x = 0; x < img.getWidth(); x++) {
+            for (int y = 0; y < img.getHeight(); y++) {
+                img.setRGB(x, y, random.nextBoolean() ? 0xFFFFFF : random.nextInt(0x1000000));
+            }
+        }
+    }
+
+    // Reading the packed raster must give the same node values as converting each pixel's RGB value
+    @Test
+    public void testRasterConversionMatchesRgbConversion() {
+        BufferedImage preProcessedImg = imageConverter.preProcess(img);
+        double[] expected = new double[img.getWidth() * img.getHeight()];
+        for (int x = 0; x < preProcessedImg.getWidth(); x++) {
+            for (int y = 0; y < preProcessedImg.getHeight(); y++) {
+                expected[x * preProcessedImg.getHeight() + y] = imageConverter.getNodeValue(preProcessedImg.getRGB(x, y));
+            }
+        }
+
+        assertArrayEquals(expected, imageConverter.convertToLayer(img).getNodes(), 0);
+
+        double[] nodes = new double[expected.length + 3];
+        assertEquals(expected.length, imageConverter.convertToNodes(img, nodes, 3));
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], nodes[i + 3], 0);
+        }
+
+        double[] sparseNodes = new double[expected.length];
+        imageConverter.convertToSparseVector(img).toNodes(sparseNodes);
+        assertArrayEquals(expected, sparseNodes, 0);
+    }
+}
@@ -12,6 +12,15 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -87,7 +96,155 @@ public class ImageNetworkAccessorTest {
     @Test
     public void testInputGivesResult() throws IOException {
         accessor.identify(img1);
-        verify(network, times(1)).activate();
+        verify(network, times(1)).activate(any(double[].class));
         verify(recognitionOutputs, times(1)).getClassification(any());
     }
+
+    // Fused pre-processing of an enlarged copy of an image must give the same input as converting the original image
+    @Test
+    public void testFusedPreProcessingMatchesConversion() throws IOException {
+        int scale = 8;
+        BufferedImage enlargedImg = new BufferedImage(img1.getWidth() * scale, img1.getHeight() * scale, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < enlargedImg.getWidth(); x++) {
+            for (int y = 0; y < enlargedImg.getHeight(); y++) {
+                enlargedImg.setRGB(x, y, img1.getRGB(x / scale, y / scale));
+            }
+        }
+        double[] expected = accessor.getInput(img1, true).getNodes();
+
+        for (FusedImagePreProcessor.ResamplingMethod resamplingMethod : FusedImagePreProcessor.ResamplingMethod.values()) {
+            accessor.setFusedImagePreProcessor(new FusedImagePreProcessor(resamplingMethod, 128));
+            assertArrayEquals(expected, accessor.getInput(enlargedImg, true).getNodes(), 0);
+        }
+    }
+
+    // Inputs activated together by an InferenceBatcher must give the same outputs as activating each input on its own
+    @Test
+    public void testBatchedActivationMatchesSingleActivation() throws Exception {
+        int inputCount = 8;
+        Random random = new Random(1);
+        List<double[]> inputs = new ArrayList<>();
+        for (int i = 0; i < inputCount; i++) {
+            double[] input = new double[layerSize];
+            for (int n = 0; n < layerSize; n++) {
+                input[n] = random.nextInt(2);
+            }
+            inputs.add(input);
+        }
+
+        try (InferenceBatcher inferenceBatcher = new InferenceBatcher(inputCount, 200000)) {
+            List<CompletableFuture<double[]>> outputs = new ArrayList<>();
+            for (double[] input : inputs) {
+                outputs.add(inferenceBatcher.activate(network, input));
+            }
+            for (int i = 0; i < inputCount; i++) {
+                assertArrayEquals(network.activate(inputs.get(i)), outputs.get(i).get(10, TimeUnit.SECONDS), 1e-9);
+            }
+            assertEquals(inputCount, inferenceBatcher.getInputCount());
+            assertTrue(inferenceBatcher.getBatchCount() < inputCount);
+        }
+    }
+
+    // An Error while activating must fail only the inputs of that batch, and later inputs must still be activated
+    @Test
+    public void testBatcherSurvivesActivationError() throws Exception {
+        SupervisedFeedForwardNetwork failingNetwork = mock(SupervisedFeedForwardNetwork.class);
+        when(failingNetwork.activate(any(double[].class))).thenThrow(new OutOfMemoryError("Test error"));
+        double[] input = new double[layerSize];
+
+        try (InferenceBatcher inferenceBatcher = new InferenceBatcher(4, 0, 2)) {
+            CompletableFuture<double[]> failed = inferenceBatcher.activate(failingNetwork, input);
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                fail("The input activated by the failing network must fail");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof OutOfMemoryError);
+            }
+            assertArrayEquals(network.activate(input), inferenceBatcher.activate(network, input).get(10, TimeUnit.SECONDS), 1e-9);
+        }
+    }
+
+    // A replaced network must not be kept in memory by the buffers of the batches it was activated in,
+    // which are reused by any network with the same layer sizes
+    @Test
+    public void testBatcherReleasesReplacedNetwork() throws Exception {
+        double[] input = new double[layerSize];
+        input[0] = 1;
+        SupervisedFeedForwardNetwork replacedNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(2));
+        SupervisedFeedForwardNetwork replacement = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(3));
+        WeakReference<SupervisedFeedForwardNetwork> replacedReference = new WeakReference<>(replacedNetwork);
+
+        try (InferenceBatcher inferenceBatcher = new InferenceBatcher(2, 5000000)) {
+            double[] expected = replacedNetwork.activate(input);
+            CompletableFuture<double[]> first = inferenceBatcher.activate(replacedNetwork, input);
+            CompletableFuture<double[]> second = inferenceBatcher.activate(replacedNetwork, input);
+            assertArrayEquals(expected, first.get(10, TimeUnit.SECONDS), 1e-9);
+            assertArrayEquals(expected, second.get(10, TimeUnit.SECONDS), 1e-9);
+            replacedNetwork = null;
+
+            // A single input is activated without the batch's buffers, so it does not replace them
+            assertArrayEquals(replacement.activate(input), inferenceBatcher.activate(replacement, input).get(10, TimeUnit.SECONDS), 1e-9);
+            for (int i = 0; i < 100 && replacedReference.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertNull(replacedReference.get());
+        }
+    }
+
+    // Inputs submitted while the batcher is closed must all complete, either activated or failed, rather than being left waiting
+    @Test (timeout = 30 * 1000)
+    public void testBatcherCloseCompletesEverySubmittedInput() throws Exception {
+        double[] input = new double[layerSize];
+        for (int round = 0; round < 20; round++) {
+            InferenceBatcher inferenceBatcher = new InferenceBatcher(4, 100, 2);
+            List<CompletableFuture<double[]>> futures = new CopyOnWriteArrayList<>();
+            CountDownLatch submitting = new CountDownLatch(4);
+            List<Thread> submitters = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Thread submitter = new Thread(() -> {
+                    submitting.countDown();
+                    CompletableFuture<double[]> future;
+                    do {
+                        future = inferenceBatcher.activate(network, input);
+                        futures.add(future);
+                    } while (!future.isCompletedExceptionally());
+                });
+                submitter.start();
+                submitters.add(submitter);
+            }
+            submitting.await();
+            inferenceBatcher.close();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+            for (CompletableFuture<double[]> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        }
+    }
+
+    // An image identified before must be answered from the ClassificationCache without activating the network,
+    // until the network is replaced
+    @Test
+    public void testClassificationCache() throws IOException {
+        when(recognitionOutputs.getClassification(any())).thenReturn(Thread.State.NEW);
+        ClassificationCache classificationCache = new ClassificationCache(10);
+        accessor.setClassificationCache(classificationCache);
+
+        assertEquals(Thread.State.NEW, accessor.identify(img1));
+        assertEquals(Thread.State.NEW, accessor.identify(img1));
+        verify(network, times(1)).activate(any(double[].class));
+        assertEquals(1L, (long) classificationCache.getStatistics().get("inputHits"));
+        assertEquals(1L, (long) classificationCache.getStatistics().get("inputMisses"));
+
+        accessor.setNeuralNetwork(network);
+        accessor.identify(img1);
+        verify(network, times(2)).activate(any(double[].class));
+        assertEquals(1L, (long) classificationCache.getStatistics().get("invalidations"));
+    }
 }
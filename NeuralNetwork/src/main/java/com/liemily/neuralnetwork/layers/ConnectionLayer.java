@@ -1,40 +1,257 @@
 package com.liemily.neuralnetwork.layers;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Wrapper class for weights between multiple NeuronLayers
  *
- * The weights are represented by a matrix
+ * The weights are represented by a matrix, stored in a single row-major array
+ * where each row holds the weights from one incoming node to every outgoing node.
+ * Keeping the matrix contiguous lets both activation and training walk the weights linearly
  * @author Emily Li
  */
 public class ConnectionLayer {
-    private double[][] weights;
+    // Block sizes keep a 64x256 tile of weights (128KB) cache resident while a batch passes over it
+    private static final int INCOMING_BLOCK_SIZE = 64;
+    private static final int OUTGOING_BLOCK_SIZE = 256;
+
+    private final int incomingSize;
+    private final int outgoingSize;
+    private double[] weights;
 
     public ConnectionLayer(NeuronLayer incomingLayer, NeuronLayer outgoingLayer, double initWeightRange) {
-        weights = new double[incomingLayer.size()][outgoingLayer.size()];
-        populateWeights(weights, initWeightRange);
+        this(incomingLayer, outgoingLayer, initWeightRange, ThreadLocalRandom.current());
+    }
+
+    /**
+     * @param random Source of the initial weights, allowing a seeded Random to give reproducible weights
+     */
+    public ConnectionLayer(NeuronLayer incomingLayer, NeuronLayer outgoingLayer, double initWeightRange, Random random) {
+        incomingSize = incomingLayer.size();
+        outgoingSize = outgoingLayer.size();
+        weights = new double[incomingSize * outgoingSize];
+        populateWeights(weights, initWeightRange, random);
+    }
+
+    /**
+     * Creates a connection layer from existing weights, such as those of a previously trained network
+     * @param weights Row-major weight matrix, indexed by incomingNode * outgoingSize + outgoingNode
+     */
+    public ConnectionLayer(int incomingSize, int outgoingSize, double[] weights) {
+        this.incomingSize = incomingSize;
+        this.outgoingSize = outgoingSize;
+        setWeights(weights);
+    }
+
+    /**
+     * Creates a connection layer without weights, for subclasses that store their weights elsewhere
+     */
+    protected ConnectionLayer(int incomingSize, int outgoingSize) {
+        this.incomingSize = incomingSize;
+        this.outgoingSize = outgoingSize;
     }
 
     /**
      * Constructs random weights for NeuronLayer's when the ConnectionLayer is first initialised.
      * @param weights Matrix representing weights between NeuronLayer's
      * @param initWeightRange Permitted range around 0 for the weights
+     * @param random Source of the random weights
      */
-    private void populateWeights(double[][] weights, double initWeightRange) {
+    private void populateWeights(double[] weights, double initWeightRange, Random random) {
         double randOrigin = 0.0 - initWeightRange / 2.0;
-        double randBound = 0.0 + initWeightRange / 2.0;
         for (int i = 0; i < weights.length; i++) {
-            for (int j = 0; j < weights[0].length; j++) {
-                double random = ThreadLocalRandom.current().nextDouble(randOrigin, randBound);
-                weights[i][j] = random;
+            double randomWeight = randOrigin + random.nextDouble() * initWeightRange;
+            weights[i] = randomWeight;
+        }
+    }
+
+    /**
+     * Multiplies the incoming node values by the weight matrix,
+     * overwriting the sums with the weighted total for each outgoing node.
+     *
+     * A weight of exactly 0 is treated as 1 so that a connection is never fully severed.
+     * Incoming nodes with a value of 0 contribute nothing and their rows are skipped
+     * @param incomingNodes Values of the incoming layer
+     * @param sums Vector of the outgoing layer's size to write the weighted sums to
+     */
+    public void propagate(double[] incomingNodes, double[] sums) {
+        propagate(incomingNodes, sums, 1);
+    }
+
+    /**
+     * Batch form of propagate(double[], double[]), multiplying a matrix of incoming values by the weight matrix.
+     *
+     * The weights are walked in blocks so that each block is reused for every row of the batch while it is still cached,
+     * rather than streaming the whole matrix from memory once per row.
+     * The sums for each row are accumulated in the same order as for a single row, so results match exactly
+     * @param incomingNodes Row-major matrix with one row of incoming values per batch entry
+     * @param sums Row-major matrix to write one row of outgoing sums to per batch entry
+     * @param rows Number of batch entries
+     */
+    public void propagate(double[] incomingNodes, double[] sums, int rows) {
+        Arrays.fill(sums, 0, rows * outgoingSize, 0.0);
+        for (int kBlock = 0; kBlock < incomingSize; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, incomingSize);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        double node = incomingNodes[incomingRow + k];
+                        if (node == 0) {
+                            continue;
+                        }
+                        int row = k * outgoingSize;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            double weight = weights[row + j];
+                            sums[outgoingRow + j] += node * (weight == 0 ? 1 : weight);
+                        }
+                    }
+                }
             }
         }
     }
 
-    public double[][] getWeights() {
+    /**
+     * Sparse form of propagate(double[], double[]), only reading the weight rows of the incoming nodes that are not 0.
+     * Incoming nodes beyond this layer's incoming size are ignored
+     * @param incomingNodes Non-zero values of the incoming layer
+     * @param sums Array to write the weighted sums for each outgoing node to
+     * @param offset Position in the sums of the first outgoing node, allowing one row of a batch to be written
+     */
+    public void propagate(SparseVector incomingNodes, double[] sums, int offset) {
+        Arrays.fill(sums, offset, offset + outgoingSize, 0.0);
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        for (int n = 0; n < indices.length && indices[n] < incomingSize; n++) {
+            double node = values[n];
+            int row = indices[n] * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                double weight = weights[row + j];
+                sums[offset + j] += node * (weight == 0 ? 1 : weight);
+            }
+        }
+    }
+
+    /**
+     * Sends a matrix of outgoing deltas back through the weights,
+     * overwriting the errors with the weighted total of deltas each incoming node contributed to
+     * @param deltas Row-major matrix with one row of outgoing deltas per batch entry
+     * @param errors Row-major matrix to write one row of incoming errors to per batch entry
+     * @param rows Number of batch entries
+     */
+    public void backPropagate(double[] deltas, double[] errors, int rows) {
+        Arrays.fill(errors, 0, rows * incomingSize, 0.0);
+        for (int kBlock = 0; kBlock < incomingSize; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, incomingSize);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        int row = k * outgoingSize;
+                        double error = 0.0;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            error += deltas[outgoingRow + j] * weights[row + j];
+                        }
+                        errors[incomingRow + k] += error;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the change produced by a batch to the weights of the given incoming nodes,
+     * i.e. the learning rate multiplied by the product of each incoming value and outgoing delta, summed over the batch.
+     * Splitting the incoming nodes into ranges allows disjoint parts of the matrix to be updated independently
+     * @param incomingNodes Row-major matrix with one row of incoming values per batch entry
+     * @param deltas Row-major matrix with one row of outgoing deltas per batch entry
+     * @param rows Number of batch entries
+     * @param learningRate Rate at which the change is applied
+     * @param fromIncomingNode First incoming node whose weights are updated, inclusive
+     * @param toIncomingNode Last incoming node whose weights are updated, exclusive
+     */
+    public void updateWeights(double[] incomingNodes, double[] deltas, int rows, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        for (int kBlock = fromIncomingNode; kBlock < toIncomingNode; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, toIncomingNode);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        double node = incomingNodes[incomingRow + k];
+                        if (node == 0) {
+                            continue;
+                        }
+                        int row = k * outgoingSize;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            double change = deltas[outgoingRow + j] * node;
+                            weights[row + j] += learningRate * change;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sparse form of updateWeights, only changing the weight rows of the incoming nodes that are not 0
+     * @param incomingNodes Non-zero values of the incoming layer
+     * @param deltas Array holding the deltas of each outgoing node
+     * @param offset Position in the deltas of the first outgoing node, allowing one row of a batch to be read
+     * @param learningRate Rate at which the change is applied
+     * @param fromIncomingNode First incoming node whose weights are updated, inclusive
+     * @param toIncomingNode Last incoming node whose weights are updated, exclusive
+     */
+    public void updateWeights(SparseVector incomingNodes, double[] deltas, int offset, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        for (int n = 0; n < indices.length && indices[n] < toIncomingNode; n++) {
+            if (indices[n] < fromIncomingNode) {
+                continue;
+            }
+            double node = values[n];
+            int row = indices[n] * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                double change = deltas[offset + j] * node;
+                weights[row + j] += learningRate * change;
+            }
+        }
+    }
+
+    public double getWeight(int incomingNode, int outgoingNode) {
+        return weights[incomingNode * outgoingSize + outgoingNode];
+    }
+
+    public void setWeight(int incomingNode, int outgoingNode, double weight) {
+        weights[incomingNode * outgoingSize + outgoingNode] = weight;
+    }
+
+    /**
+     * @return Returns the row-major weight matrix, indexed by incomingNode * getOutgoingSize() + outgoingNode
+     */
+    public double[] getWeights() {
         return weights;
     }
 
-    public void setWeights(double[][] weights) { this.weights = weights; }
+    public void setWeights(double[] weights) {
+        if (weights.length != incomingSize * outgoingSize) {
+            throw new IllegalArgumentException("Expected " + incomingSize * outgoingSize + " weights but got " + weights.length);
+        }
+        this.weights = weights;
+    }
+
+    public int getIncomingSize() {
+        return incomingSize;
+    }
+
+    public int getOutgoingSize() {
+        return outgoingSize;
+    }
 }
@@ -0,0 +1,202 @@
+package com.liemily.neuralnetwork.layers;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connection layer storing its weights in single precision, halving the memory the weight matrix takes
+ * and the memory bandwidth used each time it is walked.
+ *
+ * Only the weights are held as floats. Node values, sums and deltas remain doubles,
+ * so each weight is widened as it is read and the change produced by training is rounded as it is written
+ * @author Emily Li
+ */
+public class FloatConnectionLayer extends ConnectionLayer {
+    // Block sizes keep a 64x512 tile of weights (128KB) cache resident while a batch passes over it
+    private static final int INCOMING_BLOCK_SIZE = 64;
+    private static final int OUTGOING_BLOCK_SIZE = 512;
+
+    private float[] weights;
+
+    public FloatConnectionLayer(NeuronLayer incomingLayer, NeuronLayer outgoingLayer, double initWeightRange) {
+        this(incomingLayer, outgoingLayer, initWeightRange, ThreadLocalRandom.current());
+    }
+
+    /**
+     * @param random Source of the initial weights, allowing a seeded Random to give reproducible weights
+     */
+    public FloatConnectionLayer(NeuronLayer incomingLayer, NeuronLayer outgoingLayer, double initWeightRange, Random random) {
+        super(incomingLayer.size(), outgoingLayer.size());
+        weights = new float[getIncomingSize() * getOutgoingSize()];
+        double randOrigin = 0.0 - initWeightRange / 2.0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (float) (randOrigin + random.nextDouble() * initWeightRange);
+        }
+    }
+
+    /**
+     * Creates a single precision copy of another connection layer, rounding each of its weights
+     * @param connectionLayer Layer whose weights are copied
+     */
+    public FloatConnectionLayer(ConnectionLayer connectionLayer) {
+        super(connectionLayer.getIncomingSize(), connectionLayer.getOutgoingSize());
+        weights = new float[getIncomingSize() * getOutgoingSize()];
+        for (int k = 0; k < getIncomingSize(); k++) {
+            for (int j = 0; j < getOutgoingSize(); j++) {
+                weights[k * getOutgoingSize() + j] = (float) connectionLayer.getWeight(k, j);
+            }
+        }
+    }
+
+    @Override
+    public void propagate(double[] incomingNodes, double[] sums, int rows) {
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        Arrays.fill(sums, 0, rows * outgoingSize, 0.0);
+        for (int kBlock = 0; kBlock < incomingSize; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, incomingSize);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        double node = incomingNodes[incomingRow + k];
+                        if (node == 0) {
+                            continue;
+                        }
+                        int row = k * outgoingSize;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            float weight = weights[row + j];
+                            sums[outgoingRow + j] += node * (weight == 0 ? 1 : weight);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void propagate(SparseVector incomingNodes, double[] sums, int offset) {
+        int outgoingSize = getOutgoingSize();
+        Arrays.fill(sums, offset, offset + outgoingSize, 0.0);
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        for (int n = 0; n < indices.length && indices[n] < getIncomingSize(); n++) {
+            double node = values[n];
+            int row = indices[n] * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                float weight = weights[row + j];
+                sums[offset + j] += node * (weight == 0 ? 1 : weight);
+            }
+        }
+    }
+
+    @Override
+    public void backPropagate(double[] deltas, double[] errors, int rows) {
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        Arrays.fill(errors, 0, rows * incomingSize, 0.0);
+        for (int kBlock = 0; kBlock < incomingSize; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, incomingSize);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        int row = k * outgoingSize;
+                        double error = 0.0;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            error += deltas[outgoingRow + j] * weights[row + j];
+                        }
+                        errors[incomingRow + k] += error;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateWeights(double[] incomingNodes, double[] deltas, int rows, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        for (int kBlock = fromIncomingNode; kBlock < toIncomingNode; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, toIncomingNode);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        double node = incomingNodes[incomingRow + k];
+                        if (node == 0) {
+                            continue;
+                        }
+                        int row = k * outgoingSize;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            double change = deltas[outgoingRow + j] * node;
+                            weights[row + j] += learningRate * change;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateWeights(SparseVector incomingNodes, double[] deltas, int offset, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        int outgoingSize = getOutgoingSize();
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        for (int n = 0; n < indices.length && indices[n] < toIncomingNode; n++) {
+            if (indices[n] < fromIncomingNode) {
+                continue;
+            }
+            double node = values[n];
+            int row = indices[n] * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                double change = deltas[offset + j] * node;
+                weights[row + j] += learningRate * change;
+            }
+        }
+    }
+
+    @Override
+    public double getWeight(int incomingNode, int outgoingNode) {
+        return weights[incomingNode * getOutgoingSize() + outgoingNode];
+    }
+
+    @Override
+    public void setWeight(int incomingNode, int outgoingNode, double weight) {
+        weights[incomingNode * getOutgoingSize() + outgoingNode] = (float) weight;
+    }
+
+    /**
+     * @return Returns a double precision copy of the weights. Changes to the copy do not affect the layer
+     */
+    @Override
+    public double[] getWeights() {
+        double[] copy = new double[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            copy[i] = weights[i];
+        }
+        return copy;
+    }
+
+    /**
+     * Replaces the weights with single precision copies of the given weights
+     */
+    @Override
+    public void setWeights(double[] weights) {
+        if (weights.length != getIncomingSize() * getOutgoingSize()) {
+            throw new IllegalArgumentException("Expected " + getIncomingSize() * getOutgoingSize() + " weights but got " + weights.length);
+        }
+        float[] floatWeights = new float[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            floatWeights[i] = (float) weights[i];
+        }
+        this.weights = floatWeights;
+    }
+}
@@ -0,0 +1,117 @@
+package com.liemily.neuralnetwork.layers;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Read-only connection layer whose weights are read in place from a memory mapped model file rather than held on the heap.
+ *
+ * Processes mapping the same model share its pages through the operating system's page cache,
+ * and the weights add nothing to the heap or to garbage collection.
+ * As the weights cannot be changed, a network built from these layers can be activated but not trained
+ * @author Emily Li
+ */
+public class MappedConnectionLayer extends ConnectionLayer {
+    private final DoubleBuffer weights;
+
+    /**
+     * @param weights Row-major weight matrix, indexed by incomingNode * outgoingSize + outgoingNode
+     */
+    public MappedConnectionLayer(int incomingSize, int outgoingSize, DoubleBuffer weights) {
+        super(incomingSize, outgoingSize);
+        if (weights.remaining() != incomingSize * outgoingSize) {
+            throw new IllegalArgumentException("Expected " + incomingSize * outgoingSize + " weights but got " + weights.remaining());
+        }
+        this.weights = weights.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Each row of weights is copied out of the mapping once and reused for every row of the batch.
+     * The sums are accumulated in the same order as ConnectionLayer, so results match a heap backed layer exactly
+     */
+    @Override
+    public void propagate(double[] incomingNodes, double[] sums, int rows) {
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        double[] row = new double[outgoingSize];
+        Arrays.fill(sums, 0, rows * outgoingSize, 0.0);
+        for (int k = 0; k < incomingSize; k++) {
+            boolean rowRead = false;
+            for (int i = 0; i < rows; i++) {
+                double node = incomingNodes[i * incomingSize + k];
+                if (node == 0) {
+                    continue;
+                }
+                if (!rowRead) {
+                    readRow(k, row);
+                    rowRead = true;
+                }
+                addRow(node, row, sums, i * outgoingSize);
+            }
+        }
+    }
+
+    @Override
+    public void propagate(SparseVector incomingNodes, double[] sums, int offset) {
+        int outgoingSize = getOutgoingSize();
+        double[] row = new double[outgoingSize];
+        Arrays.fill(sums, offset, offset + outgoingSize, 0.0);
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        for (int n = 0; n < indices.length && indices[n] < getIncomingSize(); n++) {
+            readRow(indices[n], row);
+            addRow(values[n], row, sums, offset);
+        }
+    }
+
+    private void readRow(int incomingNode, double[] row) {
+        DoubleBuffer rowBuffer = weights.duplicate();
+        rowBuffer.position(incomingNode * row.length);
+        rowBuffer.get(row);
+    }
+
+    private void addRow(double node, double[] row, double[] sums, int offset) {
+        for (int j = 0; j < row.length; j++) {
+            double weight = row[j];
+            sums[offset + j] += node * (weight == 0 ? 1 : weight);
+        }
+    }
+
+    @Override
+    public void backPropagate(double[] deltas, double[] errors, int rows) {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only and cannot be trained");
+    }
+
+    @Override
+    public void updateWeights(double[] incomingNodes, double[] deltas, int rows, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only and cannot be trained");
+    }
+
+    @Override
+    public void updateWeights(SparseVector incomingNodes, double[] deltas, int offset, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only and cannot be trained");
+    }
+
+    @Override
+    public double getWeight(int incomingNode, int outgoingNode) {
+        return weights.get(incomingNode * getOutgoingSize() + outgoingNode);
+    }
+
+    @Override
+    public void setWeight(int incomingNode, int outgoingNode, double weight) {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only");
+    }
+
+    /**
+     * The weights are not held in an array, so they cannot be returned for modification
+     */
+    @Override
+    public double[] getWeights() {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only");
+    }
+
+    @Override
+    public void setWeights(double[] weights) {
+        throw new UnsupportedOperationException("Memory mapped weights are read-only");
+    }
+}
@@ -8,11 +8,21 @@ import java.util.Arrays;
  * @author Emily Li
  */
 public class NeuronLayer {
+    public static final double INITIAL_NODE_VALUE = 1;
+
     private double[] nodes;
 
     public NeuronLayer(int nodeSize) {
         nodes = new double[nodeSize];
-        Arrays.fill(nodes, 1);
+        Arrays.fill(nodes, INITIAL_NODE_VALUE);
+    }
+
+    /**
+     * Wraps an existing vector of node values without copying it
+     * @param nodes Node values, e.g. the output of a network activation
+     */
+    public NeuronLayer(double[] nodes) {
+        this.nodes = nodes;
     }
 
     public int size() { return nodes.length; }
@@ -0,0 +1,195 @@
+package com.liemily.neuralnetwork.layers;
+
+import java.util.Arrays;
+
+/**
+ * Read-only connection layer holding its weights as 8-bit integers, an eighth of the size of double weights.
+ *
+ * Each outgoing node's weights share one scale, chosen so that its largest weight maps to 127.
+ * During activation each row of incoming values is quantised the same way,
+ * the products are accumulated as integers and the total is scaled back once per outgoing node.
+ * Binarised image inputs are quantised exactly, so only the hidden layers' values lose precision.
+ *
+ * The layer is built from a trained ConnectionLayer and cannot be trained itself
+ * @author Emily Li
+ */
+public class QuantisedConnectionLayer extends ConnectionLayer {
+    private static final int MAX_QUANTISED_VALUE = 127;
+    // Block sizes keep a 128x512 tile of weights (64KB) cache resident while a batch passes over it
+    private static final int INCOMING_BLOCK_SIZE = 128;
+    private static final int OUTGOING_BLOCK_SIZE = 512;
+
+    private final byte[] weights;
+    private final double[] scales;
+
+    /**
+     * Quantises the weights of a trained connection layer
+     * @param connectionLayer Layer whose weights are quantised
+     */
+    public QuantisedConnectionLayer(ConnectionLayer connectionLayer) {
+        super(connectionLayer.getIncomingSize(), connectionLayer.getOutgoingSize());
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        if ((long) incomingSize * MAX_QUANTISED_VALUE * MAX_QUANTISED_VALUE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Incoming layer of size " + incomingSize + " is too large to accumulate as integers");
+        }
+
+        scales = new double[outgoingSize];
+        for (int k = 0; k < incomingSize; k++) {
+            for (int j = 0; j < outgoingSize; j++) {
+                scales[j] = Math.max(scales[j], Math.abs(getEffectiveWeight(connectionLayer, k, j)));
+            }
+        }
+        for (int j = 0; j < outgoingSize; j++) {
+            scales[j] /= MAX_QUANTISED_VALUE;
+        }
+
+        weights = new byte[incomingSize * outgoingSize];
+        for (int k = 0; k < incomingSize; k++) {
+            for (int j = 0; j < outgoingSize; j++) {
+                weights[k * outgoingSize + j] = (byte) Math.round(getEffectiveWeight(connectionLayer, k, j) / scales[j]);
+            }
+        }
+    }
+
+    /**
+     * A weight of exactly 0 is treated as 1 during activation, so it is quantised as 1
+     * rather than leaving small quantised weights to be mistaken for it
+     */
+    private static double getEffectiveWeight(ConnectionLayer connectionLayer, int incomingNode, int outgoingNode) {
+        double weight = connectionLayer.getWeight(incomingNode, outgoingNode);
+        return weight == 0 ? 1 : weight;
+    }
+
+    @Override
+    public void propagate(double[] incomingNodes, double[] sums, int rows) {
+        int incomingSize = getIncomingSize();
+        int outgoingSize = getOutgoingSize();
+        int[] quantisedNodes = new int[rows * incomingSize];
+        double[] nodeScales = new double[rows];
+        for (int i = 0; i < rows; i++) {
+            nodeScales[i] = quantise(incomingNodes, i * incomingSize, incomingSize, quantisedNodes);
+        }
+
+        int[] totals = new int[rows * outgoingSize];
+        for (int kBlock = 0; kBlock < incomingSize; kBlock += INCOMING_BLOCK_SIZE) {
+            int kEnd = Math.min(kBlock + INCOMING_BLOCK_SIZE, incomingSize);
+            for (int jBlock = 0; jBlock < outgoingSize; jBlock += OUTGOING_BLOCK_SIZE) {
+                int jEnd = Math.min(jBlock + OUTGOING_BLOCK_SIZE, outgoingSize);
+                for (int i = 0; i < rows; i++) {
+                    int incomingRow = i * incomingSize;
+                    int outgoingRow = i * outgoingSize;
+                    for (int k = kBlock; k < kEnd; k++) {
+                        int node = quantisedNodes[incomingRow + k];
+                        if (node == 0) {
+                            continue;
+                        }
+                        int row = k * outgoingSize;
+                        for (int j = jBlock; j < jEnd; j++) {
+                            totals[outgoingRow + j] += node * weights[row + j];
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < rows; i++) {
+            int outgoingRow = i * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                sums[outgoingRow + j] = totals[outgoingRow + j] * nodeScales[i] * scales[j];
+            }
+        }
+    }
+
+    @Override
+    public void propagate(SparseVector incomingNodes, double[] sums, int offset) {
+        int outgoingSize = getOutgoingSize();
+        int[] indices = incomingNodes.getIndices();
+        double[] values = incomingNodes.getValues();
+        int[] quantisedValues = new int[values.length];
+        double nodeScale = quantise(values, 0, values.length, quantisedValues);
+
+        int[] totals = new int[outgoingSize];
+        for (int n = 0; n < indices.length && indices[n] < getIncomingSize(); n++) {
+            int node = quantisedValues[n];
+            int row = indices[n] * outgoingSize;
+            for (int j = 0; j < outgoingSize; j++) {
+                totals[j] += node * weights[row + j];
+            }
+        }
+        for (int j = 0; j < outgoingSize; j++) {
+            sums[offset + j] = totals[j] * nodeScale * scales[j];
+        }
+    }
+
+    /**
+     * Quantises a row of node values so that the largest magnitude maps to 127
+     * @param nodes Array holding the node values
+     * @param offset Position of the first node, which is also where its quantised value is written
+     * @param length Number of nodes in the row
+     * @param quantisedNodes Array to write the quantised values to
+     * @return Returns the scale converting quantised values back to node values
+     */
+    private static double quantise(double[] nodes, int offset, int length, int[] quantisedNodes) {
+        double largest = 0.0;
+        for (int k = offset; k < offset + length; k++) {
+            largest = Math.max(largest, Math.abs(nodes[k]));
+        }
+        if (largest == 0) {
+            Arrays.fill(quantisedNodes, offset, offset + length, 0);
+            return 0.0;
+        }
+        double scale = largest / MAX_QUANTISED_VALUE;
+        for (int k = offset; k < offset + length; k++) {
+            quantisedNodes[k] = (int) Math.round(nodes[k] / scale);
+        }
+        return scale;
+    }
+
+    @Override
+    public void backPropagate(double[] deltas, double[] errors, int rows) {
+        throw new UnsupportedOperationException("Quantised weights are read-only and cannot be trained");
+    }
+
+    @Override
+    public void updateWeights(double[] incomingNodes, double[] deltas, int rows, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        throw new UnsupportedOperationException("Quantised weights are read-only and cannot be trained");
+    }
+
+    @Override
+    public void updateWeights(SparseVector incomingNodes, double[] deltas, int offset, double learningRate, int fromIncomingNode, int toIncomingNode) {
+        throw new UnsupportedOperationException("Quantised weights are read-only and cannot be trained");
+    }
+
+    /**
+     * @return Returns the weight as restored from its quantised value, with weights of 0 already replaced by 1
+     */
+    @Override
+    public double getWeight(int incomingNode, int outgoingNode) {
+        return weights[incomingNode * getOutgoingSize() + outgoingNode] * scales[outgoingNode];
+    }
+
+    @Override
+    public void setWeight(int incomingNode, int outgoingNode, double weight) {
+        throw new UnsupportedOperationException("Quantised weights are read-only");
+    }
+
+    /**
+     * @return Returns a copy of the weights as restored from their quantised values
+     */
+    @Override
+    public double[] getWeights() {
+        double[] copy = new double[weights.length];
+        for (int k = 0; k < getIncomingSize(); k++) {
+            for (int j = 0; j < getOutgoingSize(); j++) {
+                copy[k * getOutgoingSize() + j] = getWeight(k, j);
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public void setWeights(double[] weights) {
+        throw new UnsupportedOperationException("Quantised weights are read-only");
+    }
+}
@@ -0,0 +1,114 @@
+package com.liemily.neuralnetwork.layers;
+
+import java.util.Arrays;
+
+/**
+ * Sparse representation of a vector of node values, holding only the nodes that are not 0.
+ *
+ * Binarised images are mostly background, so an input layer represented this way
+ * lets a ConnectionLayer touch only the weight rows of the nodes that are set
+ * @author Emily Li
+ */
+public class SparseVector {
+    private final int size;
+    private final int[] indices;
+    private final double[] values;
+
+    /**
+     * @param size Size of the full vector
+     * @param indices Ascending indices of the non-zero nodes
+     * @param values Values of the non-zero nodes, in the same order as the indices
+     */
+    public SparseVector(int size, int[] indices, double[] values) {
+        if (indices.length != values.length) {
+            throw new IllegalArgumentException("Expected one value per index but got " + indices.length + " indices and " + values.length + " values");
+        }
+        this.size = size;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Creates a sparse vector from the non-zero values of a full vector
+     * @param nodes Full vector of node values
+     * @return Returns the sparse representation of the nodes
+     */
+    public static SparseVector of(double[] nodes) {
+        return of(nodes, 0, nodes.length);
+    }
+
+    /**
+     * Creates a sparse vector from the non-zero values of part of an array, such as one row of a matrix
+     * @param nodes Array holding the node values
+     * @param offset Position in the array of the first node
+     * @param length Number of nodes in the full vector
+     * @return Returns the sparse representation of the nodes
+     */
+    public static SparseVector of(double[] nodes, int offset, int length) {
+        int nonZeroCount = 0;
+        for (int i = offset; i < offset + length; i++) {
+            if (nodes[i] != 0) {
+                nonZeroCount++;
+            }
+        }
+
+        int[] indices = new int[nonZeroCount];
+        double[] values = new double[nonZeroCount];
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (nodes[offset + i] != 0) {
+                indices[n] = i;
+                values[n] = nodes[offset + i];
+                n++;
+            }
+        }
+        return new SparseVector(length, indices, values);
+    }
+
+    /**
+     * Writes the full vector into the given array, setting every other node to 0
+     * @param nodes Array of at least the vector's size
+     */
+    public void toNodes(double[] nodes) {
+        Arrays.fill(nodes, 0, size, 0.0);
+        for (int n = 0; n < indices.length; n++) {
+            nodes[indices[n]] = values[n];
+        }
+    }
+
+    /**
+     * Lengthens the vector, setting the added nodes to the given value, such as to pad an input that is shorter than its layer
+     * @param length Size of the lengthened vector
+     * @param value Value of every added node
+     * @return Returns this vector if it is already at least the given size, otherwise a new lengthened vector
+     */
+    public SparseVector pad(int length, double value) {
+        if (size >= length) {
+            return this;
+        }
+        int added = value == 0 ? 0 : length - size;
+        int[] paddedIndices = Arrays.copyOf(indices, indices.length + added);
+        double[] paddedValues = Arrays.copyOf(values, values.length + added);
+        for (int n = 0; n < added; n++) {
+            paddedIndices[indices.length + n] = size + n;
+            paddedValues[values.length + n] = value;
+        }
+        return new SparseVector(length, paddedIndices, paddedValues);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getNonZeroCount() {
+        return indices.length;
+    }
+
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+}
@@ -1,7 +1,9 @@
 package com.liemily.neuralnetwork.learning;
 
+import com.liemily.neuralnetwork.layers.ConnectionLayer;
 import com.liemily.neuralnetwork.networks.NeuralNetwork;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.training.TrainingBatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -12,7 +14,7 @@ import java.util.List;
  * Learning rule enabling back propagation through the network to correct error
  * @author Emily Li
  */
-public class BackPropagationLearningRule implements LearningRule {
+public class BackPropagationLearningRule implements BatchLearningRule {
     private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
 
     private double learningRate;
@@ -40,29 +42,93 @@ public class BackPropagationLearningRule implements LearningRule {
             connectingDelta[i] = getDelta(outputLayer.getNodes()[i], target.getNodes()[i]);
         }
 
-        NeuronLayer connectingLayer = outputLayer;
         for (int i = neuronLayers.size() - 2; i >= 0; i--) {
             NeuronLayer hiddenLayer = neuronLayers.get(i);
-            double[] hiddenDelta = new double[hiddenLayer.size()];
-            double[][] connectingWeights = neuralNetwork.getConnectionLayers().get(i).getWeights();
-
-            for (int j = 0; j < hiddenLayer.size(); j++) {
-                double error = 0.0;
-                for (int k = 0; k < connectingLayer.size(); k++) {
-                    error += connectingDelta[k] * connectingWeights[j][k];
-                    double change = connectingDelta[k] * hiddenLayer.getNodes()[j];
-                    connectingWeights[j][k] += learningRate * change;
+            double[] hiddenNodes = hiddenLayer.getNodes();
+            ConnectionLayer connectionLayer = neuralNetwork.getConnectionLayers().get(i);
+
+            // The input layer's deltas are never used, so only the hidden layers' errors are sent back
+            double[] hiddenDelta = null;
+            if (i > 0) {
+                hiddenDelta = new double[hiddenLayer.size()];
+                connectionLayer.backPropagate(connectingDelta, hiddenDelta, 1);
+                for (int j = 0; j < hiddenLayer.size(); j++) {
+                    hiddenDelta[j] = lambdaDerivative(hiddenNodes[j]) * hiddenDelta[j];
                 }
-                hiddenDelta[j] = lambdaDerivative(hiddenLayer.getNodes()[j]) * error;
             }
-            neuralNetwork.getConnectionLayers().get(i).setWeights(connectingWeights);
+            connectionLayer.updateWeights(hiddenNodes, connectingDelta, 1, learningRate, 0, connectionLayer.getIncomingSize());
             connectingDelta = hiddenDelta;
-            connectingLayer = hiddenLayer;
         }
         double error = getError(outputLayer, target);
         return error;
     }
 
+    /**
+     * Batch form of teach(NeuralNetwork, NeuronLayer).
+     * The deltas of every layer are found for the whole batch first using the current weights,
+     * then each weight is changed once by the sum of the changes the individual TrainingPairs would have made
+     * @param neuralNetwork NeuralNetwork to be trained. This is expected to be a feed forward network.
+     * @param batch TrainingBatch that has been activated by the neural network
+     * @return Returns the initial error between the batch's output layer values and targets
+     */
+    @Override
+    public double teach(NeuralNetwork neuralNetwork, TrainingBatch batch) {
+        double error = computeDeltas(neuralNetwork, batch);
+
+        List<ConnectionLayer> connectionLayers = neuralNetwork.getConnectionLayers();
+        for (int i = 0; i < connectionLayers.size(); i++) {
+            updateWeights(neuralNetwork, batch, i, 0, connectionLayers.get(i).getIncomingSize());
+        }
+        return error;
+    }
+
+    /**
+     * Fills the batch's deltas, starting with the output layer and moving back through the hidden layers
+     * @param neuralNetwork NeuralNetwork whose weights the errors are sent back through
+     * @param batch TrainingBatch that has been activated by the neural network
+     * @return Returns the error between the batch's output layer values and targets
+     */
+    @Override
+    public double computeDeltas(NeuralNetwork neuralNetwork, TrainingBatch batch) {
+        double[][] activations = batch.getActivations();
+        double[][] deltas = batch.getDeltas();
+        double[] targets = batch.getTargets();
+        int outputLayer = activations.length - 1;
+
+        double[] outputs = activations[outputLayer];
+        double[] outputDeltas = deltas[outputLayer];
+        double error = 0.0;
+        for (int i = 0; i < batch.size() * batch.getLayerSize(outputLayer); i++) {
+            outputDeltas[i] = getDelta(outputs[i], targets[i]);
+            error += learningRate * Math.pow(targets[i] - outputs[i], 2);
+        }
+
+        for (int i = outputLayer - 1; i > 0; i--) {
+            neuralNetwork.getConnectionLayers().get(i).backPropagate(deltas[i + 1], deltas[i], batch.size());
+            double[] hiddenNodes = activations[i];
+            double[] hiddenDeltas = deltas[i];
+            for (int j = 0; j < batch.size() * batch.getLayerSize(i); j++) {
+                hiddenDeltas[j] = lambdaDerivative(hiddenNodes[j]) * hiddenDeltas[j];
+            }
+        }
+        return error;
+    }
+
+    @Override
+    public void updateWeights(NeuralNetwork neuralNetwork, TrainingBatch batch, int connectionLayerIndex, int fromIncomingNode, int toIncomingNode) {
+        ConnectionLayer connectionLayer = neuralNetwork.getConnectionLayers().get(connectionLayerIndex);
+        double[] deltas = batch.getDeltas()[connectionLayerIndex + 1];
+        if (connectionLayerIndex == 0 && batch.isSparse()) {
+            for (int row = 0; row < batch.size(); row++) {
+                connectionLayer.updateWeights(batch.getSparseInputs()[row], deltas, row * connectionLayer.getOutgoingSize(),
+                        learningRate, fromIncomingNode, toIncomingNode);
+            }
+        } else {
+            connectionLayer.updateWeights(batch.getActivations()[connectionLayerIndex], deltas,
+                    batch.size(), learningRate, fromIncomingNode, toIncomingNode);
+        }
+    }
+
     @Override
     public double getDelta(double value, double target) {
         double error = target - value;
@@ -92,4 +158,8 @@ public class BackPropagationLearningRule implements LearningRule {
         double deriv = 1 - lambda(val);
         return deriv;
     }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
 }
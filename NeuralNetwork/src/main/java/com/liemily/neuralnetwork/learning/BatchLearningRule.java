@@ -0,0 +1,37 @@
+package com.liemily.neuralnetwork.learning;
+
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.training.TrainingBatch;
+
+/**
+ * Learning rule that is able to teach a neural network a whole batch of TrainingPairs with a single update of its weights
+ * @author Emily Li
+ */
+public interface BatchLearningRule extends LearningRule {
+	/**
+	 * Teaches the neural network according to a batch that has already been activated by the network
+	 * @param neuralNetwork Neural network to be trained
+	 * @param batch TrainingBatch holding the network's activations for each input and the target outputs
+	 * @return Total error of the batch before the weights were updated
+	 */
+	double teach(NeuralNetwork neuralNetwork, TrainingBatch batch);
+
+	/**
+	 * Fills the deltas of an activated batch using the network's current weights, without altering the weights
+	 * @param neuralNetwork Neural network the batch was activated by
+	 * @param batch TrainingBatch holding the network's activations for each input and the target outputs
+	 * @return Total error of the batch
+	 */
+	double computeDeltas(NeuralNetwork neuralNetwork, TrainingBatch batch);
+
+	/**
+	 * Applies the change a batch makes to part of one connection layer's weights, once its deltas have been computed.
+	 * Disjoint ranges of incoming nodes may be updated concurrently
+	 * @param neuralNetwork Neural network to be trained
+	 * @param batch TrainingBatch with deltas computed
+	 * @param connectionLayerIndex Index of the connection layer in the neural network
+	 * @param fromIncomingNode First incoming node whose weights are updated, inclusive
+	 * @param toIncomingNode Last incoming node whose weights are updated, exclusive
+	 */
+	void updateWeights(NeuralNetwork neuralNetwork, TrainingBatch batch, int connectionLayerIndex, int fromIncomingNode, int toIncomingNode);
+}
@@ -2,13 +2,17 @@ package com.liemily.neuralnetwork.networks;
 
 import com.liemily.neuralnetwork.layers.NeuronLayer;
 import com.liemily.neuralnetwork.layers.ConnectionLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
 import com.liemily.neuralnetwork.learning.LearningRule;
+import com.liemily.neuralnetwork.training.TrainingBatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
 /**
@@ -27,6 +31,14 @@ public abstract class NeuralNetwork {
     private List<ConnectionLayer> connectionLayers;
 
     public NeuralNetwork(LearningRule learningRule, int inputNodeSize, int hiddenNodeSize, int hiddenLayerCount, int outputNodeSize, double initWeightRange) {
+        this(learningRule, inputNodeSize, hiddenNodeSize, hiddenLayerCount, outputNodeSize, initWeightRange, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Creates a neural network whose initial weights are drawn from the given Random,
+     * so that a seeded Random produces the same network every time
+     */
+    public NeuralNetwork(LearningRule learningRule, int inputNodeSize, int hiddenNodeSize, int hiddenLayerCount, int outputNodeSize, double initWeightRange, Random random) {
         logger.debug("Creating neural network");
 
         this.learningRule = learningRule;
@@ -41,15 +53,15 @@ public abstract class NeuralNetwork {
         neuronLayers.addAll(hiddenLayers);
         neuronLayers.add(outputLayer);
 
-        ConnectionLayer inputToHiddenLayer = new ConnectionLayer(inputLayer, hiddenLayers.get(0), initWeightRange);
+        ConnectionLayer inputToHiddenLayer = new ConnectionLayer(inputLayer, hiddenLayers.get(0), initWeightRange, random);
         List<ConnectionLayer> hiddenConnectionLayers = new ArrayList<>();
         NeuronLayer connectingLayer = hiddenLayers.get(0);
         for (int i = 1; i < hiddenLayers.size(); i++) {
-            ConnectionLayer connectionLayer = new ConnectionLayer(connectingLayer, hiddenLayers.get(i), initWeightRange);
+            ConnectionLayer connectionLayer = new ConnectionLayer(connectingLayer, hiddenLayers.get(i), initWeightRange, random);
             hiddenConnectionLayers.add(connectionLayer);
             connectingLayer = hiddenLayers.get(i);
         }
-        ConnectionLayer hiddenToOutputLayer = new ConnectionLayer(connectingLayer, outputLayer, initWeightRange);
+        ConnectionLayer hiddenToOutputLayer = new ConnectionLayer(connectingLayer, outputLayer, initWeightRange, random);
 
         connectionLayers = new ArrayList<>();
         connectionLayers.add(inputToHiddenLayer);
@@ -59,11 +71,51 @@ public abstract class NeuralNetwork {
         logger.debug("Completed neural network creation");
     }
 
+    /**
+     * Creates a neural network from existing layers, such as those of a previously trained network
+     * @param learningRule Learning rule of the network
+     * @param neuronLayers Neuron layers, starting with the input layer and ending with the output layer
+     * @param connectionLayers Connection layers, one between each pair of consecutive neuron layers
+     */
+    public NeuralNetwork(LearningRule learningRule, List<NeuronLayer> neuronLayers, List<ConnectionLayer> connectionLayers) {
+        if (connectionLayers.size() != neuronLayers.size() - 1) {
+            throw new IllegalArgumentException("Expected " + (neuronLayers.size() - 1) + " connection layers but got " + connectionLayers.size());
+        }
+        this.learningRule = learningRule;
+        this.neuronLayers = neuronLayers;
+        this.connectionLayers = connectionLayers;
+    }
+
     /**
      * Activates the neural network, sending signals down the neuron layers and relevant connections
      */
     public abstract void activate();
 
+    /**
+     * Activates the neural network for a single input without altering the values of its neuron layers.
+     * The weights are only read, so this may be called by multiple threads at once
+     * @param input Values for the input layer. Values beyond the input layer's size are ignored,
+     *              and missing values take the initial node value
+     * @return Returns a new array holding the values of the output layer
+     */
+    public abstract double[] activate(double[] input);
+
+    /**
+     * Sparse form of activate(double[]), for inputs such as binarised images where most nodes are 0.
+     * Input nodes not held by the sparse vector are 0, and as for activate(double[]),
+     * an input shorter than the input layer is padded with the initial node value
+     * @param input Non-zero values of the input layer
+     * @return Returns a new array holding the values of the output layer
+     */
+    public abstract double[] activate(SparseVector input);
+
+    /**
+     * Activates the neural network for every input held by a batch,
+     * filling the batch's node values for each layer without altering the network's own neuron layers
+     * @param batch TrainingBatch whose inputs have been set
+     */
+    public abstract void activate(TrainingBatch batch);
+
     public NeuronLayer getInputLayer() {
         return neuronLayers.get(0);
     }
@@ -1,16 +1,32 @@
 package com.liemily.neuralnetwork.networks;
 
+import com.liemily.neuralnetwork.layers.ConnectionLayer;
+import com.liemily.neuralnetwork.layers.FloatConnectionLayer;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
+import com.liemily.neuralnetwork.learning.BatchLearningRule;
 import com.liemily.neuralnetwork.learning.LearningRule;
 import com.liemily.neuralnetwork.learning.SupervisedLearningInterface;
+import com.liemily.neuralnetwork.training.PackedTrainingSet;
+import com.liemily.neuralnetwork.training.TrainingBatch;
 import com.liemily.neuralnetwork.training.TrainingPair;
 import com.liemily.neuralnetwork.training.TrainingSet;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of a supervised feed forward network.
@@ -19,10 +35,49 @@ import java.util.List;
 public class SupervisedFeedForwardNetwork extends NeuralNetwork implements SupervisedLearningInterface {
     private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
 
+    private final ThreadLocal<double[][]> activationBuffers = ThreadLocal.withInitial(this::createActivationBuffers);
+    private int batchSize = 1;
+    private TrainingBatch trainingBatch;
+    private int parallelism = 1;
+    private boolean asynchronous;
+    private ForkJoinPool trainingPool;
+    private List<TrainingBatch> workerBatches;
+
     public SupervisedFeedForwardNetwork(LearningRule learningRule, int inputNodeSize, int hiddenNodeSize, int hiddenLayerCount, int outputNodeSize, double initWeightRange) {
         super(learningRule, inputNodeSize, hiddenNodeSize, hiddenLayerCount, outputNodeSize, initWeightRange);
     }
 
+    public SupervisedFeedForwardNetwork(LearningRule learningRule, int inputNodeSize, int hiddenNodeSize, int hiddenLayerCount, int outputNodeSize, double initWeightRange, Random random) {
+        super(learningRule, inputNodeSize, hiddenNodeSize, hiddenLayerCount, outputNodeSize, initWeightRange, random);
+    }
+
+    public SupervisedFeedForwardNetwork(LearningRule learningRule, List<NeuronLayer> neuronLayers, List<ConnectionLayer> connectionLayers) {
+        super(learningRule, neuronLayers, connectionLayers);
+    }
+
+    /**
+     * Creates a copy with its own neuron layers and weights, and the same learning rule and training settings,
+     * so that the copy can be trained while this network is still in use.
+     * Single precision weights are copied exactly and stay in single precision, and any other weights are copied as doubles
+     * @return Returns the copy
+     */
+    public SupervisedFeedForwardNetwork copy() {
+        List<NeuronLayer> neuronLayers = new ArrayList<>();
+        for (NeuronLayer neuronLayer : getNeuronLayers()) {
+            neuronLayers.add(new NeuronLayer(neuronLayer.getNodes().clone()));
+        }
+        List<ConnectionLayer> connectionLayers = new ArrayList<>();
+        for (ConnectionLayer connectionLayer : getConnectionLayers()) {
+            connectionLayers.add(connectionLayer instanceof FloatConnectionLayer ? new FloatConnectionLayer(connectionLayer)
+                    : new ConnectionLayer(connectionLayer.getIncomingSize(), connectionLayer.getOutgoingSize(), connectionLayer.getWeights().clone()));
+        }
+        SupervisedFeedForwardNetwork copy = new SupervisedFeedForwardNetwork(getLearningRule(), neuronLayers, connectionLayers);
+        copy.setBatchSize(batchSize);
+        copy.setParallelism(parallelism);
+        copy.setAsynchronous(asynchronous);
+        return copy;
+    }
+
     /**
      * Activates the neural network in a feed forward fashion.
      * The activation starts from the input layer and alters the values moving forward,
@@ -36,18 +91,114 @@ public class SupervisedFeedForwardNetwork extends NeuralNetwork implements Super
             logger.trace("Neuron layer values for layer " + i + " was " + Arrays.toString(getNeuronLayers().get(i).getNodes()));
             NeuronLayer neuronLayer = neuronLayers.get(i);
             NeuronLayer connectingLayer = neuronLayers.get(i-1);
+            activate(connectingLayer.getNodes(), neuronLayer.getNodes(), getConnectionLayers().get(i-1));
+            logger.trace("Neuron layer values for layer " + i + " is now " + Arrays.toString(getNeuronLayers().get(i).getNodes()));
+        }
+        logger.trace("Activated");
+    }
+
+    /**
+     * Activates the network for a single input using activation buffers owned by the calling thread,
+     * leaving the network's neuron layers untouched so that concurrent callers cannot affect each other's results
+     * @param input Values for the input layer
+     * @return Returns a new array holding the values of the output layer
+     */
+    @Override
+    public double[] activate(double[] input) {
+        double[][] buffers = activationBuffers.get();
+        double[] inputBuffer = buffers[0];
+        int copied = Math.min(input.length, inputBuffer.length);
+        System.arraycopy(input, 0, inputBuffer, 0, copied);
+        Arrays.fill(inputBuffer, copied, inputBuffer.length, NeuronLayer.INITIAL_NODE_VALUE);
 
-            for (int j = 0; j < neuronLayer.size(); j++) {
-                double sum = 0.0;
-                for (int k = 0; k < connectingLayer.size(); k++) {
-                    double weight = getConnectionLayers().get(i-1).getWeights()[k][j];
-                    sum += connectingLayer.getNodes()[k] * (weight == 0 ? 1 : weight);
+        return activateFromHiddenLayer(buffers, 1);
+    }
+
+    /**
+     * Activates the network for a single sparse input using activation buffers owned by the calling thread,
+     * so that only the weights of the input nodes that are set are read.
+     * As for activate(double[]), an input shorter than the input layer is padded with the initial node value
+     * @param input Non-zero values of the input layer
+     * @return Returns a new array holding the values of the output layer
+     */
+    @Override
+    public double[] activate(SparseVector input) {
+        double[][] buffers = activationBuffers.get();
+        double[] firstHiddenBuffer = buffers[1];
+        getConnectionLayers().get(0).propagate(input.pad(buffers[0].length, NeuronLayer.INITIAL_NODE_VALUE), firstHiddenBuffer, 0);
+        for (int j = 0; j < firstHiddenBuffer.length; j++) {
+            firstHiddenBuffer[j] = getLearningRule().lambda(firstHiddenBuffer[j]);
+        }
+        return activateFromHiddenLayer(buffers, 2);
+    }
+
+    /**
+     * Activates the remaining layers of the activation buffers once the earlier layers have been set.
+     * If the calling thread is interrupted, such as when a timed out identification is cancelled,
+     * activation stops before the next layer
+     * @param buffers Activation buffers of the calling thread
+     * @param firstLayer Index of the first layer still to be activated
+     * @return Returns a copy of the output layer's values
+     * @throws CancellationException If the calling thread was interrupted
+     */
+    private double[] activateFromHiddenLayer(double[][] buffers, int firstLayer) {
+        for (int i = firstLayer; i < buffers.length; i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Activation was interrupted before layer " + i);
+            }
+            activate(buffers[i-1], buffers[i], getConnectionLayers().get(i-1));
+        }
+        double[] outputBuffer = buffers[buffers.length-1];
+        return Arrays.copyOf(outputBuffer, outputBuffer.length);
+    }
+
+    /**
+     * Activates the network for each input of the batch at once, so that every weight is read once per batch
+     * rather than once per input. Sparse batches only read the input weights of the inputs that are set
+     * @param batch TrainingBatch whose inputs have been set
+     */
+    @Override
+    public void activate(TrainingBatch batch) {
+        double[][] activations = batch.getActivations();
+        for (int i = 1; i < activations.length; i++) {
+            ConnectionLayer connectionLayer = getConnectionLayers().get(i-1);
+            if (i == 1 && batch.isSparse()) {
+                for (int row = 0; row < batch.size(); row++) {
+                    connectionLayer.propagate(batch.getSparseInputs()[row], activations[i], row * batch.getLayerSize(i));
                 }
-                neuronLayer.getNodes()[j] = getLearningRule().lambda(sum);
+            } else {
+                connectionLayer.propagate(activations[i-1], activations[i], batch.size());
+            }
+            for (int j = 0; j < batch.size() * batch.getLayerSize(i); j++) {
+                activations[i][j] = getLearningRule().lambda(activations[i][j]);
             }
-            logger.trace("Neuron layer values for layer " + i + " is now " + Arrays.toString(getNeuronLayers().get(i).getNodes()));
         }
-        logger.trace("Activated");
+    }
+
+    /**
+     * Feeds the values of one layer forward through its connections into the next layer
+     * @param connectingNodes Values of the layer feeding into the connection layer
+     * @param nodes Values to be overwritten with the activated values of the next layer
+     * @param connectionLayer Weights between the two layers
+     */
+    private void activate(double[] connectingNodes, double[] nodes, ConnectionLayer connectionLayer) {
+        connectionLayer.propagate(connectingNodes, nodes);
+        for (int j = 0; j < nodes.length; j++) {
+            nodes[j] = getLearningRule().lambda(nodes[j]);
+        }
+    }
+
+    /**
+     * Creates one vector per neuron layer for a thread to activate the network with
+     * @return Returns the activation buffers, indexed in the same order as the neuron layers
+     */
+    private double[][] createActivationBuffers() {
+        List<NeuronLayer> neuronLayers = getNeuronLayers();
+        double[][] buffers = new double[neuronLayers.size()][];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new double[neuronLayers.get(i).size()];
+        }
+        return buffers;
     }
 
     /**
@@ -69,20 +220,230 @@ public class SupervisedFeedForwardNetwork extends NeuralNetwork implements Super
     }
 
     /**
-     * Trains the neural network on a training set, iterating over its TrainingPair's
+     * Trains the neural network on a training set, iterating over its TrainingPair's.
+     * If the batch size is greater than 1 and the learning rule supports it,
+     * the TrainingPair's are taught in batches with one update of the weights per batch.
+     * If asynchronous training is enabled, see trainAsynchronously(TrainingSet)
      * @param trainingSet TrainingSet, essentially of key-value pairs
      * @return Returns the total error produced by training all TrainingPair's
      */
     @Override
     public double train(TrainingSet trainingSet) {
         double error = 0.0;
-        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
-            error += train(trainingPair);
+        if (asynchronous && parallelism > 1 && getLearningRule() instanceof BatchLearningRule) {
+            error = trainAsynchronously(trainingSet);
+        } else if (batchSize > 1 && getLearningRule() instanceof BatchLearningRule && trainingSet.getTrainingPairs() instanceof RandomAccess) {
+            // Batches are taken as views of the list, so that TrainingPairs such as those of a PackedTrainingSet need not be expanded
+            List<TrainingPair> trainingPairs = (List<TrainingPair>) trainingSet.getTrainingPairs();
+            for (int from = 0; from < trainingPairs.size(); from += batchSize) {
+                error += train(trainingPairs.subList(from, Math.min(from + batchSize, trainingPairs.size())));
+            }
+        } else if (batchSize > 1 && getLearningRule() instanceof BatchLearningRule) {
+            List<TrainingPair> batchPairs = new ArrayList<>(batchSize);
+            for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+                batchPairs.add(trainingPair);
+                if (batchPairs.size() == batchSize) {
+                    error += train(batchPairs);
+                    batchPairs.clear();
+                }
+            }
+            if (!batchPairs.isEmpty()) {
+                error += train(batchPairs);
+            }
+        } else if (trainingSet.getTrainingPairs() instanceof PackedTrainingSet.PackedTrainingPairs) {
+            // Each input is expanded straight into the input layer, rather than into a new TrainingPair per sample
+            PackedTrainingSet.PackedTrainingPairs trainingPairs = (PackedTrainingSet.PackedTrainingPairs) trainingSet.getTrainingPairs();
+            PackedTrainingSet packedTrainingSet = trainingPairs.getTrainingSet();
+            int copied = Math.min(getInputLayer().size(), packedTrainingSet.getInputSize());
+            for (int i = 0; i < trainingPairs.size(); i++) {
+                int index = trainingPairs.getSetIndex(i);
+                packedTrainingSet.writeInput(index, getInputLayer().getNodes(), 0, copied);
+                error += teach(packedTrainingSet.getOutput(index));
+            }
+        } else {
+            for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+                error += train(trainingPair);
+            }
         }
         logger.debug("Error for the training set was " + error);
         return error;
     }
 
+    /**
+     * Trains on a batch of TrainingPair's by activating the network for all of their inputs together,
+     * then teaching the batch with a single update of the weights
+     * @param trainingPairs TrainingPair's to train with, no more than the batch size
+     * @return Returns the total error produced by teaching the network the batch
+     */
+    private double train(List<TrainingPair> trainingPairs) {
+        logger.debug("Training with batch of " + trainingPairs.size() + " training pairs");
+        if (parallelism > 1 && trainingPairs.size() > 1) {
+            return trainInParallel(trainingPairs);
+        }
+        if (trainingBatch == null || trainingBatch.getCapacity() != batchSize) {
+            trainingBatch = new TrainingBatch(this, batchSize);
+        }
+        trainingBatch.setTrainingPairs(trainingPairs);
+        activate(trainingBatch);
+        double error = ((BatchLearningRule) getLearningRule()).teach(this, trainingBatch);
+        logger.trace("Error for the batch was " + error);
+        return error;
+    }
+
+    /**
+     * Trains on a batch of TrainingPair's using the training pool.
+     *
+     * The batch is split into one shard per worker, each of which is activated and has its deltas computed
+     * in its own TrainingBatch using the current weights. The weight update is then split by incoming node,
+     * so each worker adds the changes from every shard, in shard order, to its own rows of each weight matrix.
+     * As no two workers write the same weight and the order of changes is fixed,
+     * the result is the same as training the batch on a single thread
+     * @param trainingPairs TrainingPair's to train with, no more than the batch size
+     * @return Returns the total error produced by teaching the network the batch
+     */
+    private double trainInParallel(List<TrainingPair> trainingPairs) {
+        BatchLearningRule learningRule = (BatchLearningRule) getLearningRule();
+        int shardCount = Math.min(parallelism, trainingPairs.size());
+        int shardSize = (trainingPairs.size() + shardCount - 1) / shardCount;
+        List<TrainingBatch> trainingShards = getWorkerBatches((batchSize + parallelism - 1) / parallelism);
+
+        List<Callable<Double>> deltaTasks = new ArrayList<>();
+        for (int i = 0; i * shardSize < trainingPairs.size(); i++) {
+            TrainingBatch shard = trainingShards.get(i);
+            List<TrainingPair> shardPairs = trainingPairs.subList(i * shardSize, Math.min((i + 1) * shardSize, trainingPairs.size()));
+            deltaTasks.add(() -> {
+                shard.setTrainingPairs(shardPairs);
+                activate(shard);
+                return learningRule.computeDeltas(this, shard);
+            });
+        }
+        double error = 0.0;
+        for (double shardError : invokeAll(deltaTasks)) {
+            error += shardError;
+        }
+
+        List<TrainingBatch> shards = trainingShards.subList(0, deltaTasks.size());
+        List<Callable<Void>> updateTasks = new ArrayList<>();
+        for (int i = 0; i < getConnectionLayers().size(); i++) {
+            int connectionLayerIndex = i;
+            int incomingSize = getConnectionLayers().get(i).getIncomingSize();
+            int rangeSize = (incomingSize + parallelism - 1) / parallelism;
+            for (int from = 0; from < incomingSize; from += rangeSize) {
+                int fromIncomingNode = from;
+                int toIncomingNode = Math.min(from + rangeSize, incomingSize);
+                updateTasks.add(() -> {
+                    shards.forEach(shard -> learningRule.updateWeights(this, shard, connectionLayerIndex, fromIncomingNode, toIncomingNode));
+                    return null;
+                });
+            }
+        }
+        invokeAll(updateTasks);
+
+        logger.trace("Error for the batch was " + error);
+        return error;
+    }
+
+    /**
+     * Trains on a training set Hogwild style, where each worker of the training pool repeatedly takes the next batch
+     * of TrainingPair's from the set and teaches it straight into the shared weights without any locking.
+     *
+     * Workers may overwrite each other's changes to a weight, which is accepted in exchange for never waiting on each other.
+     * As the inputs of black and white images are mostly 0, and weights from an input of 0 are never changed,
+     * collisions between workers are rare. Results are not reproducible between runs, even with a seeded network.
+     *
+     * Batches are taken as views of a random access list of TrainingPair's. Any other collection, such as one streamed
+     * from a file or created as it is read, is read through a single shared iterator, each worker copying its next batch
+     * from it in turn, so that no more than one batch per worker is held at once
+     * @param trainingSet TrainingSet, essentially of key-value pairs
+     * @return Returns the total error produced by training all TrainingPair's
+     */
+    private double trainAsynchronously(TrainingSet trainingSet) {
+        BatchLearningRule learningRule = (BatchLearningRule) getLearningRule();
+        List<TrainingPair> trainingPairs = trainingSet.getTrainingPairs() instanceof RandomAccess
+                ? (List<TrainingPair>) trainingSet.getTrainingPairs() : null;
+        Iterator<TrainingPair> sharedIterator = trainingPairs == null ? trainingSet.getTrainingPairs().iterator() : null;
+        AtomicInteger nextPair = new AtomicInteger();
+
+        List<Callable<WorkerResult>> workerTasks = new ArrayList<>();
+        for (TrainingBatch workerBatch : getWorkerBatches(batchSize)) {
+            workerTasks.add(() -> {
+                long startTime = System.nanoTime();
+                WorkerResult workerResult = new WorkerResult();
+                List<TrainingPair> copiedPairs = new ArrayList<>(batchSize);
+                while (true) {
+                    if (trainingPairs != null) {
+                        int from = nextPair.getAndAdd(batchSize);
+                        if (from >= trainingPairs.size()) {
+                            break;
+                        }
+                        workerBatch.setTrainingPairs(trainingPairs.subList(from, Math.min(from + batchSize, trainingPairs.size())));
+                    } else {
+                        copiedPairs.clear();
+                        synchronized (sharedIterator) {
+                            while (copiedPairs.size() < batchSize && sharedIterator.hasNext()) {
+                                copiedPairs.add(sharedIterator.next());
+                            }
+                        }
+                        if (copiedPairs.isEmpty()) {
+                            break;
+                        }
+                        workerBatch.setTrainingPairs(copiedPairs);
+                    }
+                    activate(workerBatch);
+                    workerResult.error += learningRule.teach(this, workerBatch);
+                    workerResult.trainedPairs += workerBatch.size();
+                }
+                workerResult.elapsedNanos = System.nanoTime() - startTime;
+                return workerResult;
+            });
+        }
+
+        double error = 0.0;
+        List<WorkerResult> workerResults = invokeAll(workerTasks);
+        for (int i = 0; i < workerResults.size(); i++) {
+            WorkerResult workerResult = workerResults.get(i);
+            error += workerResult.error;
+            logger.info("Worker " + (i+1) + "/" + workerResults.size() + " trained " + workerResult.trainedPairs
+                    + " training pairs at " + String.format("%.1f", workerResult.getPairsPerSecond()) + " training pairs/sec");
+        }
+        return error;
+    }
+
+    /**
+     * Provides one TrainingBatch per worker of the training pool, reusing the previous batches where possible
+     * @param capacity Number of TrainingPair's each batch must be able to hold
+     * @return Returns a TrainingBatch for each worker
+     */
+    private List<TrainingBatch> getWorkerBatches(int capacity) {
+        if (workerBatches == null || workerBatches.get(0).getCapacity() != capacity) {
+            workerBatches = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++) {
+                workerBatches.add(new TrainingBatch(this, capacity));
+            }
+        }
+        return workerBatches;
+    }
+
+    /**
+     * Runs the tasks on the training pool, waiting for all of them to complete
+     * @param tasks Tasks to run
+     * @return Returns the results of the tasks in the order they were given
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        for (Future<T> future : trainingPool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while training", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to train batch", e.getCause());
+            }
+        }
+        return results;
+    }
+
     /**
      * Trains on a single TrainingPair by first setting the neural network's values with that of the TrainingPair's input,
      * activating the network using this input,
@@ -94,11 +455,85 @@ public class SupervisedFeedForwardNetwork extends NeuralNetwork implements Super
     public double train(TrainingPair trainingPair) {
         logger.debug("Training with training pair '" + trainingPair.getName() + "'");
         setInputValues(trainingPair.getInput());
+        return teach(trainingPair.getOutput());
+    }
+
+    /**
+     * Activates the network for the values already in its input layer, then teaches it the desired output
+     * @param output Desired output
+     * @return Returns the error produced by teaching the network as per the LearningRule
+     */
+    private double teach(NeuronLayer output) {
         activate();
         logger.debug("Output layer is " + getOutputLayer());
-        logger.debug("Desired output is " + trainingPair.getOutput());
-        double error = getLearningRule().teach(this, trainingPair.getOutput());
+        logger.debug("Desired output is " + output);
+        double error = getLearningRule().teach(this, output);
         logger.trace("Error for the training pair was " + error);
         return error;
     }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of TrainingPair's taught per update of the weights when training on a TrainingSet
+     * @param batchSize Number of TrainingPair's per batch, where 1 teaches each TrainingPair individually
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1 but was " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of threads used to train each batch.
+     * Parallel training only applies when training in batches, see setBatchSize(int)
+     * @param parallelism Number of threads, where 1 trains on the calling thread
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1 but was " + parallelism);
+        }
+        if (trainingPool != null) {
+            trainingPool.shutdown();
+            trainingPool = null;
+        }
+        this.parallelism = parallelism;
+        workerBatches = null;
+        if (parallelism > 1) {
+            trainingPool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * Sets whether training with more than one thread should be asynchronous, see trainAsynchronously(TrainingSet),
+     * rather than splitting each batch between the threads
+     * @param asynchronous true to let each thread update the weights independently
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * Progress made by a single worker during asynchronous training
+     */
+    private static class WorkerResult {
+        private double error;
+        private int trainedPairs;
+        private long elapsedNanos;
+
+        private double getPairsPerSecond() {
+            return elapsedNanos == 0 ? 0 : trainedPairs / (elapsedNanos / 1e9);
+        }
+    }
 }
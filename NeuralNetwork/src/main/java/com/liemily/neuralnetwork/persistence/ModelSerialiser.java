@@ -0,0 +1,272 @@
+package com.liemily.neuralnetwork.persistence;
+
+import com.liemily.neuralnetwork.layers.ConnectionLayer;
+import com.liemily.neuralnetwork.layers.MappedConnectionLayer;
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Saves and loads neural networks in a compact, versioned binary model format,
+ * so that a trained network can be reused without training it again.
+ *
+ * The format is big-endian and laid out as:
+ * magic number, format version, activation, learning rule, learning rate,
+ * number of neuron layers followed by the size of each, padding up to a multiple of 8 bytes,
+ * then the row-major weights of each connection layer in order.
+ * The padding keeps the weights 8-byte aligned so that they can be read in place
+ * @author Emily Li
+ */
+public class ModelSerialiser {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int MAGIC_NUMBER = 0x434E4E4D;
+    public static final int VERSION = 1;
+    public static final int SIGMOID_ACTIVATION = 1;
+    public static final int BACK_PROPAGATION_LEARNING_RULE = 1;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Saves the network to a file. The model is written to a temporary file first and moved into place,
+     * so a model file being read is never partially written
+     * @param neuralNetwork Network to save, which must use a BackPropagationLearningRule
+     * @param path Location of the model file
+     * @throws IOException
+     */
+    public void save(NeuralNetwork neuralNetwork, Path path) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tempPath), CHUNK_SIZE)) {
+            write(neuralNetwork, outputStream);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Saved model to " + path.toAbsolutePath());
+    }
+
+    /**
+     * Writes the network in the model format
+     * @param neuralNetwork Network to write, which must use a BackPropagationLearningRule
+     * @param outputStream Stream to write to, which is left open
+     * @throws IOException
+     */
+    public void write(NeuralNetwork neuralNetwork, OutputStream outputStream) throws IOException {
+        if (!(neuralNetwork.getLearningRule() instanceof BackPropagationLearningRule)) {
+            throw new IllegalArgumentException("Only networks using " + BackPropagationLearningRule.class.getSimpleName() + " can be saved");
+        }
+        BackPropagationLearningRule learningRule = (BackPropagationLearningRule) neuralNetwork.getLearningRule();
+
+        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+        dataOutputStream.writeInt(MAGIC_NUMBER);
+        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(SIGMOID_ACTIVATION);
+        dataOutputStream.writeInt(BACK_PROPAGATION_LEARNING_RULE);
+        dataOutputStream.writeDouble(learningRule.getLearningRate());
+
+        List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+        dataOutputStream.writeInt(neuronLayers.size());
+        for (NeuronLayer neuronLayer : neuronLayers) {
+            dataOutputStream.writeInt(neuronLayer.size());
+        }
+        for (int i = getHeaderSize(neuronLayers.size()); i < getWeightsOffset(neuronLayers.size()); i++) {
+            dataOutputStream.writeByte(0);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        for (ConnectionLayer connectionLayer : neuralNetwork.getConnectionLayers()) {
+            double[] weights = connectionLayer.getWeights();
+            for (int offset = 0; offset < weights.length; offset += CHUNK_SIZE / Double.BYTES) {
+                int count = Math.min(CHUNK_SIZE / Double.BYTES, weights.length - offset);
+                buffer.clear();
+                buffer.asDoubleBuffer().put(weights, offset, count);
+                dataOutputStream.write(buffer.array(), 0, count * Double.BYTES);
+            }
+        }
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Loads a network from a model file
+     * @param path Location of the model file
+     * @return Returns the network described by the model file
+     * @throws IOException If the file cannot be read or is not a supported model file
+     */
+    public SupervisedFeedForwardNetwork load(Path path) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(path), CHUNK_SIZE)) {
+            SupervisedFeedForwardNetwork neuralNetwork = read(inputStream);
+            logger.info("Loaded model from " + path.toAbsolutePath());
+            return neuralNetwork;
+        }
+    }
+
+    /**
+     * Loads a network whose weights are read in place from a memory mapped model file instead of being copied to the heap.
+     * The network starts without reading its weights, and processes mapping the same file share its pages,
+     * but the network can only be activated and not trained
+     * @param path Location of the model file
+     * @return Returns the network described by the model file, backed by MappedConnectionLayers
+     * @throws IOException If the file cannot be read or is not a supported model file
+     */
+    public SupervisedFeedForwardNetwork map(Path path) throws IOException {
+        ModelHeader header;
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            header = readHeader(dataInputStream);
+        }
+        int[] layerSizes = header.getLayerSizes();
+
+        List<NeuronLayer> neuronLayers = new ArrayList<>();
+        for (int layerSize : layerSizes) {
+            neuronLayers.add(new NeuronLayer(layerSize));
+        }
+
+        List<ConnectionLayer> connectionLayers = new ArrayList<>();
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = getWeightsOffset(layerSizes.length);
+            for (int i = 1; i < layerSizes.length; i++) {
+                long weightsSize = (long) layerSizes[i - 1] * layerSizes[i] * Double.BYTES;
+                if (weightsSize > Integer.MAX_VALUE) {
+                    throw new IOException("Connection layer " + (i - 1) + " is too large to be memory mapped");
+                }
+                if (position + weightsSize > fileChannel.size()) {
+                    throw new IOException("Model file is truncated");
+                }
+                // A mapping remains valid once its channel is closed
+                MappedByteBuffer mappedWeights = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, weightsSize);
+                connectionLayers.add(new MappedConnectionLayer(layerSizes[i - 1], layerSizes[i], mappedWeights.asDoubleBuffer()));
+                position += weightsSize;
+            }
+        }
+
+        logger.info("Memory mapped model from " + path.toAbsolutePath());
+        return new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(header.getLearningRate()), neuronLayers, connectionLayers);
+    }
+
+    /**
+     * Reads a network written in the model format
+     * @param inputStream Stream to read from, which is left open
+     * @return Returns the network described by the stream
+     * @throws IOException If the stream cannot be read or is not in a supported model format
+     */
+    public SupervisedFeedForwardNetwork read(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        ModelHeader header = readHeader(dataInputStream);
+
+        List<NeuronLayer> neuronLayers = new ArrayList<>();
+        for (int layerSize : header.getLayerSizes()) {
+            neuronLayers.add(new NeuronLayer(layerSize));
+        }
+
+        byte[] chunk = new byte[CHUNK_SIZE];
+        List<ConnectionLayer> connectionLayers = new ArrayList<>();
+        for (int i = 1; i < header.getLayerSizes().length; i++) {
+            int incomingSize = header.getLayerSizes()[i - 1];
+            int outgoingSize = header.getLayerSizes()[i];
+            double[] weights = new double[incomingSize * outgoingSize];
+            for (int offset = 0; offset < weights.length; offset += CHUNK_SIZE / Double.BYTES) {
+                int count = Math.min(CHUNK_SIZE / Double.BYTES, weights.length - offset);
+                dataInputStream.readFully(chunk, 0, count * Double.BYTES);
+                ByteBuffer.wrap(chunk, 0, count * Double.BYTES).asDoubleBuffer().get(weights, offset, count);
+            }
+            connectionLayers.add(new ConnectionLayer(incomingSize, outgoingSize, weights));
+        }
+
+        return new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(header.getLearningRate()), neuronLayers, connectionLayers);
+    }
+
+    /**
+     * Reads and validates the header of a model, leaving the stream positioned at the first weight
+     * @param dataInputStream Stream positioned at the start of a model
+     * @return Returns the header's values
+     * @throws IOException If the stream cannot be read or the header is not supported
+     */
+    protected ModelHeader readHeader(DataInputStream dataInputStream) throws IOException {
+        if (dataInputStream.readInt() != MAGIC_NUMBER) {
+            throw new IOException("Not a neural network model");
+        }
+        int version = dataInputStream.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model version " + version + ", expected " + VERSION);
+        }
+        int activation = dataInputStream.readInt();
+        if (activation != SIGMOID_ACTIVATION) {
+            throw new IOException("Unsupported activation " + activation);
+        }
+        int learningRule = dataInputStream.readInt();
+        if (learningRule != BACK_PROPAGATION_LEARNING_RULE) {
+            throw new IOException("Unsupported learning rule " + learningRule);
+        }
+        double learningRate = dataInputStream.readDouble();
+
+        int layerCount = dataInputStream.readInt();
+        if (layerCount < 2) {
+            throw new IOException("A model needs at least 2 neuron layers but has " + layerCount);
+        }
+        int[] layerSizes = new int[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            layerSizes[i] = dataInputStream.readInt();
+            if (layerSizes[i] < 1) {
+                throw new IOException("Neuron layer " + i + " has invalid size " + layerSizes[i]);
+            }
+            if (i > 0 && (long) layerSizes[i - 1] * layerSizes[i] > Integer.MAX_VALUE) {
+                throw new IOException("Connection layer " + (i - 1) + " has too many weights: " + layerSizes[i - 1] + " x " + layerSizes[i]);
+            }
+        }
+        dataInputStream.readFully(new byte[getWeightsOffset(layerCount) - getHeaderSize(layerCount)]);
+        return new ModelHeader(learningRate, layerSizes);
+    }
+
+    /**
+     * @param layerCount Number of neuron layers in the model
+     * @return Returns the size of the header before padding: five ints, the learning rate and the layer sizes
+     */
+    private static int getHeaderSize(int layerCount) {
+        return 5 * Integer.BYTES + Double.BYTES + layerCount * Integer.BYTES;
+    }
+
+    /**
+     * @param layerCount Number of neuron layers in the model
+     * @return Returns the position in the model of the first weight
+     */
+    protected static int getWeightsOffset(int layerCount) {
+        int headerSize = getHeaderSize(layerCount);
+        return (headerSize + Double.BYTES - 1) / Double.BYTES * Double.BYTES;
+    }
+
+    /**
+     * Values read from the header of a model
+     */
+    protected static class ModelHeader {
+        private final double learningRate;
+        private final int[] layerSizes;
+
+        private ModelHeader(double learningRate, int[] layerSizes) {
+            this.learningRate = learningRate;
+            this.layerSizes = layerSizes;
+        }
+
+        public double getLearningRate() {
+            return learningRate;
+        }
+
+        public int[] getLayerSizes() {
+            return layerSizes;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.liemily.neuralnetwork.quantisation;
+
+import com.liemily.neuralnetwork.layers.ConnectionLayer;
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.QuantisedConnectionLayer;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Post-training quantisation of neural networks for inference.
+ *
+ * A quantised network holds 8-bit weights and accumulates its weighted sums as integers,
+ * so it is smaller and faster to activate than the trained network, but can no longer be trained
+ * @author Emily Li
+ */
+public class NetworkQuantiser {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    /**
+     * Creates a quantised copy of a trained network, leaving the trained network unchanged
+     * @param neuralNetwork Trained network
+     * @return Returns a network with the same layers and learning rule, whose weights are quantised
+     */
+    public SupervisedFeedForwardNetwork quantise(NeuralNetwork neuralNetwork) {
+        List<NeuronLayer> neuronLayers = new ArrayList<>();
+        for (NeuronLayer neuronLayer : neuralNetwork.getNeuronLayers()) {
+            neuronLayers.add(new NeuronLayer(neuronLayer.size()));
+        }
+        List<ConnectionLayer> connectionLayers = new ArrayList<>();
+        for (ConnectionLayer connectionLayer : neuralNetwork.getConnectionLayers()) {
+            connectionLayers.add(new QuantisedConnectionLayer(connectionLayer));
+        }
+        logger.info("Quantised network with " + connectionLayers.size() + " connection layers");
+        return new SupervisedFeedForwardNetwork(neuralNetwork.getLearningRule(), neuronLayers, connectionLayers);
+    }
+
+    /**
+     * Compares the classifications of two networks, such as a trained network and its quantised copy
+     * @param referenceNetwork Network whose classifications are taken as correct
+     * @param neuralNetwork Network being compared
+     * @param trainingSet TrainingSet whose inputs are classified by both networks
+     * @return Returns the proportion of inputs for which both networks' largest output node is the same,
+     *          or 1 if there are no inputs
+     */
+    public double getTopOneAgreement(NeuralNetwork referenceNetwork, NeuralNetwork neuralNetwork, TrainingSet trainingSet) {
+        int agreements = 0;
+        int total = 0;
+        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+            double[] input = trainingPair.getInput().getNodes();
+            if (getLargestNode(referenceNetwork.activate(input)) == getLargestNode(neuralNetwork.activate(input))) {
+                agreements++;
+            }
+            total++;
+        }
+        double agreement = total == 0 ? 1.0 : (double) agreements / total;
+        logger.info("Networks agree on the top classification of " + agreements + " of " + total + " inputs");
+        return agreement;
+    }
+
+    private static int getLargestNode(double[] nodes) {
+        int largest = 0;
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodes[i] > nodes[largest]) {
+                largest = i;
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,242 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+
+import java.util.*;
+
+/**
+ * Compact TrainingSet for binary inputs, such as black and white images.
+ *
+ * Each input is stored as a bitset, 64 nodes to a long, rather than as a double per node,
+ * and each output is stored as the index of a class whose output layer is shared by every TrainingPair of that class.
+ * TrainingPairs are only expanded when they are read: a TrainingBatch copies the bits straight into its own buffers,
+ * while anything else reading the set is given a newly expanded TrainingPair
+ * @author Emily Li
+ */
+public class PackedTrainingSet extends TrainingSet {
+    private final int inputSize;
+    private final int wordsPerInput;
+    private long[] inputs;
+    private int[] classes;
+    private int size;
+
+    private final List<NeuronLayer> classOutputs = new ArrayList<>();
+    private final List<Enum> classNames = new ArrayList<>();
+    private final Map<NeuronLayer, Integer> classIndices = new HashMap<>();
+
+    /**
+     * @param inputSize Number of nodes in every input
+     */
+    public PackedTrainingSet(int inputSize) {
+        super(Collections.emptyList());
+        this.inputSize = inputSize;
+        this.wordsPerInput = (inputSize + Long.SIZE - 1) / Long.SIZE;
+        this.inputs = new long[16 * wordsPerInput];
+        this.classes = new int[16];
+    }
+
+    /**
+     * Packs a TrainingPair into the set. The TrainingPair itself is not kept.
+     * As in a TrainingBatch, inputs smaller than the input size are padded with the initial node value,
+     * and larger inputs are truncated
+     * @param trainingPair TrainingPair whose input holds only the node values 0 and 1
+     */
+    @Override
+    public void addTrainingPair(TrainingPair trainingPair) {
+        ensureCapacity();
+        packInput(trainingPair.getInput().getNodes(), inputSize, inputs, size * wordsPerInput);
+        classes[size] = addClass(trainingPair.getName(), trainingPair.getOutput());
+        size++;
+    }
+
+    /**
+     * Adds a TrainingPair whose input is already packed, such as one read from a cache, without expanding it
+     * @param name Name of the TrainingPair
+     * @param words Input of exactly the input size, packed as by getInputWords
+     * @param output Output layer of the TrainingPair
+     */
+    public void addTrainingPair(Enum name, long[] words, NeuronLayer output) {
+        if (words.length != wordsPerInput) {
+            throw new IllegalArgumentException("Expected " + wordsPerInput + " words of input but got " + words.length);
+        }
+        if (inputSize % Long.SIZE != 0 && words[wordsPerInput - 1] >>> (inputSize % Long.SIZE) != 0) {
+            throw new IllegalArgumentException("Packed input has nodes beyond the input size of " + inputSize);
+        }
+        ensureCapacity();
+        System.arraycopy(words, 0, inputs, size * wordsPerInput, wordsPerInput);
+        classes[size] = addClass(name, output);
+        size++;
+    }
+
+    private void ensureCapacity() {
+        if (size == classes.length) {
+            classes = Arrays.copyOf(classes, size * 2);
+            inputs = Arrays.copyOf(inputs, size * 2 * wordsPerInput);
+        }
+    }
+
+    private int addClass(Enum name, NeuronLayer output) {
+        Integer classIndex = classIndices.get(output);
+        if (classIndex == null) {
+            classIndex = classOutputs.size();
+            classOutputs.add(output);
+            classNames.add(name);
+            classIndices.put(output, classIndex);
+        }
+        return classIndex;
+    }
+
+    /**
+     * Packs the node values of an input into words of 64 bits, padding or truncating it to the input size
+     * @param nodes Node values, which must all be 0 or 1
+     * @param inputSize Number of nodes to pack
+     * @param words Array to write the packed words to, which must be zero where they are written
+     * @param offset Position in the array of the first word
+     */
+    static void packInput(double[] nodes, int inputSize, long[] words, int offset) {
+        if (nodes.length != inputSize) {
+            int copied = Math.min(nodes.length, inputSize);
+            nodes = Arrays.copyOf(nodes, inputSize);
+            Arrays.fill(nodes, copied, inputSize, NeuronLayer.INITIAL_NODE_VALUE);
+        }
+        for (int n = 0; n < inputSize; n++) {
+            if (nodes[n] == 1) {
+                words[offset + n / Long.SIZE] |= 1L << (n % Long.SIZE);
+            } else if (nodes[n] != 0) {
+                Arrays.fill(words, offset, offset + (inputSize + Long.SIZE - 1) / Long.SIZE, 0L);
+                throw new IllegalArgumentException("Only inputs of 0 and 1 can be packed, but node " + n + " is " + nodes[n]);
+            }
+        }
+    }
+
+    /**
+     * @return Returns a read-only list of the set's TrainingPairs, each of which is expanded when it is read
+     */
+    @Override
+    public List<TrainingPair> getTrainingPairs() {
+        return new PackedTrainingPairs(0, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Writes the input of a TrainingPair into an array, such as one row of a batch.
+     * Nodes beyond the input size are given the initial node value, and nodes beyond the length are left out
+     * @param index Index of the TrainingPair
+     * @param nodes Array to write the node values to
+     * @param offset Position in the array of the first node
+     * @param length Number of nodes to write
+     */
+    public void writeInput(int index, double[] nodes, int offset, int length) {
+        int inputOffset = index * wordsPerInput;
+        int copied = Math.min(length, inputSize);
+        for (int n = 0; n < copied; n++) {
+            nodes[offset + n] = (inputs[inputOffset + n / Long.SIZE] >>> (n % Long.SIZE) & 1L) == 0 ? 0 : 1;
+        }
+        Arrays.fill(nodes, offset + copied, offset + length, NeuronLayer.INITIAL_NODE_VALUE);
+    }
+
+    /**
+     * Copies the packed input of a TrainingPair, one bit per node from the lowest bit of the first word
+     * @param index Index of the TrainingPair
+     * @param words Array of at least the number of words per input to copy the input to
+     */
+    public void getInputWords(int index, long[] words) {
+        System.arraycopy(inputs, index * wordsPerInput, words, 0, wordsPerInput);
+    }
+
+    /**
+     * @return Returns the number of 64 bit words each packed input takes
+     */
+    public int getWordsPerInput() {
+        return wordsPerInput;
+    }
+
+    /**
+     * @param index Index of the TrainingPair
+     * @return Returns the name of the TrainingPair's class
+     */
+    public Enum getName(int index) {
+        return classNames.get(classes[index]);
+    }
+
+    /**
+     * @param index Index of the TrainingPair
+     * @return Returns the output layer of the TrainingPair's class, which is shared and must not be changed
+     */
+    public NeuronLayer getOutput(int index) {
+        return classOutputs.get(classes[index]);
+    }
+
+    /**
+     * @param index Index of the TrainingPair
+     * @return Returns the index of the TrainingPair's class, in the order the classes were first added
+     */
+    public int getClassIndex(int index) {
+        return classes[index];
+    }
+
+    /**
+     * Expands a TrainingPair into a new input layer
+     * @param index Index of the TrainingPair
+     * @return Returns the TrainingPair, sharing its output layer with the rest of its class
+     */
+    public TrainingPair getTrainingPair(int index) {
+        double[] nodes = new double[inputSize];
+        writeInput(index, nodes, 0, inputSize);
+        return new TrainingPair(classNames.get(classes[index]), new NeuronLayer(nodes), getOutput(index));
+    }
+
+    /**
+     * Read-only view of a range of the set's TrainingPairs.
+     * Views of a range are also PackedTrainingPairs, so that a batch taken from the set can still be copied from its bits
+     */
+    public class PackedTrainingPairs extends AbstractList<TrainingPair> implements RandomAccess {
+        private final int from;
+        private final int to;
+
+        private PackedTrainingPairs(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public TrainingPair get(int index) {
+            return getTrainingPair(getSetIndex(index));
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public List<TrainingPair> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException("Range " + fromIndex + " to " + toIndex + " is outside a list of size " + size());
+            }
+            return new PackedTrainingPairs(from + fromIndex, from + toIndex);
+        }
+
+        /**
+         * @param index Index in this view
+         * @return Returns the index in the PackedTrainingSet
+         */
+        public int getSetIndex(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + " is outside a list of size " + size());
+            }
+            return from + index;
+        }
+
+        public PackedTrainingSet getTrainingSet() {
+            return PackedTrainingSet.this;
+        }
+    }
+}
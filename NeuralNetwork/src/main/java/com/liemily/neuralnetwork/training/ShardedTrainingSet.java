@@ -0,0 +1,251 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Read-only TrainingSet of binary inputs that is streamed from a memory mapped shard file written by a TrainingShardWriter,
+ * so that training sets larger than the heap can be trained on.
+ *
+ * The format is big-endian and laid out as:
+ * magic number, format version, input size, output size, block size, number of TrainingPairs,
+ * position of the class table, then each TrainingPair as its class index followed by its input packed 64 nodes to a long,
+ * and finally the class table holding the name and output layer of each class.
+ *
+ * Each iteration over the TrainingPairs, such as each training iteration, visits them in a new order.
+ * The blocks of the file are visited in a shuffled order, and the TrainingPairs of the blocks being read are
+ * shuffled within a buffer of limited size, so that reads stay close together in the file.
+ * Only the indices of the buffered TrainingPairs are held in memory, and each TrainingPair is expanded when it is reached.
+ *
+ * Asynchronous training shares a single iteration between its threads, so the shard is streamed in the same order
+ * rather than copied to the heap
+ * @author Emily Li
+ */
+public class ShardedTrainingSet extends TrainingSet {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int MAGIC_NUMBER = 0x43534844;
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private final int inputSize;
+    private final int outputSize;
+    private final int blockSize;
+    private final int size;
+    private final int recordSize;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer[] segments;
+    private final int shuffleBufferSize;
+    private final Random random;
+
+    private final List<NeuronLayer> classOutputs = new ArrayList<>();
+    private final List<Enum> classNames = new ArrayList<>();
+
+    /**
+     * @param path Location of the shard file
+     * @param shuffleBufferSize Number of TrainingPairs shuffled together while iterating, where 1 only shuffles the blocks
+     * @param random Random used to shuffle each iteration
+     * @throws IOException If the file cannot be read or is not a supported shard file
+     */
+    public ShardedTrainingSet(Path path, int shuffleBufferSize, Random random) throws IOException {
+        super(Collections.emptyList());
+        if (shuffleBufferSize < 1) {
+            throw new IllegalArgumentException("Shuffle buffer size must be at least 1 but was " + shuffleBufferSize);
+        }
+        this.shuffleBufferSize = shuffleBufferSize;
+        this.random = random;
+
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fileChannel)));
+            int magicNumber = dataInputStream.readInt();
+            if (magicNumber != MAGIC_NUMBER) {
+                throw new IOException("Not a training shard file: " + path);
+            }
+            int version = dataInputStream.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported training shard version " + version + " in " + path);
+            }
+            inputSize = dataInputStream.readInt();
+            outputSize = dataInputStream.readInt();
+            blockSize = dataInputStream.readInt();
+            size = dataInputStream.readInt();
+            long classTableOffset = dataInputStream.readLong();
+            if (inputSize < 1 || outputSize < 1 || blockSize < 1 || size < 0) {
+                throw new IOException("Training shard " + path + " has an invalid header: inputSize=" + inputSize
+                        + ", outputSize=" + outputSize + ", blockSize=" + blockSize + ", size=" + size);
+            }
+            recordSize = (1 + getWordsPerInput(inputSize)) * Long.BYTES;
+            if (classTableOffset != HEADER_SIZE + (long) size * recordSize) {
+                throw new IOException("Training shard " + path + " is incomplete");
+            }
+
+            // A single mapping cannot be larger than 2GB, so large shards are mapped in several segments
+            recordsPerSegment = Integer.MAX_VALUE / recordSize;
+            segments = new MappedByteBuffer[(size + recordsPerSegment - 1) / recordsPerSegment];
+            for (int i = 0; i < segments.length; i++) {
+                int records = Math.min(recordsPerSegment, size - i * recordsPerSegment);
+                long position = HEADER_SIZE + (long) i * recordsPerSegment * recordSize;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, (long) records * recordSize);
+            }
+
+            fileChannel.position(classTableOffset);
+            dataInputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fileChannel)));
+            int classCount = dataInputStream.readInt();
+            for (int i = 0; i < classCount; i++) {
+                classNames.add(getClassName(dataInputStream.readUTF(), dataInputStream.readUTF()));
+                double[] nodes = new double[outputSize];
+                for (int n = 0; n < outputSize; n++) {
+                    nodes[n] = dataInputStream.readDouble();
+                }
+                classOutputs.add(new NeuronLayer(nodes));
+            }
+        }
+        logger.info("Mapped training shard of " + size + " training pairs in " + classOutputs.size() + " classes from " + path.toAbsolutePath());
+    }
+
+    /**
+     * Sharded training sets cannot be added to, see TrainingShardWriter
+     */
+    @Override
+    public void addTrainingPair(TrainingPair trainingPair) {
+        throw new UnsupportedOperationException("Training shards are read-only and are written with a " + TrainingShardWriter.class.getSimpleName());
+    }
+
+    /**
+     * @return Returns a read-only collection of the set's TrainingPairs, whose iterators each visit them in a new shuffled order
+     */
+    @Override
+    public Collection<TrainingPair> getTrainingPairs() {
+        return new AbstractCollection<TrainingPair>() {
+            @Override
+            public Iterator<TrainingPair> iterator() {
+                return new ShuffledIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Expands a TrainingPair from the file into a new input layer
+     * @param index Position of the TrainingPair in the file
+     * @return Returns the TrainingPair, sharing its output layer with the rest of its class
+     */
+    public TrainingPair getTrainingPair(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is outside a training shard of size " + size);
+        }
+        MappedByteBuffer segment = segments[index / recordsPerSegment];
+        int position = (index % recordsPerSegment) * recordSize;
+        int classIndex = (int) segment.getLong(position);
+
+        double[] nodes = new double[inputSize];
+        long word = 0;
+        for (int n = 0; n < inputSize; n++) {
+            if (n % Long.SIZE == 0) {
+                word = segment.getLong(position + (1 + n / Long.SIZE) * Long.BYTES);
+            }
+            nodes[n] = (word >>> (n % Long.SIZE) & 1L) == 0 ? 0 : 1;
+        }
+        return new TrainingPair(classNames.get(classIndex), new NeuronLayer(nodes), classOutputs.get(classIndex));
+    }
+
+    static int getWordsPerInput(int inputSize) {
+        return (inputSize + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Enum getClassName(String enumClassName, String name) {
+        if (enumClassName.isEmpty()) {
+            return null;
+        }
+        try {
+            Class enumClass = Class.forName(enumClassName, false, Thread.currentThread().getContextClassLoader());
+            return Enum.valueOf(enumClass, name);
+        } catch (ClassNotFoundException | IllegalArgumentException e) {
+            logger.warn("Training shard refers to unknown classification " + enumClassName + "." + name);
+            return null;
+        }
+    }
+
+    /**
+     * Visits every TrainingPair once, taking the blocks in a shuffled order and each TrainingPair at random from a buffer
+     * that is refilled from the blocks as it is emptied
+     */
+    private class ShuffledIterator implements Iterator<TrainingPair> {
+        private final int[] blockOrder;
+        private final int[] buffer;
+        private int buffered;
+        private int nextBlock;
+        private int nextIndex;
+        private int blockEnd;
+
+        private ShuffledIterator() {
+            blockOrder = new int[(size + blockSize - 1) / blockSize];
+            for (int i = 0; i < blockOrder.length; i++) {
+                int j = random.nextInt(i + 1);
+                blockOrder[i] = blockOrder[j];
+                blockOrder[j] = i;
+            }
+            buffer = new int[Math.min(shuffleBufferSize, size)];
+            while (buffered < buffer.length) {
+                buffer[buffered++] = takeIndex();
+            }
+        }
+
+        private boolean hasIndex() {
+            return nextIndex < blockEnd || nextBlock < blockOrder.length;
+        }
+
+        private int takeIndex() {
+            if (nextIndex == blockEnd) {
+                nextIndex = blockOrder[nextBlock++] * blockSize;
+                blockEnd = Math.min(nextIndex + blockSize, size);
+            }
+            return nextIndex++;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return buffered > 0;
+        }
+
+        @Override
+        public TrainingPair next() {
+            if (buffered == 0) {
+                throw new NoSuchElementException();
+            }
+            int slot = random.nextInt(buffered);
+            int index = buffer[slot];
+            buffer[slot] = hasIndex() ? takeIndex() : buffer[--buffered];
+            return getTrainingPair(index);
+        }
+    }
+}
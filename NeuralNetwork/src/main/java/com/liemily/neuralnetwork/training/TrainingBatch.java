@@ -0,0 +1,166 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable buffers for training a neural network on several TrainingPairs at once.
+ *
+ * Each buffer is a row-major matrix with one row per TrainingPair in the batch,
+ * so that whole batches can be passed through a ConnectionLayer rather than one vector at a time
+ * @author Emily Li
+ */
+public class TrainingBatch {
+    // Above this proportion of non-zero inputs, the blocked dense kernels are faster than visiting each non-zero input
+    private static final double SPARSE_DENSITY_THRESHOLD = 0.25;
+
+    private final int capacity;
+    private final int[] layerSizes;
+    private final double[][] activations;
+    private final double[][] deltas;
+    private final double[] targets;
+    private final SparseVector[] sparseInputs;
+    private int size;
+    private boolean sparse;
+
+    public TrainingBatch(NeuralNetwork neuralNetwork, int capacity) {
+        this.capacity = capacity;
+
+        List<NeuronLayer> neuronLayers = neuralNetwork.getNeuronLayers();
+        layerSizes = new int[neuronLayers.size()];
+        activations = new double[neuronLayers.size()][];
+        deltas = new double[neuronLayers.size()][];
+        for (int i = 0; i < neuronLayers.size(); i++) {
+            layerSizes[i] = neuronLayers.get(i).size();
+            activations[i] = new double[capacity * layerSizes[i]];
+            // The input layer has no incoming weights to correct, so it needs no deltas
+            deltas[i] = i == 0 ? null : new double[capacity * layerSizes[i]];
+        }
+        targets = new double[capacity * neuralNetwork.getOutputLayer().size()];
+        sparseInputs = new SparseVector[capacity];
+    }
+
+    /**
+     * Replaces the contents of the batch with the inputs and desired outputs of the given TrainingPairs.
+     * Inputs smaller than the input layer are padded with the initial node value, and larger inputs are truncated.
+     * TrainingPairs taken from a PackedTrainingSet are copied straight from their bits without being expanded
+     * @param trainingPairs TrainingPairs to fill the batch with, no more than the batch's capacity
+     */
+    public void setTrainingPairs(List<TrainingPair> trainingPairs) {
+        if (trainingPairs.size() > capacity) {
+            throw new IllegalArgumentException("Batch capacity is " + capacity + " but was given " + trainingPairs.size() + " training pairs");
+        }
+        size = trainingPairs.size();
+
+        int inputSize = layerSizes[0];
+        int outputSize = layerSizes[layerSizes.length - 1];
+        long nonZeroCount = 0;
+        PackedTrainingSet.PackedTrainingPairs packedTrainingPairs = trainingPairs instanceof PackedTrainingSet.PackedTrainingPairs
+                ? (PackedTrainingSet.PackedTrainingPairs) trainingPairs : null;
+        for (int i = 0; i < size; i++) {
+            if (packedTrainingPairs != null) {
+                int index = packedTrainingPairs.getSetIndex(i);
+                packedTrainingPairs.getTrainingSet().writeInput(index, activations[0], i * inputSize, inputSize);
+                copyRow(packedTrainingPairs.getTrainingSet().getOutput(index).getNodes(), targets, i * outputSize, outputSize);
+            } else {
+                TrainingPair trainingPair = trainingPairs.get(i);
+                copyRow(trainingPair.getInput().getNodes(), activations[0], i * inputSize, inputSize);
+                copyRow(trainingPair.getOutput().getNodes(), targets, i * outputSize, outputSize);
+            }
+            sparseInputs[i] = SparseVector.of(activations[0], i * inputSize, inputSize);
+            nonZeroCount += sparseInputs[i].getNonZeroCount();
+        }
+        sparse = nonZeroCount <= SPARSE_DENSITY_THRESHOLD * size * inputSize;
+    }
+
+    /**
+     * Replaces the contents of the batch with inputs alone, such as images to identify,
+     * leaving the desired outputs unset. Inputs are padded or truncated as by setTrainingPairs
+     * @param inputs Values for the input layer, no more than the batch's capacity
+     */
+    public void setInputs(List<double[]> inputs) {
+        if (inputs.size() > capacity) {
+            throw new IllegalArgumentException("Batch capacity is " + capacity + " but was given " + inputs.size() + " inputs");
+        }
+        size = inputs.size();
+
+        int inputSize = layerSizes[0];
+        long nonZeroCount = 0;
+        for (int i = 0; i < size; i++) {
+            copyRow(inputs.get(i), activations[0], i * inputSize, inputSize);
+            sparseInputs[i] = SparseVector.of(activations[0], i * inputSize, inputSize);
+            nonZeroCount += sparseInputs[i].getNonZeroCount();
+        }
+        sparse = nonZeroCount <= SPARSE_DENSITY_THRESHOLD * size * inputSize;
+    }
+
+    /**
+     * @param row Index of an input in the batch
+     * @return Returns a new array holding the values of the output layer for the input, once the batch has been activated
+     */
+    public double[] getOutput(int row) {
+        int outputSize = layerSizes[layerSizes.length - 1];
+        return Arrays.copyOfRange(activations[activations.length - 1], row * outputSize, (row + 1) * outputSize);
+    }
+
+    private void copyRow(double[] source, double[] destination, int offset, int rowSize) {
+        int copied = Math.min(source.length, rowSize);
+        System.arraycopy(source, 0, destination, offset, copied);
+        Arrays.fill(destination, offset + copied, offset + rowSize, NeuronLayer.INITIAL_NODE_VALUE);
+    }
+
+    /**
+     * @return Returns the number of TrainingPairs currently held by the batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getLayerSize(int layer) {
+        return layerSizes[layer];
+    }
+
+    /**
+     * @return Returns one matrix of node values per neuron layer, the first being the inputs of the batch
+     */
+    public double[][] getActivations() {
+        return activations;
+    }
+
+    /**
+     * @return Returns one matrix of deltas per neuron layer, with no matrix for the input layer
+     */
+    public double[][] getDeltas() {
+        return deltas;
+    }
+
+    /**
+     * @return Returns true if few enough of the batch's inputs are non-zero for the sparse inputs to be used
+     */
+    public boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @return Returns the non-zero input values of each TrainingPair in the batch,
+     *          matching the first matrix of the activations
+     */
+    public SparseVector[] getSparseInputs() {
+        return sparseInputs;
+    }
+
+    /**
+     * @return Returns the matrix of desired output values
+     */
+    public double[] getTargets() {
+        return targets;
+    }
+}
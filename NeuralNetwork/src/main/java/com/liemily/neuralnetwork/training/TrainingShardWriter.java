@@ -0,0 +1,184 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes binary TrainingPairs one at a time to a shard file, which can then be read as a ShardedTrainingSet.
+ * Only the current TrainingPair and the output layer of each class are held in memory, however many are written.
+ *
+ * The shard is written to a temporary file first and only moved into place when it is committed,
+ * so a shard file being read is never partially written. Closing a writer that was not committed,
+ * such as when writing the TrainingPairs failed, deletes the temporary file and leaves any existing shard in place
+ * @author Emily Li
+ */
+public class TrainingShardWriter implements Closeable {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final Path tempPath;
+    private final int inputSize;
+    private final int outputSize;
+    private final int blockSize;
+    private final long[] record;
+    private final DataOutputStream dataOutputStream;
+    private int size;
+    private boolean committed;
+
+    private final List<NeuronLayer> classOutputs = new ArrayList<>();
+    private final List<Enum> classNames = new ArrayList<>();
+    private final Map<NeuronLayer, Integer> classIndices = new HashMap<>();
+
+    /**
+     * @param path Location of the shard file
+     * @param inputSize Number of nodes in every input
+     * @param outputSize Number of nodes in every output
+     * @param blockSize Number of TrainingPairs in each block, which is the unit a ShardedTrainingSet shuffles the order of
+     * @throws IOException If the temporary file cannot be created
+     */
+    public TrainingShardWriter(Path path, int inputSize, int outputSize, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1 but was " + blockSize);
+        }
+        this.path = path;
+        this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.blockSize = blockSize;
+        this.record = new long[1 + ShardedTrainingSet.getWordsPerInput(inputSize)];
+        this.dataOutputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), BUFFER_SIZE));
+
+        // The record count and class table position are filled in on closing
+        dataOutputStream.writeInt(ShardedTrainingSet.MAGIC_NUMBER);
+        dataOutputStream.writeInt(ShardedTrainingSet.VERSION);
+        dataOutputStream.writeInt(inputSize);
+        dataOutputStream.writeInt(outputSize);
+        dataOutputStream.writeInt(blockSize);
+        dataOutputStream.writeInt(0);
+        dataOutputStream.writeLong(0);
+    }
+
+    /**
+     * Appends a TrainingPair to the shard.
+     * As in a TrainingBatch, inputs smaller than the input size are padded with the initial node value,
+     * and larger inputs are truncated
+     * @param trainingPair TrainingPair whose input holds only the node values 0 and 1, and whose output is the shard's output size
+     * @throws IOException If the TrainingPair cannot be written
+     */
+    public void addTrainingPair(TrainingPair trainingPair) throws IOException {
+        if (trainingPair.getOutput().size() != outputSize) {
+            throw new IllegalArgumentException("Expected an output of size " + outputSize + " but got " + trainingPair.getOutput().size());
+        }
+        Arrays.fill(record, 0L);
+        PackedTrainingSet.packInput(trainingPair.getInput().getNodes(), inputSize, record, 1);
+        writeRecord(trainingPair.getName(), trainingPair.getOutput());
+    }
+
+    /**
+     * Appends a TrainingPair whose input is already packed, such as one read from a cache, without expanding it
+     * @param name Name of the TrainingPair
+     * @param words Input of exactly the input size, packed as by PackedTrainingSet.getInputWords
+     * @param output Output layer of the TrainingPair, of the shard's output size
+     * @throws IOException If the TrainingPair cannot be written
+     */
+    public void addTrainingPair(Enum name, long[] words, NeuronLayer output) throws IOException {
+        if (output.size() != outputSize) {
+            throw new IllegalArgumentException("Expected an output of size " + outputSize + " but got " + output.size());
+        }
+        if (words.length != record.length - 1) {
+            throw new IllegalArgumentException("Expected " + (record.length - 1) + " words of input but got " + words.length);
+        }
+        if (inputSize % Long.SIZE != 0 && words[words.length - 1] >>> (inputSize % Long.SIZE) != 0) {
+            throw new IllegalArgumentException("Packed input has nodes beyond the input size of " + inputSize);
+        }
+        System.arraycopy(words, 0, record, 1, words.length);
+        writeRecord(name, output);
+    }
+
+    private void writeRecord(Enum name, NeuronLayer output) throws IOException {
+        Integer classIndex = classIndices.get(output);
+        if (classIndex == null) {
+            classIndex = classOutputs.size();
+            classOutputs.add(output);
+            classNames.add(name);
+            classIndices.put(output, classIndex);
+        }
+        record[0] = classIndex;
+        for (long word : record) {
+            dataOutputStream.writeLong(word);
+        }
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Writes the output layer of each class after the TrainingPairs, completes the header, and moves the shard into place.
+     * Nothing more can be written afterwards
+     * @throws IOException If the shard cannot be completed, in which case it is not moved into place
+     */
+    public void commit() throws IOException {
+        if (committed) {
+            throw new IllegalStateException("Shard " + path + " has already been committed");
+        }
+        long classTableOffset = ShardedTrainingSet.HEADER_SIZE + (long) size * record.length * Long.BYTES;
+        dataOutputStream.writeInt(classOutputs.size());
+        for (int i = 0; i < classOutputs.size(); i++) {
+            Enum className = classNames.get(i);
+            dataOutputStream.writeUTF(className == null ? "" : className.getDeclaringClass().getName());
+            dataOutputStream.writeUTF(className == null ? "" : className.name());
+            for (double node : classOutputs.get(i).getNodes()) {
+                dataOutputStream.writeDouble(node);
+            }
+        }
+        dataOutputStream.close();
+
+        try (FileChannel fileChannel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            ByteBuffer counts = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+            counts.putInt(size).putLong(classTableOffset).flip();
+            fileChannel.write(counts, ShardedTrainingSet.HEADER_SIZE - counts.capacity());
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+        logger.info("Wrote " + size + " training pairs to shard " + path.toAbsolutePath());
+    }
+
+    /**
+     * Deletes the temporary file unless the shard was committed
+     * @throws IOException If the temporary file cannot be deleted
+     */
+    @Override
+    public void close() throws IOException {
+        if (committed) {
+            return;
+        }
+        try {
+            dataOutputStream.close();
+        } finally {
+            if (Files.deleteIfExists(tempPath)) {
+                logger.info("Discarded uncommitted shard " + path.toAbsolutePath());
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import java.util.*;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
 import com.liemily.neuralnetwork.networks.NeuralNetwork;
 import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.training.TrainingBatch;
+import com.liemily.neuralnetwork.training.TrainingPair;
 import org.junit.*;
 
 import static org.junit.Assert.*;
@@ -53,19 +55,13 @@ public class LearningRuleTest {
 	// 9. The realised learning rule must be able to alter the values of a neuron layer's weights
 	@Test
 	public void testLearningRuleCanAlterWeight() {
-        double[][] previousWeights = neuralNetwork.getConnectionLayers().get(0).getWeights().clone();
-        double[][] previousWeightsCopy = new double[previousWeights.length][previousWeights[0].length];
-        for (int i = 0; i < previousWeights.length; i++) {
-            for (int j = 0; j < previousWeights[i].length; j++) {
-                previousWeightsCopy[i][j] = previousWeights[i][j];
-            }
-        }
+        double[] previousWeightsCopy = neuralNetwork.getConnectionLayers().get(0).getWeights().clone();
 
         learningRule.teach(neuralNetwork, targetLayer);
 
-        double[][] latterWeights = neuralNetwork.getConnectionLayers().get(0).getWeights();
+        double[] latterWeights = neuralNetwork.getConnectionLayers().get(0).getWeights();
 
-        assertNotEquals(previousWeightsCopy, latterWeights);
+        assertFalse(Arrays.equals(previousWeightsCopy, latterWeights));
 	}
 
     // 10. The realised learning rule must be able to compare the values of neurons between different neuron layers
@@ -81,4 +77,31 @@ public class LearningRuleTest {
             }
         }
     }
+
+    // A batch of one TrainingPair must alter the weights the same way as teaching the TrainingPair on its own
+    @Test
+    public void testBatchTeachingMatchesSingleTeaching() {
+        BackPropagationLearningRule batchLearningRule = new BackPropagationLearningRule(0.5);
+        SupervisedFeedForwardNetwork singleNetwork = new SupervisedFeedForwardNetwork(batchLearningRule, 5, 5, 1, 5, 0.5);
+        SupervisedFeedForwardNetwork batchNetwork = new SupervisedFeedForwardNetwork(batchLearningRule, 5, 5, 1, 5, 0.5);
+        for (int i = 0; i < singleNetwork.getConnectionLayers().size(); i++) {
+            batchNetwork.getConnectionLayers().get(i).setWeights(singleNetwork.getConnectionLayers().get(i).getWeights().clone());
+        }
+
+        NeuronLayer inputLayer = new NeuronLayer(5);
+        inputLayer.setNodes(new double[]{0, 1, 1, 0, 1});
+        TrainingPair trainingPair = new TrainingPair(inputLayer, targetLayer);
+
+        double singleError = singleNetwork.train(trainingPair);
+
+        TrainingBatch batch = new TrainingBatch(batchNetwork, 1);
+        batch.setTrainingPairs(Collections.singletonList(trainingPair));
+        batchNetwork.activate(batch);
+        double batchError = batchLearningRule.teach(batchNetwork, batch);
+
+        assertEquals(singleError, batchError, 1e-12);
+        for (int i = 0; i < singleNetwork.getConnectionLayers().size(); i++) {
+            assertArrayEquals(singleNetwork.getConnectionLayers().get(i).getWeights(), batchNetwork.getConnectionLayers().get(i).getWeights(), 1e-12);
+        }
+    }
 }
@@ -1,17 +1,28 @@
 package com.liemily.neuralnetwork.networks;
 
+import com.liemily.neuralnetwork.layers.ConnectionLayer;
+import com.liemily.neuralnetwork.layers.FloatConnectionLayer;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
 import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.learning.BatchLearningRule;
+import com.liemily.neuralnetwork.training.TrainingBatch;
 import com.liemily.neuralnetwork.training.TrainingPair;
 import com.liemily.neuralnetwork.training.TrainingSet;
 import org.hamcrest.core.IsEqual;
 import org.hamcrest.core.IsNot;
 import org.junit.*;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
@@ -52,6 +63,97 @@ public class SupervisedFeedForwardNetworkTest {
 		assertThat(prevLayerValues.get(1), IsNot.not(IsEqual.equalTo(newLayerValues.get(1))));
 	}
 
+	// A network must be able to activate an input without altering its own layers,
+	// giving the same output as activating through its layers
+	@Test
+	public void testStatelessActivationMatchesLayerActivation() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5);
+		double[] input = {0, 1, 0, 1, 1};
+
+		List<double[]> prevLayerValues = new ArrayList<>();
+		network.getNeuronLayers().forEach(layer -> prevLayerValues.add(layer.getNodes().clone()));
+		double[] output = network.activate(input);
+		for (int i = 0; i < prevLayerValues.size(); i++) {
+			assertArrayEquals(prevLayerValues.get(i), network.getNeuronLayers().get(i).getNodes(), 0);
+		}
+
+		NeuronLayer inputLayer = new NeuronLayer(layerSize);
+		inputLayer.setNodes(input);
+		network.setInputValues(inputLayer);
+		network.activate();
+		assertArrayEquals(network.getOutputLayer().getNodes(), output, 0);
+	}
+
+	// A sparse input must activate the network to the same output as the equivalent full input
+	@Test
+	public void testSparseActivationMatchesFullActivation() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5);
+		double[] input = {0, 0, 1, 0, 0};
+
+		assertArrayEquals(network.activate(input), network.activate(SparseVector.of(input)), 0);
+	}
+
+	// A sparse input shorter than the input layer must be padded in the same way as the equivalent full input
+	@Test
+	public void testShortSparseInputPaddedAsFullInput() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(3));
+		double[] input = {0, 1, 0};
+
+		assertArrayEquals(network.activate(input), network.activate(SparseVector.of(input)), 0);
+	}
+
+	// Training on a batch of sparse inputs must change the weights exactly as training on the same batch as full inputs
+	@Test
+	public void testSparseBatchTrainingMatchesDenseTraining() {
+		int inputSize = 40;
+		Random random = new Random(4);
+		List<TrainingPair> trainingPairs = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			NeuronLayer input = new NeuronLayer(new double[inputSize]);
+			for (int j = 0; j < 4; j++) {
+				input.getNodes()[random.nextInt(inputSize)] = 1;
+			}
+			NeuronLayer output = new NeuronLayer(new double[layerSize]);
+			output.getNodes()[random.nextInt(layerSize)] = 1;
+			trainingPairs.add(new TrainingPair(input, output));
+		}
+		SupervisedFeedForwardNetwork sparseNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), inputSize, layerSize, 1, layerSize, 0.5, new Random(5));
+		SupervisedFeedForwardNetwork denseNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), inputSize, layerSize, 1, layerSize, 0.5, new Random(5));
+		sparseNetwork.setBatchSize(trainingPairs.size());
+
+		TrainingBatch sparseBatch = new TrainingBatch(sparseNetwork, trainingPairs.size());
+		sparseBatch.setTrainingPairs(trainingPairs);
+		assertTrue(sparseBatch.isSparse());
+		TrainingBatch denseBatch = spy(new TrainingBatch(denseNetwork, trainingPairs.size()));
+		doReturn(false).when(denseBatch).isSparse();
+
+		for (int iteration = 0; iteration < 3; iteration++) {
+			double sparseError = sparseNetwork.train(new TrainingSet(trainingPairs));
+			denseBatch.setTrainingPairs(trainingPairs);
+			denseNetwork.activate(denseBatch);
+			double denseError = ((BatchLearningRule) denseNetwork.getLearningRule()).teach(denseNetwork, denseBatch);
+			assertEquals(denseError, sparseError, 0);
+		}
+		for (int i = 0; i < sparseNetwork.getConnectionLayers().size(); i++) {
+			assertArrayEquals(denseNetwork.getConnectionLayers().get(i).getWeights(), sparseNetwork.getConnectionLayers().get(i).getWeights(), 0);
+		}
+		assertFalse(Arrays.equals(new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), inputSize, layerSize, 1, layerSize, 0.5, new Random(5))
+				.getConnectionLayers().get(0).getWeights(), sparseNetwork.getConnectionLayers().get(0).getWeights()));
+	}
+
+	// Activation on an interrupted thread, such as a cancelled identification, must stop rather than finish
+	@Test
+	public void testInterruptedActivationIsCancelled() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5);
+		Thread.currentThread().interrupt();
+		try {
+			network.activate(new double[layerSize]);
+			fail("Activation must be cancelled");
+		} catch (CancellationException e) {
+			assertTrue(Thread.interrupted());
+		}
+	}
+
 	// 11. The implemented network must be able to take a training set
 	// 	   and use it with the learning rule to reduce its error over time
 	@Test
@@ -73,4 +175,149 @@ public class SupervisedFeedForwardNetworkTest {
 
 		assertTrue(latterError < initialError);
 	}
+
+	// Training a seeded network in parallel must give the same weights as training it on a single thread
+	@Test
+	public void testParallelTrainingMatchesSequentialTraining() {
+		TrainingSet trainingSet = createRandomTrainingSet(new Random(1), 7);
+
+		SupervisedFeedForwardNetwork sequentialNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(2));
+		sequentialNetwork.setBatchSize(4);
+		SupervisedFeedForwardNetwork parallelNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(2));
+		parallelNetwork.setBatchSize(4);
+		parallelNetwork.setParallelism(3);
+
+		double sequentialError = sequentialNetwork.train(trainingSet, 5);
+		double parallelError = parallelNetwork.train(trainingSet, 5);
+
+		assertEquals(sequentialError, parallelError, 1e-9);
+		for (int i = 0; i < sequentialNetwork.getConnectionLayers().size(); i++) {
+			assertArrayEquals(sequentialNetwork.getConnectionLayers().get(i).getWeights(), parallelNetwork.getConnectionLayers().get(i).getWeights(), 0);
+		}
+	}
+
+	// Asynchronous training across multiple threads must still reduce the network's error
+	@Test
+	public void testErrorReducedThroughAsynchronousTraining() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5);
+		network.setParallelism(2);
+		network.setAsynchronous(true);
+
+		NeuronLayer outputLayer = new NeuronLayer(layerSize);
+		double[] outputValues = new double[layerSize];
+		Arrays.fill(outputValues, 0.1);
+		outputLayer.setNodes(outputValues);
+		TrainingPair trainingPair = new TrainingPair(new NeuronLayer(layerSize), outputLayer);
+		TrainingSet trainingSet = new TrainingSet(Arrays.asList(trainingPair, trainingPair, trainingPair, trainingPair));
+
+		double initialError = network.getLearningRule().getError(new NeuronLayer(network.activate(trainingPair.getInput().getNodes())), outputLayer);
+		network.train(trainingSet, 100);
+		double latterError = network.getLearningRule().getError(new NeuronLayer(network.activate(trainingPair.getInput().getNodes())), outputLayer);
+
+		assertTrue(latterError < initialError);
+	}
+
+	// Asynchronous training must stream a TrainingSet without random access, reading each TrainingPair once per iteration
+	@Test
+	public void testAsynchronousTrainingStreamsTrainingPairs() {
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(4));
+		network.setParallelism(2);
+		network.setAsynchronous(true);
+		network.setBatchSize(2);
+
+		List<TrainingPair> trainingPairs = new ArrayList<>(createRandomTrainingSet(new Random(3), 9).getTrainingPairs());
+		AtomicInteger reads = new AtomicInteger();
+		Collection<TrainingPair> streamed = new AbstractCollection<TrainingPair>() {
+			@Override
+			public Iterator<TrainingPair> iterator() {
+				Iterator<TrainingPair> iterator = trainingPairs.iterator();
+				return new Iterator<TrainingPair>() {
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public TrainingPair next() {
+						reads.incrementAndGet();
+						return iterator.next();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return trainingPairs.size();
+			}
+		};
+
+		network.train(new TrainingSet(streamed), 3);
+		assertEquals(3 * trainingPairs.size(), reads.get());
+	}
+
+	// A network with single precision weights must give close to the same outputs and classifications
+	// as the double precision network it was copied from, both before and after training
+	@Test
+	public void testFloatPrecisionMatchesDoublePrecision() {
+		TrainingSet trainingSet = createRandomTrainingSet(new Random(3), 8);
+		SupervisedFeedForwardNetwork doubleNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(4));
+		List<NeuronLayer> neuronLayers = new ArrayList<>();
+		doubleNetwork.getNeuronLayers().forEach(neuronLayer -> neuronLayers.add(new NeuronLayer(neuronLayer.size())));
+		List<ConnectionLayer> connectionLayers = new ArrayList<>();
+		doubleNetwork.getConnectionLayers().forEach(connectionLayer -> connectionLayers.add(new FloatConnectionLayer(connectionLayer)));
+		SupervisedFeedForwardNetwork floatNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), neuronLayers, connectionLayers);
+
+		for (int iterations = 0; iterations < 2; iterations++) {
+			for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+				double[] doubleOutput = doubleNetwork.activate(trainingPair.getInput().getNodes());
+				double[] floatOutput = floatNetwork.activate(trainingPair.getInput().getNodes());
+				assertArrayEquals(doubleOutput, floatOutput, 1e-4);
+				assertEquals(getLargestNode(doubleOutput), getLargestNode(floatOutput));
+			}
+			doubleNetwork.train(trainingSet, 20);
+			floatNetwork.train(trainingSet, 20);
+		}
+	}
+
+	// A copy of a network must give the same outputs, and training it must leave the original's weights unchanged
+	@Test
+	public void testTrainingCopyLeavesOriginalUnchanged() {
+		TrainingSet trainingSet = createRandomTrainingSet(new Random(5), 6);
+		SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), layerSize, layerSize, 1, layerSize, 0.5, new Random(6));
+		network.setBatchSize(2);
+		double[] weights = network.getConnectionLayers().get(0).getWeights().clone();
+
+		SupervisedFeedForwardNetwork copy = network.copy();
+		double[] input = trainingSet.getTrainingPairs().iterator().next().getInput().getNodes();
+		assertArrayEquals(network.activate(input), copy.activate(input), 0);
+		assertEquals(2, copy.getBatchSize());
+
+		copy.train(trainingSet, 5);
+		assertArrayEquals(weights, network.getConnectionLayers().get(0).getWeights(), 0);
+		assertFalse(Arrays.equals(weights, copy.getConnectionLayers().get(0).getWeights()));
+	}
+
+	private static TrainingSet createRandomTrainingSet(Random random, int size) {
+		List<TrainingPair> trainingPairs = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			NeuronLayer input = new NeuronLayer(layerSize);
+			NeuronLayer output = new NeuronLayer(layerSize);
+			for (int j = 0; j < layerSize; j++) {
+				input.getNodes()[j] = random.nextInt(2);
+				output.getNodes()[j] = random.nextInt(2);
+			}
+			trainingPairs.add(new TrainingPair(input, output));
+		}
+		return new TrainingSet(trainingPairs);
+	}
+
+	private static int getLargestNode(double[] nodes) {
+		int largest = 0;
+		for (int i = 1; i < nodes.length; i++) {
+			if (nodes[i] > nodes[largest]) {
+				largest = i;
+			}
+		}
+		return largest;
+	}
 }
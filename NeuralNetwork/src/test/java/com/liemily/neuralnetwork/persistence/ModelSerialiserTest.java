@@ -0,0 +1,109 @@
+package com.liemily.neuralnetwork.persistence;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for saving and loading neural network models
+ * @author Emily Li
+ */
+public class ModelSerialiserTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ModelSerialiser modelSerialiser;
+    private SupervisedFeedForwardNetwork neuralNetwork;
+
+    @Before
+    public void setup() {
+        modelSerialiser = new ModelSerialiser();
+        neuralNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.25), 6, 4, 2, 3, 0.5);
+    }
+
+    // A saved network must load with the same layers, learning rate and weights
+    @Test
+    public void testNetworkCanBeSavedAndLoaded() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        modelSerialiser.write(neuralNetwork, outputStream);
+        SupervisedFeedForwardNetwork loadedNetwork = modelSerialiser.read(new ByteArrayInputStream(outputStream.toByteArray()));
+
+        assertEquals(neuralNetwork.getNeuronLayers().size(), loadedNetwork.getNeuronLayers().size());
+        for (int i = 0; i < neuralNetwork.getNeuronLayers().size(); i++) {
+            assertEquals(neuralNetwork.getNeuronLayers().get(i).size(), loadedNetwork.getNeuronLayers().get(i).size());
+        }
+        for (int i = 0; i < neuralNetwork.getConnectionLayers().size(); i++) {
+            assertArrayEquals(neuralNetwork.getConnectionLayers().get(i).getWeights(), loadedNetwork.getConnectionLayers().get(i).getWeights(), 0);
+        }
+        assertEquals(0.25, ((BackPropagationLearningRule) loadedNetwork.getLearningRule()).getLearningRate(), 0);
+
+        double[] input = {1, 0, 1, 1, 0, 0};
+        assertArrayEquals(neuralNetwork.activate(input), loadedNetwork.activate(input), 0);
+    }
+
+    // A memory mapped network must give the same outputs as the network that was saved, and refuse to be trained
+    @Test
+    public void testMappedNetworkMatchesSavedNetwork() throws IOException {
+        Path modelFile = temporaryFolder.getRoot().toPath().resolve("model.bin");
+        modelSerialiser.save(neuralNetwork, modelFile);
+        SupervisedFeedForwardNetwork mappedNetwork = modelSerialiser.map(modelFile);
+
+        double[] input = {1, 0, 1, 1, 0, 0};
+        assertArrayEquals(neuralNetwork.activate(input), mappedNetwork.activate(input), 0);
+        assertArrayEquals(neuralNetwork.activate(SparseVector.of(input)), mappedNetwork.activate(SparseVector.of(input)), 0);
+
+        try {
+            mappedNetwork.train(new TrainingSet(Collections.singletonList(new TrainingPair(new NeuronLayer(input), new NeuronLayer(new double[]{1, 0, 0})))), 1);
+            fail("Expected a memory mapped network to be read-only");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    // A stream that is not a model must be rejected
+    @Test(expected = IOException.class)
+    public void testInvalidModelRejected() throws IOException {
+        modelSerialiser.read(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    // A model whose layer sizes are negative or have more weights than an array can hold must be rejected
+    @Test
+    public void testInvalidLayerSizesRejected() throws IOException {
+        for (int[] layerSizes : new int[][]{{6, -3}, {100000, 100000}}) {
+            ByteArrayOutputStream model = new ByteArrayOutputStream();
+            DataOutputStream dataOutputStream = new DataOutputStream(model);
+            dataOutputStream.writeInt(ModelSerialiser.MAGIC_NUMBER);
+            dataOutputStream.writeInt(ModelSerialiser.VERSION);
+            dataOutputStream.writeInt(ModelSerialiser.SIGMOID_ACTIVATION);
+            dataOutputStream.writeInt(ModelSerialiser.BACK_PROPAGATION_LEARNING_RULE);
+            dataOutputStream.writeDouble(0.25);
+            dataOutputStream.writeInt(layerSizes.length);
+            for (int layerSize : layerSizes) {
+                dataOutputStream.writeInt(layerSize);
+            }
+            dataOutputStream.write(new byte[64]);
+            try {
+                modelSerialiser.read(new ByteArrayInputStream(model.toByteArray()));
+                fail("Layer sizes " + layerSizes[0] + " and " + layerSizes[1] + " must be rejected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Neuron layer") || e.getMessage().contains("Connection layer"));
+            }
+        }
+    }
+}
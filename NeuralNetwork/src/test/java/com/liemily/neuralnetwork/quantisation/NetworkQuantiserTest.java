@@ -0,0 +1,67 @@
+package com.liemily.neuralnetwork.quantisation;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.layers.SparseVector;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for quantising trained neural networks
+ * @author Emily Li
+ */
+public class NetworkQuantiserTest {
+    private static final int INPUT_SIZE = 64;
+    private static final int OUTPUT_SIZE = 4;
+
+    private NetworkQuantiser networkQuantiser;
+    private SupervisedFeedForwardNetwork neuralNetwork;
+    private TrainingSet trainingSet;
+
+    @Before
+    public void setup() {
+        networkQuantiser = new NetworkQuantiser();
+        Random random = new Random(5);
+        neuralNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.1), INPUT_SIZE, 16, 1, OUTPUT_SIZE, 1, random);
+
+        List<TrainingPair> trainingPairs = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            NeuronLayer input = new NeuronLayer(INPUT_SIZE);
+            for (int j = 0; j < INPUT_SIZE; j++) {
+                input.getNodes()[j] = random.nextInt(4) == 0 ? 1 : 0;
+            }
+            NeuronLayer output = new NeuronLayer(new double[OUTPUT_SIZE]);
+            output.getNodes()[i % OUTPUT_SIZE] = 1;
+            trainingPairs.add(new TrainingPair(input, output));
+        }
+        trainingSet = new TrainingSet(trainingPairs);
+        neuralNetwork.train(trainingSet, 20);
+    }
+
+    // A quantised network must give close to the same outputs as the trained network, for both full and sparse inputs
+    @Test
+    public void testQuantisedNetworkMatchesTrainedNetwork() {
+        SupervisedFeedForwardNetwork quantisedNetwork = networkQuantiser.quantise(neuralNetwork);
+        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+            double[] input = trainingPair.getInput().getNodes();
+            assertArrayEquals(neuralNetwork.activate(input), quantisedNetwork.activate(input), 0.02);
+            assertArrayEquals(quantisedNetwork.activate(input), quantisedNetwork.activate(SparseVector.of(input)), 1e-12);
+        }
+        assertTrue(networkQuantiser.getTopOneAgreement(neuralNetwork, quantisedNetwork, trainingSet) >= 0.9);
+    }
+
+    // A quantised network is for inference only and must refuse to be trained
+    @Test(expected = UnsupportedOperationException.class)
+    public void testQuantisedNetworkCannotBeTrained() {
+        networkQuantiser.quantise(neuralNetwork).train(trainingSet, 1);
+    }
+}
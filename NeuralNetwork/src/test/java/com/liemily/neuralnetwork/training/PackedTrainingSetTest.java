@@ -0,0 +1,115 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for storing training sets of binary inputs compactly
+ * @author Emily Li
+ */
+public class PackedTrainingSetTest {
+    // Not a multiple of 64, so the last word of each input is partly used
+    private static final int INPUT_SIZE = 70;
+    private static final int OUTPUT_SIZE = 3;
+
+    private List<TrainingPair> trainingPairs;
+    private PackedTrainingSet packedTrainingSet;
+
+    @Before
+    public void setup() {
+        NeuronLayer[] outputs = new NeuronLayer[OUTPUT_SIZE];
+        for (int i = 0; i < OUTPUT_SIZE; i++) {
+            outputs[i] = new NeuronLayer(new double[OUTPUT_SIZE]);
+            outputs[i].getNodes()[i] = 1;
+        }
+
+        Random random = new Random(8);
+        trainingPairs = new ArrayList<>();
+        packedTrainingSet = new PackedTrainingSet(INPUT_SIZE);
+        for (int i = 0; i < 37; i++) {
+            NeuronLayer input = new NeuronLayer(new double[INPUT_SIZE]);
+            for (int j = 0; j < INPUT_SIZE; j++) {
+                input.getNodes()[j] = random.nextInt(3) == 0 ? 1 : 0;
+            }
+            TrainingPair trainingPair = new TrainingPair(input, outputs[random.nextInt(OUTPUT_SIZE)]);
+            trainingPairs.add(trainingPair);
+            packedTrainingSet.addTrainingPair(trainingPair);
+        }
+    }
+
+    // Each packed TrainingPair must expand to the same input and output it was added with
+    @Test
+    public void testPackedTrainingPairsExpandToOriginals() {
+        assertEquals(trainingPairs.size(), packedTrainingSet.size());
+        int i = 0;
+        for (TrainingPair trainingPair : packedTrainingSet.getTrainingPairs()) {
+            assertEquals(trainingPairs.get(i).getInput(), trainingPair.getInput());
+            assertSame(trainingPairs.get(i).getOutput(), trainingPair.getOutput());
+            i++;
+        }
+    }
+
+    // Training in batches on a packed set must give the same weights as training on the TrainingPairs it was packed from
+    @Test
+    public void testTrainingOnPackedSetMatchesTrainingPairs() {
+        SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), INPUT_SIZE, 8, 1, OUTPUT_SIZE, 0.5, new Random(9));
+        network.setBatchSize(5);
+        SupervisedFeedForwardNetwork packedNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), INPUT_SIZE, 8, 1, OUTPUT_SIZE, 0.5, new Random(9));
+        packedNetwork.setBatchSize(5);
+
+        double error = network.train(new TrainingSet(trainingPairs), 3);
+        double packedError = packedNetwork.train(packedTrainingSet, 3);
+
+        assertEquals(error, packedError, 0);
+        for (int i = 0; i < network.getConnectionLayers().size(); i++) {
+            assertArrayEquals(network.getConnectionLayers().get(i).getWeights(), packedNetwork.getConnectionLayers().get(i).getWeights(), 0);
+        }
+    }
+
+    // Training one TrainingPair at a time on a packed set must also give the same weights
+    @Test
+    public void testSingleTrainingOnPackedSetMatchesTrainingPairs() {
+        SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), INPUT_SIZE, 8, 1, OUTPUT_SIZE, 0.5, new Random(9));
+        SupervisedFeedForwardNetwork packedNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), INPUT_SIZE, 8, 1, OUTPUT_SIZE, 0.5, new Random(9));
+
+        double error = network.train(new TrainingSet(trainingPairs), 2);
+        double packedError = packedNetwork.train(packedTrainingSet, 2);
+
+        assertEquals(error, packedError, 0);
+        for (int i = 0; i < network.getConnectionLayers().size(); i++) {
+            assertArrayEquals(network.getConnectionLayers().get(i).getWeights(), packedNetwork.getConnectionLayers().get(i).getWeights(), 0);
+        }
+    }
+
+    // Inputs copied out as words must add back to the same TrainingPairs without being expanded
+    @Test
+    public void testPackedInputWordsRoundTrip() {
+        PackedTrainingSet copy = new PackedTrainingSet(INPUT_SIZE);
+        long[] words = new long[packedTrainingSet.getWordsPerInput()];
+        for (int i = 0; i < packedTrainingSet.size(); i++) {
+            packedTrainingSet.getInputWords(i, words);
+            copy.addTrainingPair(packedTrainingSet.getName(i), words, packedTrainingSet.getOutput(i));
+        }
+        for (int i = 0; i < packedTrainingSet.size(); i++) {
+            assertEquals(trainingPairs.get(i).getInput(), copy.getTrainingPair(i).getInput());
+            assertSame(trainingPairs.get(i).getOutput(), copy.getOutput(i));
+        }
+    }
+
+    // Inputs that are not binary cannot be packed
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonBinaryInputRejected() {
+        NeuronLayer input = new NeuronLayer(new double[INPUT_SIZE]);
+        input.getNodes()[3] = 0.5;
+        packedTrainingSet.addTrainingPair(new TrainingPair(input, trainingPairs.get(0).getOutput()));
+    }
+}
@@ -0,0 +1,126 @@
+package com.liemily.neuralnetwork.training;
+
+import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for streaming training sets from memory mapped shard files
+ * @author Emily Li
+ */
+public class ShardedTrainingSetTest {
+    private static final int INPUT_SIZE = 70;
+    private static final int OUTPUT_SIZE = 3;
+    private static final int BLOCK_SIZE = 4;
+
+    private Path shardFile;
+    private List<TrainingPair> trainingPairs;
+
+    @Before
+    public void setup() throws IOException {
+        NeuronLayer[] outputs = new NeuronLayer[OUTPUT_SIZE];
+        for (int i = 0; i < OUTPUT_SIZE; i++) {
+            outputs[i] = new NeuronLayer(new double[OUTPUT_SIZE]);
+            outputs[i].getNodes()[i] = 1;
+        }
+
+        Random random = new Random(8);
+        trainingPairs = new ArrayList<>();
+        shardFile = Files.createTempFile("training", ".shard");
+        try (TrainingShardWriter writer = new TrainingShardWriter(shardFile, INPUT_SIZE, OUTPUT_SIZE, BLOCK_SIZE)) {
+            for (int i = 0; i < 37; i++) {
+                NeuronLayer input = new NeuronLayer(new double[INPUT_SIZE]);
+                for (int j = 0; j < INPUT_SIZE; j++) {
+                    input.getNodes()[j] = random.nextInt(3) == 0 ? 1 : 0;
+                }
+                TrainingPair trainingPair = new TrainingPair(input, outputs[random.nextInt(OUTPUT_SIZE)]);
+                trainingPairs.add(trainingPair);
+                writer.addTrainingPair(trainingPair);
+            }
+            writer.commit();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(shardFile);
+    }
+
+    // Each TrainingPair in the shard must read back as the input and output it was written with
+    @Test
+    public void testShardReadsBackTrainingPairs() throws IOException {
+        ShardedTrainingSet trainingSet = new ShardedTrainingSet(shardFile, 8, new Random(1));
+        assertEquals(trainingPairs.size(), trainingSet.size());
+        for (int i = 0; i < trainingPairs.size(); i++) {
+            assertEquals(trainingPairs.get(i).getInput(), trainingSet.getTrainingPair(i).getInput());
+            assertEquals(trainingPairs.get(i).getOutput(), trainingSet.getTrainingPair(i).getOutput());
+        }
+    }
+
+    // Every iteration must visit each TrainingPair exactly once, in a different order each time
+    @Test
+    public void testIterationsVisitEveryTrainingPairInNewOrder() throws IOException {
+        ShardedTrainingSet trainingSet = new ShardedTrainingSet(shardFile, 8, new Random(1));
+        List<List<NeuronLayer>> orders = new ArrayList<>();
+        for (int iteration = 0; iteration < 2; iteration++) {
+            List<NeuronLayer> inputs = new ArrayList<>();
+            for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+                inputs.add(trainingPair.getInput());
+            }
+            orders.add(inputs);
+
+            List<NeuronLayer> remaining = new ArrayList<>(inputs);
+            for (TrainingPair trainingPair : trainingPairs) {
+                assertTrue(remaining.remove(trainingPair.getInput()));
+            }
+            assertTrue(remaining.isEmpty());
+        }
+        assertNotEquals(orders.get(0), orders.get(1));
+    }
+
+    // Training in batches must be able to stream from the shard
+    @Test
+    public void testTrainingOnShard() throws IOException {
+        SupervisedFeedForwardNetwork network = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), INPUT_SIZE, 8, 1, OUTPUT_SIZE, 0.5, new Random(9));
+        network.setBatchSize(5);
+        ShardedTrainingSet trainingSet = new ShardedTrainingSet(shardFile, 8, new Random(1));
+
+        double firstError = network.train(trainingSet);
+        double error = network.train(trainingSet, 20);
+        assertTrue(error < firstError);
+    }
+
+    // A shard whose header gives an invalid block size must be rejected rather than mapped
+    @Test(expected = IOException.class)
+    public void testInvalidHeaderRejected() throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(shardFile, StandardOpenOption.WRITE)) {
+            // The block size follows the magic number, version, input size and output size
+            fileChannel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 0), 4 * Integer.BYTES);
+        }
+        new ShardedTrainingSet(shardFile, 8, new Random(1));
+    }
+
+    // A shard writer closed without being committed must leave the existing shard in place and delete its temporary file
+    @Test
+    public void testUncommittedShardDiscarded() throws IOException {
+        byte[] committedShard = Files.readAllBytes(shardFile);
+        try (TrainingShardWriter writer = new TrainingShardWriter(shardFile, INPUT_SIZE, OUTPUT_SIZE, BLOCK_SIZE)) {
+            writer.addTrainingPair(trainingPairs.get(0));
+        }
+        assertArrayEquals(committedShard, Files.readAllBytes(shardFile));
+        assertFalse(Files.exists(shardFile.resolveSibling(shardFile.getFileName() + ".tmp")));
+    }
+}
@@ -1,18 +1,31 @@
 package com.liemily.web.config;
 
 import com.liemily.imagerecognition.BWImageConverter;
+import com.liemily.imagerecognition.ClassificationCache;
+import com.liemily.imagerecognition.FusedImagePreProcessor;
 import com.liemily.imagerecognition.ImageConverter;
 import com.liemily.imagerecognition.ImageNetworkAccessor;
+import com.liemily.imagerecognition.InferenceBatcher;
+import com.liemily.imagerecognition.InputAugmenter;
 import com.liemily.imagerecognition.RecognitionOutputs;
+import com.liemily.neuralnetwork.layers.FloatConnectionLayer;
 import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
 import com.liemily.neuralnetwork.learning.LearningRule;
 import com.liemily.neuralnetwork.networks.NeuralNetwork;
 import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.persistence.ModelSerialiser;
 import com.liemily.web.domain.Constellation;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
 /**
  * Application specific config, generating the necessary beans for constellation recognition.
  * @author Emily Li
@@ -23,9 +36,33 @@ public class ApplicationConfig {
     @Value("${imageNetworkAccessor.resizeImg}")
     private String resizeImg;
 
+    @Value("${imageNetworkAccessor.fusedPreProcessing}")
+    private String fusedPreProcessing;
+
+    @Value("${imageNetworkAccessor.resampling}")
+    private String resampling;
+
+    @Value("${imageNetworkAccessor.threshold}")
+    private String threshold;
+
+    @Value("${imageNetworkAccessor.batching.maxBatchSize}")
+    private String batchingMaxBatchSize;
+
+    @Value("${imageNetworkAccessor.batching.windowMicros}")
+    private String batchingWindowMicros;
+
+    @Value("${imageNetworkAccessor.batching.threads}")
+    private String batchingThreads;
+
+    @Value("${imageNetworkAccessor.cache.maxEntries}")
+    private String cacheMaxEntries;
+
     @Value("${network.weights.initialRange}")
     private String initialWeightRange;
 
+    @Value("${network.weights.precision}")
+    private String weightPrecision;
+
     @Value("${network.learning.learningRate}")
     private String learningRate;
 
@@ -38,9 +75,61 @@ public class ApplicationConfig {
     @Value("${network.layers.hidden.numNodes}")
     private String hiddenLayerNumNodes;
 
+    @Value("${network.training.batchSize}")
+    private String trainingBatchSize;
+
+    @Value("${network.training.parallelism}")
+    private String trainingParallelism;
+
+    @Value("${network.training.asynchronous}")
+    private String trainingAsynchronous;
+
+    @Value("${network.training.seed}")
+    private String trainingSeed;
+
+    @Value("${network.model.file}")
+    private String modelFile;
+
+    @Value("${network.model.mapped}")
+    private String modelMapped;
+
+    @Value("${app.training.augmentation.maxRotation}")
+    private String augmentationMaxRotation;
+
+    @Value("${app.training.augmentation.maxShift}")
+    private String augmentationMaxShift;
+
+    @Value("${app.training.augmentation.maxScale}")
+    private String augmentationMaxScale;
+
+    @Value("${app.training.augmentation.noise}")
+    private String augmentationNoise;
+
     @Bean
-    public ImageNetworkAccessor imageNetworkAccessor() {
-        return new ImageNetworkAccessor(imageConverter(), neuralNetwork(), recognitionOutputs(), Boolean.parseBoolean(resizeImg));
+    public ImageNetworkAccessor imageNetworkAccessor(ObjectProvider<InferenceBatcher> inferenceBatcher) throws IOException {
+        ImageNetworkAccessor imageNetworkAccessor = new ImageNetworkAccessor(imageConverter(), neuralNetwork(), recognitionOutputs(), Boolean.parseBoolean(resizeImg));
+        if (Boolean.parseBoolean(fusedPreProcessing)) {
+            imageNetworkAccessor.setFusedImagePreProcessor(new FusedImagePreProcessor(
+                    FusedImagePreProcessor.ResamplingMethod.valueOf(resampling.toUpperCase()),
+                    Integer.parseInt(threshold)));
+        }
+        imageNetworkAccessor.setInferenceBatcher(inferenceBatcher.getIfAvailable());
+        if (Integer.parseInt(cacheMaxEntries) > 0) {
+            imageNetworkAccessor.setClassificationCache(new ClassificationCache(Integer.parseInt(cacheMaxEntries)));
+        }
+        return imageNetworkAccessor;
+    }
+
+    /**
+     * Creates the batcher that activates the network for concurrent identifications together,
+     * which is only created when the maximum batch size is above 1.
+     * Batches are activated on threads of its own, as the InferenceExecutor threads submitting inputs wait for them
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnExpression("${imageNetworkAccessor.batching.maxBatchSize} > 1")
+    public InferenceBatcher inferenceBatcher() {
+        int threads = batchingThreads == null || batchingThreads.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(batchingThreads);
+        return new InferenceBatcher(Integer.parseInt(batchingMaxBatchSize), Long.parseLong(batchingWindowMicros), threads);
     }
 
     @Bean
@@ -48,19 +137,59 @@ public class ApplicationConfig {
         return new BWImageConverter();
     }
 
+    /**
+     * Creates the neural network, loading it from the configured model file if one exists
+     * rather than creating a new, untrained network.
+     * A mapped model reads its weights in place from the file, so it starts quickly but cannot be trained.
+     * Float precision stores the weights in single precision, halving their size, and cannot be combined with a mapped model
+     */
     @Bean
-    public NeuralNetwork neuralNetwork() {
-        NeuralNetwork neuralNetwork = new SupervisedFeedForwardNetwork(
-                learningRule(),
-                Integer.parseInt(inputLayerNumNodes),
-                Integer.parseInt(hiddenLayerNumNodes),
-                Integer.parseInt(hiddenLayerCount),
-                recognitionOutputs().size(),
-                Double.parseDouble(initialWeightRange)
-        );
+    public NeuralNetwork neuralNetwork() throws IOException {
+        if ("float".equalsIgnoreCase(weightPrecision) && Boolean.parseBoolean(modelMapped)) {
+            // Converting mapped weights to floats would copy the whole model onto the heap
+            throw new IllegalArgumentException("network.weights.precision=float cannot be used with network.model.mapped=true");
+        }
+        SupervisedFeedForwardNetwork neuralNetwork;
+        if (!modelFile.isEmpty() && Files.exists(Paths.get(modelFile))) {
+            ModelSerialiser modelSerialiser = new ModelSerialiser();
+            neuralNetwork = Boolean.parseBoolean(modelMapped) ? modelSerialiser.map(Paths.get(modelFile)) : modelSerialiser.load(Paths.get(modelFile));
+            if (neuralNetwork.getOutputLayer().size() != recognitionOutputs().size()) {
+                throw new IllegalStateException("Model at " + modelFile + " has " + neuralNetwork.getOutputLayer().size()
+                        + " outputs but there are " + recognitionOutputs().size() + " classifications");
+            }
+        } else {
+            Random random = trainingSeed.isEmpty() ? new Random() : new Random(Long.parseLong(trainingSeed));
+            neuralNetwork = new SupervisedFeedForwardNetwork(
+                    learningRule(),
+                    Integer.parseInt(inputLayerNumNodes),
+                    Integer.parseInt(hiddenLayerNumNodes),
+                    Integer.parseInt(hiddenLayerCount),
+                    recognitionOutputs().size(),
+                    Double.parseDouble(initialWeightRange),
+                    random
+            );
+        }
+        if ("float".equalsIgnoreCase(weightPrecision)) {
+            neuralNetwork.getConnectionLayers().replaceAll(FloatConnectionLayer::new);
+        } else if (!"double".equalsIgnoreCase(weightPrecision)) {
+            throw new IllegalArgumentException("Invalid setting for network.weights.precision: " + weightPrecision);
+        }
+        neuralNetwork.setBatchSize(Integer.parseInt(trainingBatchSize));
+        neuralNetwork.setParallelism(Integer.parseInt(trainingParallelism));
+        neuralNetwork.setAsynchronous(Boolean.parseBoolean(trainingAsynchronous));
         return neuralNetwork;
     }
 
+    @Bean
+    public InputAugmenter inputAugmenter() {
+        return new InputAugmenter(
+                Double.parseDouble(augmentationMaxRotation),
+                Double.parseDouble(augmentationMaxShift),
+                Double.parseDouble(augmentationMaxScale),
+                Double.parseDouble(augmentationNoise)
+        );
+    }
+
     @Bean
     public LearningRule learningRule() {
         return new BackPropagationLearningRule(Double.parseDouble(learningRate));
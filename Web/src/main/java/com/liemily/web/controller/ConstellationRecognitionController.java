@@ -1,13 +1,29 @@
 package com.liemily.web.controller;
 
+import com.liemily.web.domain.TrainingProgress;
 import com.liemily.web.domain.Upload;
 import com.liemily.web.service.ConstellationRecognitionService;
+import com.liemily.web.service.IdentificationRejectedException;
+import com.liemily.web.service.RequestBodyReader;
+import com.liemily.web.service.RequestBodyTooLargeException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.ExtendedModelMap;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.ModelAndView;
 
+import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Constellation recognition application controller, providing access to the ConstellationRecognitionService
@@ -17,15 +33,103 @@ import java.io.IOException;
 public class ConstellationRecognitionController {
 
     private ConstellationRecognitionService constellationRecognitionService;
+    private RequestBodyReader requestBodyReader;
 
     @Autowired
-    public ConstellationRecognitionController(ConstellationRecognitionService constellationRecognitionService) {
+    public ConstellationRecognitionController(ConstellationRecognitionService constellationRecognitionService, RequestBodyReader requestBodyReader) {
         this.constellationRecognitionService = constellationRecognitionService;
+        this.requestBodyReader = requestBodyReader;
     }
 
     @RequestMapping("/identify")
     public String identify(Upload file, Model model) throws IOException {
-        Enum result = constellationRecognitionService.identify(file.getFile());
+        if (!constellationRecognitionService.isReady()) {
+            TrainingProgress trainingProgress = constellationRecognitionService.getTrainingProgress();
+            return notReady(trainingProgress, model);
+        }
+        Enum result;
+        try {
+            result = constellationRecognitionService.identify(file.getFile());
+        } catch (IdentificationRejectedException e) {
+            return "busy";
+        }
+        return showResult(result, file, model);
+    }
+
+    /**
+     * Asynchronous form of identify, which frees the request thread as soon as the upload is queued for identification.
+     * The response is completed from the InferenceExecutor once the image has been identified
+     */
+    @RequestMapping(value = "/identify/async", method = RequestMethod.POST)
+    public DeferredResult<ModelAndView> identifyAsync(Upload file) {
+        DeferredResult<ModelAndView> deferredResult = new DeferredResult<>(getRequestTimeout(), new ModelAndView("no-result"));
+        if (!constellationRecognitionService.isReady()) {
+            TrainingProgress trainingProgress = constellationRecognitionService.getTrainingProgress();
+            ExtendedModelMap model = new ExtendedModelMap();
+            deferredResult.setResult(new ModelAndView(notReady(trainingProgress, model), model));
+            return deferredResult;
+        }
+        constellationRecognitionService.identifyAsync(file.getFile()).whenComplete((result, e) -> {
+            if (e == null) {
+                ExtendedModelMap model = new ExtendedModelMap();
+                deferredResult.setResult(new ModelAndView(showResult(result, file, model), model));
+            } else if (unwrap(e) instanceof IdentificationRejectedException) {
+                deferredResult.setResult(new ModelAndView("busy"));
+            } else {
+                deferredResult.setErrorResult(unwrap(e));
+            }
+        });
+        return deferredResult;
+    }
+
+    /**
+     * Identifies an image sent as the body of the request, such as by a client posting a file with an image content type.
+     * The body is decoded as it is read by the RequestBodyReader, so that a slow upload does not hold a thread identifying images
+     * and the body is never held in memory whole, and only the decoded image is identified on the InferenceExecutor.
+     * The body is no longer read once the request has completed
+     * @return Returns the name of the identification, no content if nothing was identified,
+     *          service unavailable if the service is not ready or too many images are being read or identified,
+     *          payload too large if the body is over the RequestBodyReader's limit, or request timeout if it was not read in time
+     */
+    @RequestMapping(value = "/identify/stream", method = RequestMethod.POST, consumes = "image/*")
+    public DeferredResult<ResponseEntity<String>> identifyStream(HttpServletRequest request) {
+        long requestTimeout = getRequestTimeout();
+        if (requestTimeout > 0 && requestBodyReader.getTimeoutMs() > 0) {
+            requestTimeout += requestBodyReader.getTimeoutMs();
+        }
+        DeferredResult<ResponseEntity<String>> deferredResult = new DeferredResult<>(requestTimeout, new ResponseEntity<>(HttpStatus.NO_CONTENT));
+        if (!constellationRecognitionService.isReady()) {
+            TrainingProgress trainingProgress = constellationRecognitionService.getTrainingProgress();
+            deferredResult.setResult(new ResponseEntity<>(trainingProgress.getState().name().toLowerCase(), HttpStatus.SERVICE_UNAVAILABLE));
+            return deferredResult;
+        }
+        CompletableFuture<CompletableFuture<Enum>> body = requestBodyReader.read(request::getInputStream, constellationRecognitionService::identifyStreamAsync);
+        // The container may recycle the request once it has completed, such as by timing out
+        deferredResult.onCompletion(() -> body.cancel(false));
+        body.thenCompose(identification -> identification).whenComplete((result, e) -> {
+            if (e == null) {
+                deferredResult.setResult(result == null ? new ResponseEntity<>(HttpStatus.NO_CONTENT) : new ResponseEntity<>(result.name(), HttpStatus.OK));
+            } else if (unwrap(e) instanceof IdentificationRejectedException) {
+                deferredResult.setResult(new ResponseEntity<>(unwrap(e).getMessage(), HttpStatus.SERVICE_UNAVAILABLE));
+            } else if (unwrap(e) instanceof RequestBodyTooLargeException) {
+                deferredResult.setResult(new ResponseEntity<>(unwrap(e).getMessage(), HttpStatus.PAYLOAD_TOO_LARGE));
+            } else if (unwrap(e) instanceof SocketTimeoutException) {
+                deferredResult.setResult(new ResponseEntity<>(unwrap(e).getMessage(), HttpStatus.REQUEST_TIMEOUT));
+            } else {
+                deferredResult.setErrorResult(unwrap(e));
+            }
+        });
+        return deferredResult;
+    }
+
+    private String notReady(TrainingProgress trainingProgress, Model model) {
+        model.addAttribute("trainingstate", trainingProgress.getState().name().toLowerCase());
+        model.addAttribute("trainingiteration", trainingProgress.getIteration());
+        model.addAttribute("trainingiterations", trainingProgress.getIterations());
+        return "not-ready";
+    }
+
+    private String showResult(Enum result, Upload file, Model model) {
         if (result == null) {
             return "no-result";
         } else {
@@ -35,4 +139,41 @@ public class ConstellationRecognitionController {
             return "result";
         }
     }
+
+    /**
+     * @return Returns a request timeout a little longer than the identification timeout, so that identifications time out first,
+     *          or 0 for no timeout if identifications have none
+     */
+    private long getRequestTimeout() {
+        long identificationTimeoutMs = constellationRecognitionService.getIdentificationTimeoutMs();
+        return identificationTimeoutMs > 0 ? identificationTimeoutMs + 1000 : 0;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Reports the progress of training, so that it can be told when the service is ready to identify images
+     */
+    @RequestMapping("/status")
+    public @ResponseBody TrainingProgress status() {
+        return constellationRecognitionService.getTrainingProgress();
+    }
+
+    /**
+     * Reports the load on the threads identifying images and the outcomes of identifications so far
+     */
+    @RequestMapping("/status/identification")
+    public @ResponseBody Map<String, Long> identificationStatus() {
+        return constellationRecognitionService.getIdentificationStatistics();
+    }
+
+    /**
+     * Reports how often identifications have been answered from the cache of earlier identifications
+     */
+    @RequestMapping("/status/cache")
+    public @ResponseBody Map<String, Long> cacheStatus() {
+        return constellationRecognitionService.getCacheStatistics();
+    }
 }
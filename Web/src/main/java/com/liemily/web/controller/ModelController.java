@@ -0,0 +1,39 @@
+package com.liemily.web.controller;
+
+import com.liemily.web.service.ModelRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Model controller allowing new models to be rolled into the running application, see ModelRegistry
+ * @author Emily Li
+ */
+@Controller
+@RequestMapping("/model")
+public class ModelController {
+
+    private ModelRegistry modelRegistry;
+
+    @Autowired
+    public ModelController(ModelRegistry modelRegistry) {
+        this.modelRegistry = modelRegistry;
+    }
+
+    @RequestMapping(value="/version", method = RequestMethod.GET)
+    public @ResponseBody long version() {
+        return modelRegistry.getVersion();
+    }
+
+    /**
+     * Reloads the configured model file, responding once the new model has been published
+     */
+    @RequestMapping(value="/reload", method = RequestMethod.POST)
+    public @ResponseBody CompletableFuture<Long> reload() {
+        return modelRegistry.reload();
+    }
+}
@@ -13,6 +13,7 @@ import org.springframework.web.bind.annotation.*;
 import javax.servlet.annotation.MultipartConfig;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.Map;
 
 /**
  * Upload controller allowing the user to upload files
@@ -33,13 +34,16 @@ public class UploadController {
 
     @RequestMapping(value="/file/{id}", method = RequestMethod.GET)
     public @ResponseBody byte[] returnUpload(@PathVariable String id) throws IOException {
-        Upload upload = uploadService.get(id);
-        if (upload != null) {
-            byte[] byteArray = upload.getFile().getBytes();
-            return byteArray;
-        } else {
-            return new byte[0];
-        }
+        byte[] byteArray = uploadService.getBytes(id);
+        return byteArray != null ? byteArray : new byte[0];
+    }
+
+    /**
+     * Reports the uploads held in memory and on disk, and how many have been evicted
+     */
+    @RequestMapping(value="/status", method = RequestMethod.GET)
+    public @ResponseBody Map<String, Long> status() {
+        return uploadService.getStatistics();
     }
 
     @RequestMapping(value="/file", method = RequestMethod.POST)
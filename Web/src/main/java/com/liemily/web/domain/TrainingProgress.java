@@ -0,0 +1,82 @@
+package com.liemily.web.domain;
+
+/**
+ * Snapshot of how far the background training of the neural network has got
+ * @author Emily Li
+ */
+public class TrainingProgress {
+    public enum State {
+        /**
+         * The training set is being loaded
+         */
+        LOADING,
+        /**
+         * The network is being trained, and is not yet used for identification
+         */
+        TRAINING,
+        /**
+         * The network is used for identification, whether it was trained, loaded or training was skipped
+         */
+        READY,
+        /**
+         * Training failed or was stopped, so the network is not used for identification
+         */
+        FAILED
+    }
+
+    private final State state;
+    private final int iteration;
+    private final int iterations;
+    private final double error;
+    private final double pairsPerSecond;
+
+    /**
+     * @param state Stage the training has reached
+     * @param iteration Number of training iterations completed
+     * @param iterations Number of training iterations in total
+     * @param error Error of the last completed iteration
+     * @param pairsPerSecond Rate at which TrainingPairs were trained on in the last completed iteration
+     */
+    public TrainingProgress(State state, int iteration, int iterations, double error, double pairsPerSecond) {
+        this.state = state;
+        this.iteration = iteration;
+        this.iterations = iterations;
+        this.error = error;
+        this.pairsPerSecond = pairsPerSecond;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isReady() {
+        return state == State.READY;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public double getError() {
+        return error;
+    }
+
+    public double getPairsPerSecond() {
+        return pairsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "TrainingProgress{" +
+                "state=" + state +
+                ", iteration=" + iteration +
+                ", iterations=" + iterations +
+                ", error=" + error +
+                ", pairsPerSecond=" + pairsPerSecond +
+                '}';
+    }
+}
@@ -0,0 +1,231 @@
+package com.liemily.web.domain;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * File of the converted inputs of training images, so that unchanged images need not be decoded and converted again.
+ *
+ * Each input is stored against the image's path, size and last modified time, and the file as a whole
+ * against the settings used to convert the images, so changed images and changed settings are reprocessed.
+ * Files that could not be read as images are stored too, without an input, so that they are not read again until they change.
+ * Inputs are binary, so they are packed 64 nodes to a long, in the same layout as a PackedTrainingSet,
+ * and are kept packed once read until they are expanded or added to a PackedTrainingSet
+ * @author Emily Li
+ */
+public class TrainingSetCache {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int MAGIC_NUMBER = 0x54534331;
+    private static final int VERSION = 3;
+    private static final int UNREADABLE = -1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path cacheFile;
+    private final String settings;
+
+    /**
+     * @param cacheFile Location of the cache
+     * @param settings Description of the settings used to convert images. Cached inputs are ignored if it differs
+     */
+    public TrainingSetCache(Path cacheFile, String settings) {
+        this.cacheFile = cacheFile;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads the cached inputs in a single pass
+     * @return Returns the cached inputs by image path, which is empty if there is no usable cache
+     */
+    public Map<String, CachedInput> load() {
+        Map<String, CachedInput> cachedInputs = new HashMap<>();
+        if (!Files.exists(cacheFile)) {
+            return cachedInputs;
+        }
+
+        try (DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), BUFFER_SIZE))) {
+            if (dataInputStream.readInt() != MAGIC_NUMBER || dataInputStream.readInt() != VERSION) {
+                logger.info("Ignoring training set cache at " + cacheFile + " as it is not a supported cache file");
+                return cachedInputs;
+            }
+            if (!settings.equals(dataInputStream.readUTF())) {
+                logger.info("Ignoring training set cache at " + cacheFile + " as it was created with different settings");
+                return cachedInputs;
+            }
+
+            int count = dataInputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = dataInputStream.readUTF();
+                long size = dataInputStream.readLong();
+                long lastModified = dataInputStream.readLong();
+                String classification = dataInputStream.readUTF();
+                int nodeCount = dataInputStream.readInt();
+                if (nodeCount < UNREADABLE) {
+                    throw new IOException("Cached input " + i + " has invalid size " + nodeCount);
+                }
+                long[] words = new long[getWordCount(Math.max(nodeCount, 0))];
+                for (int w = 0; w < words.length; w++) {
+                    words[w] = dataInputStream.readLong();
+                }
+                cachedInputs.put(path, new CachedInput(path, size, lastModified, classification, words, nodeCount));
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read training set cache at " + cacheFile, e);
+            cachedInputs.clear();
+        }
+        logger.info("Read " + cachedInputs.size() + " cached inputs from " + cacheFile);
+        return cachedInputs;
+    }
+
+    /**
+     * Replaces the cache with the given inputs. The cache is written to a temporary file first and moved into place,
+     * so a cache being read is never partially written.
+     * The inputs are written one at a time as they are iterated, so they may be created as they are read
+     * @param cachedInputs Inputs to cache
+     * @throws IOException
+     */
+    public void save(Collection<CachedInput> cachedInputs) throws IOException {
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE))) {
+            dataOutputStream.writeInt(MAGIC_NUMBER);
+            dataOutputStream.writeInt(VERSION);
+            dataOutputStream.writeUTF(settings);
+            dataOutputStream.writeInt(cachedInputs.size());
+            for (CachedInput cachedInput : cachedInputs) {
+                dataOutputStream.writeUTF(cachedInput.getPath());
+                dataOutputStream.writeLong(cachedInput.getSize());
+                dataOutputStream.writeLong(cachedInput.getLastModified());
+                dataOutputStream.writeUTF(cachedInput.getClassification());
+                dataOutputStream.writeInt(cachedInput.getNodeCount());
+                for (long word : cachedInput.getWords()) {
+                    dataOutputStream.writeLong(word);
+                }
+            }
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("Wrote " + cachedInputs.size() + " cached inputs to " + cacheFile);
+    }
+
+    /**
+     * @return Returns true if every node value is 0 or 1, so that the input can be cached
+     */
+    public static boolean isCacheable(double[] nodes) {
+        for (double node : nodes) {
+            if (node != 0 && node != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getWordCount(int nodeCount) {
+        return (nodeCount + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * Converted input of one training image, held packed
+     */
+    public static class CachedInput {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String classification;
+        private final long[] words;
+        private final int nodeCount;
+
+        /**
+         * @param nodes Node values of the input, which must all be 0 or 1, see isCacheable
+         */
+        public CachedInput(String path, long size, long lastModified, String classification, double[] nodes) {
+            this(path, size, lastModified, classification, new long[getWordCount(nodes.length)], nodes.length);
+            for (int n = 0; n < nodes.length; n++) {
+                if (nodes[n] == 1) {
+                    words[n / Long.SIZE] |= 1L << (n % Long.SIZE);
+                }
+            }
+        }
+
+        /**
+         * @param words Input packed as by PackedTrainingSet, one bit per node from the lowest bit of the first word
+         * @param nodeCount Number of nodes in the input
+         */
+        public CachedInput(String path, long size, long lastModified, String classification, long[] words, int nodeCount) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.classification = classification;
+            this.words = words;
+            this.nodeCount = nodeCount;
+        }
+
+        /**
+         * Creates an entry for a file that could not be read as an image, which has no input
+         */
+        public static CachedInput unreadable(String path, long size, long lastModified, String classification) {
+            return new CachedInput(path, size, lastModified, classification, new long[0], UNREADABLE);
+        }
+
+        /**
+         * @return Returns true if the file could not be read as an image, in which case it has no input
+         */
+        public boolean isUnreadable() {
+            return nodeCount == UNREADABLE;
+        }
+
+        /**
+         * @return Returns true if the input was converted from an image of the same size, modification time and classification
+         */
+        public boolean matches(long size, long lastModified, String classification) {
+            return this.size == size && this.lastModified == lastModified && this.classification.equals(classification);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getClassification() {
+            return classification;
+        }
+
+        /**
+         * @return Returns the packed input, which is shared and must not be changed
+         */
+        public long[] getWords() {
+            return words;
+        }
+
+        public int getNodeCount() {
+            return nodeCount;
+        }
+
+        /**
+         * @return Returns a newly expanded array of the input's node values
+         */
+        public double[] getNodes() {
+            double[] nodes = new double[nodeCount];
+            for (int n = 0; n < nodeCount; n++) {
+                if ((words[n / Long.SIZE] >>> (n % Long.SIZE) & 1L) != 0) {
+                    nodes[n] = 1;
+                }
+            }
+            return nodes;
+        }
+    }
+}
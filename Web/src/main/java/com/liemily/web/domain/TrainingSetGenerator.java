@@ -1,22 +1,33 @@
 package com.liemily.web.domain;
 
+import com.liemily.imagerecognition.AugmentedTrainingSet;
 import com.liemily.imagerecognition.ImageNetworkAccessor;
+import com.liemily.imagerecognition.InputAugmenter;
 import com.liemily.imagerecognition.RecognitionOutputs;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
-import com.liemily.neuralnetwork.training.TrainingPair;
-import com.liemily.neuralnetwork.training.TrainingSet;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.training.*;
+import com.liemily.web.service.FileUtilities;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Helper class to generate a training set that can be used by the neural network from a directory
@@ -25,18 +36,47 @@ import java.util.*;
 @Component
 public class TrainingSetGenerator {
     private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+    // Describes how images are decoded, so that inputs cached before it changed are not used
+    private static final String DECODING = "subsampled";
 
     private ImageNetworkAccessor imageNetworkAccessor;
     private RecognitionOutputs recognitionOutputs;
     private boolean resizeImg;
+    private Random random;
+    private int loaderThreads;
+    private String cacheFile;
+    private boolean packed;
+    private String shardFile;
+    private int shuffleBufferSize;
+    private InputAugmenter inputAugmenter;
+    private int augmentationVariants;
+    private FileUtilities fileUtilities;
 
     private Map<String, Enum> classificationMap;
 
     @Autowired
-    public TrainingSetGenerator(ImageNetworkAccessor imageNetworkAccessor, RecognitionOutputs recognitionOutputs, @Value("${imageNetworkAccessor.resizeImg}") String resizeImg) {
+    public TrainingSetGenerator(ImageNetworkAccessor imageNetworkAccessor, RecognitionOutputs recognitionOutputs, @Value("${imageNetworkAccessor.resizeImg}") String resizeImg, @Value("${network.training.seed}") String seed, @Value("${app.training.loaderThreads}") String loaderThreads, @Value("${app.training.cacheFile}") String cacheFile, @Value("${app.training.packed}") String packed, @Value("${app.training.shardFile}") String shardFile, @Value("${app.training.shuffleBuffer}") String shuffleBufferSize, InputAugmenter inputAugmenter, @Value("${app.training.augmentation.variants}") String augmentationVariants) {
         this.imageNetworkAccessor = imageNetworkAccessor;
         this.recognitionOutputs = recognitionOutputs;
         this.resizeImg = Boolean.parseBoolean(resizeImg);
+        this.random = seed == null || seed.isEmpty() ? new Random() : new Random(Long.parseLong(seed));
+        this.loaderThreads = loaderThreads == null || loaderThreads.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(loaderThreads);
+        if (this.loaderThreads < 1) {
+            throw new IllegalArgumentException("Invalid setting for app.training.loaderThreads: " + loaderThreads);
+        }
+        this.cacheFile = cacheFile;
+        this.packed = Boolean.parseBoolean(packed);
+        this.shardFile = shardFile;
+        this.shuffleBufferSize = Integer.parseInt(shuffleBufferSize);
+        if (this.shuffleBufferSize < 1) {
+            throw new IllegalArgumentException("Invalid setting for app.training.shuffleBuffer: " + shuffleBufferSize);
+        }
+        this.inputAugmenter = inputAugmenter;
+        this.augmentationVariants = Integer.parseInt(augmentationVariants);
+        if (this.augmentationVariants < 0) {
+            throw new IllegalArgumentException("Invalid setting for app.training.augmentation.variants: " + augmentationVariants);
+        }
+        this.fileUtilities = new FileUtilities();
 
         // Get list of valid subdirectory names, i.e. valid classifications
         classificationMap = new HashMap<>();
@@ -48,12 +88,41 @@ public class TrainingSetGenerator {
      * The method searches the directory for folders matching the recognition output names,
      * takes the images in the location, and creates the training set
      *
-     * The subdirectories must match the Enum values from the RecognitionOutputs class
+     * The subdirectories must match the Enum values from the RecognitionOutputs class.
+     *
+     * The images are decoded and converted in parallel, and the training set is returned straight away.
+     * Iterating over its TrainingPairs waits for each one to be loaded in turn, so training can start on the first images
+     * while later ones are still loading. The images are loaded in a shuffled but, given a seed, repeatable order.
+     *
+     * If a cache file is configured, images that have not changed since they were cached are not decoded again,
+     * and the cache is updated once every image has been loaded. Each image's size and modification time are read before it is decoded,
+     * so an image changed while it is decoded is decoded again next time. Files that are not readable images are cached as such,
+     * so that they do not cause the cache to be rewritten at every start up. Cached inputs are held packed, one bit per node,
+     * and are only expanded to doubles when the training set itself holds doubles.
+     *
+     * If packed training sets are configured, the images are instead loaded into a PackedTrainingSet before it is returned,
+     * with only a few images in flight at a time, so that the full set of inputs is never held as doubles.
+     * If a shard file is configured, the images are written to the shard file in the same way instead,
+     * and the returned set streams them from the file in a new shuffled order on each training iteration,
+     * so that training sets larger than the heap can be used. Only the packed cached inputs, if any, are held while writing it.
+     *
+     * If augmentation is configured, each training iteration mixes newly created variants of every image in among the images
+     * through a shuffle buffer of the same size as for shard files, see AugmentedTrainingSet
      *
      * @return TrainingSet produced from the images found within the training set directory
      */
     public TrainingSet getTrainingSet(String trainingSetDir) {
-        List<TrainingPair> trainingPairs = new ArrayList<>();
+        TrainingSet trainingSet = loadTrainingSet(trainingSetDir);
+        if (augmentationVariants > 0) {
+            logger.info("Augmenting each training pair with " + augmentationVariants + " variants per training iteration using " + inputAugmenter);
+            return new AugmentedTrainingSet(trainingSet, inputAugmenter, augmentationVariants, loaderThreads, shuffleBufferSize, random);
+        }
+        return trainingSet;
+    }
+
+    private TrainingSet loadTrainingSet(String trainingSetDir) {
+        List<File> files = new ArrayList<>();
+        List<Enum> classifications = new ArrayList<>();
 
         // Search the training set directory for images matching the classifications
         File trainingDir = new File(trainingSetDir);
@@ -61,6 +130,8 @@ public class TrainingSetGenerator {
 
         if (trainingDir.exists()) {
             File[] subDirectories = trainingDir.listFiles();
+            // Sort so that a seeded shuffle gives the same order regardless of the file system's listing order
+            Arrays.sort(subDirectories);
 
             for (File subDir : subDirectories) {
                 if (subDir.isDirectory()) {
@@ -68,59 +139,458 @@ public class TrainingSetGenerator {
                     Enum classificationEnum = classificationMap.get(classification);
 
                     if (classificationEnum != null) {
-                        File[] files = subDir.listFiles();
-                        Collection<TrainingPair> classificationTrainingPairs = getTrainingPairs(classificationMap.get(classification), files);
-                        trainingPairs.addAll(classificationTrainingPairs);
+                        File[] classificationFiles = subDir.listFiles();
+                        Arrays.sort(classificationFiles);
+                        for (File file : classificationFiles) {
+                            files.add(file);
+                            classifications.add(classificationEnum);
+                        }
                     }
                 }
             }
         }
 
-        logger.info("Returning training set of size " + trainingPairs.size());
-        Collections.shuffle(trainingPairs);
-        return new TrainingSet(trainingPairs);
+        // Shuffle the files rather than the loaded TrainingPairs, so the set can be used before every image is loaded
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, random);
+
+        TrainingSetCache trainingSetCache = cacheFile == null || cacheFile.isEmpty() ? null
+                : new TrainingSetCache(Paths.get(cacheFile), imageNetworkAccessor.getInputSettings() + ";" + resizeImg + ";" + packed + ";" + DECODING);
+        Map<String, TrainingSetCache.CachedInput> cachedInputs = trainingSetCache == null ? Collections.emptyMap() : trainingSetCache.load();
+        if (shardFile != null && !shardFile.isEmpty()) {
+            try {
+                return getShardedTrainingSet(files, classifications, order, cachedInputs);
+            } catch (IOException e) {
+                logger.warn("Failed to write training shard to " + shardFile + ", so the training set is loaded into memory instead", e);
+            }
+        }
+        if (packed) {
+            return getPackedTrainingSet(files, classifications, order, trainingSetCache, cachedInputs);
+        }
+        int cacheHits = 0;
+
+        logger.info("Loading " + files.size() + " images with " + loaderThreads + " threads");
+        long startTime = System.nanoTime();
+        ExecutorService executorService = createLoaderPool();
+        List<CompletableFuture<TrainingPair>> trainingPairs = new ArrayList<>();
+        List<ImageFile> trainingPairFiles = new ArrayList<>();
+        Map<Enum, List<CompletableFuture<TrainingPair>>> classificationTrainingPairs = new LinkedHashMap<>();
+        for (int i : order) {
+            Enum classification = classifications.get(i);
+            ImageFile imageFile = new ImageFile(files.get(i), classification);
+            TrainingSetCache.CachedInput cachedInput = getCachedInput(classification, imageFile, cachedInputs);
+            CompletableFuture<TrainingPair> trainingPair;
+            if (cachedInput != null) {
+                trainingPair = CompletableFuture.completedFuture(cachedInput.isUnreadable() ? null : getCachedTrainingPair(classification, cachedInput));
+                cacheHits++;
+            } else {
+                trainingPair = CompletableFuture.supplyAsync(() -> getTrainingPair(classification, imageFile.file), executorService);
+            }
+            trainingPairs.add(trainingPair);
+            trainingPairFiles.add(imageFile);
+            classificationTrainingPairs.computeIfAbsent(classification, c -> new ArrayList<>()).add(trainingPair);
+        }
+        // Already submitted images are still loaded, after which the threads finish
+        executorService.shutdown();
+        if (trainingSetCache != null) {
+            logger.info("Using " + cacheHits + " cached inputs");
+        }
+
+        classificationTrainingPairs.forEach((classification, loading) ->
+                CompletableFuture.allOf(loading.toArray(new CompletableFuture[0])).thenRun(() ->
+                        logger.info("Found " + countLoaded(loading) + " training pairs for classification " + classification)));
+        boolean cacheChanged = cacheHits != files.size() || cachedInputs.size() != files.size();
+        CompletableFuture.allOf(trainingPairs.toArray(new CompletableFuture[0])).thenRun(() -> {
+            int loaded = countLoaded(trainingPairs);
+            logLoaded(loaded, startTime);
+            if (trainingSetCache != null && cacheChanged) {
+                updateCache(trainingSetCache, trainingPairFiles, trainingPairs.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+            }
+        });
+
+        return new TrainingSet(new LoadingTrainingPairs(trainingPairs));
     }
 
     /**
-     * Retrieves a collection of TrainingPairs from a list of files, given a classification
-     * @param classification Classification determining the output of the TrainingPair
-     * @param files Array of files determining the inputs of the TrainingPairs
-     * @return Returns a collection of training pairs in which the inputs are processed images,
-     *          and the outputs are specified by the classification
+     * Loads images into a PackedTrainingSet in the given order
+     * @return Returns the packed TrainingSet, once every image has been loaded
      */
-    private Collection<TrainingPair> getTrainingPairs(Enum classification, File[] files) {
-        Collection<TrainingPair> trainingPairs = new ArrayList<>();
+    private TrainingSet getPackedTrainingSet(List<File> files, List<Enum> classifications, List<Integer> order,
+                                             TrainingSetCache trainingSetCache, Map<String, TrainingSetCache.CachedInput> cachedInputs) {
+        PackedTrainingSet trainingSet = new PackedTrainingSet(imageNetworkAccessor.getNeuralNetwork().getInputLayer().size());
+        LoadedFiles loadedFiles;
+        try {
+            loadedFiles = loadInOrder(files, classifications, order, cachedInputs, trainingSet.getInputSize(), trainingSet::addTrainingPair,
+                    (classification, cachedInput, output) -> trainingSet.addTrainingPair(classification, cachedInput.getWords(), output));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to add to an in-memory training set", e);
+        }
+        if (trainingSetCache != null && (loadedFiles.cacheHits != files.size() || cachedInputs.size() != files.size())) {
+            updateCache(trainingSetCache, loadedFiles, trainingSet);
+        }
+        return trainingSet;
+    }
 
-        for (File file : files) {
-            try {
-                TrainingPair trainingPair = getTrainingPair(classification, file);
-                if (trainingPair != null) {
-                    trainingPairs.add(trainingPair);
+    /**
+     * Loads images into a shard file in the given order, copying cached inputs into it without expanding them.
+     * The shard file is only replaced once every image has been written to it.
+     * The cache is not updated, as that would need every input in memory at once, and the shard file already holds them
+     * @return Returns the TrainingSet streamed from the shard file, once every image has been written to it
+     * @throws IOException If the shard file cannot be written or read back
+     */
+    private TrainingSet getShardedTrainingSet(List<File> files, List<Enum> classifications, List<Integer> order,
+                                              Map<String, TrainingSetCache.CachedInput> cachedInputs) throws IOException {
+        Path shardPath = Paths.get(shardFile);
+        NeuralNetwork neuralNetwork = imageNetworkAccessor.getNeuralNetwork();
+        int inputSize = neuralNetwork.getInputLayer().size();
+        try (TrainingShardWriter writer = new TrainingShardWriter(shardPath, inputSize,
+                neuralNetwork.getOutputLayer().size(), TrainingShardWriter.DEFAULT_BLOCK_SIZE)) {
+            loadInOrder(files, classifications, order, cachedInputs, inputSize, writer::addTrainingPair,
+                    (classification, cachedInput, output) -> writer.addTrainingPair(classification, cachedInput.getWords(), output));
+            // Only a fully written shard replaces the last one, as it is reused by later start ups
+            writer.commit();
+        }
+        return new ShardedTrainingSet(shardPath, shuffleBufferSize, random);
+    }
+
+    /**
+     * Loads images in the given order, passing each TrainingPair on as soon as it is loaded and then dropping it.
+     * At most a few images per loader thread are decoded ahead of the one being passed on.
+     * Cached inputs of the input size are passed on still packed
+     * @param inputSize Number of nodes in every input
+     * @param trainingPairs Where the loaded TrainingPairs are added
+     * @param packedInputs Where the cached inputs are added
+     * @return Returns the files whose TrainingPairs were added, in order, and the files that could not be read
+     * @throws IOException If a TrainingPair cannot be added
+     */
+    private LoadedFiles loadInOrder(List<File> files, List<Enum> classifications, List<Integer> order,
+                                    Map<String, TrainingSetCache.CachedInput> cachedInputs, int inputSize,
+                                    TrainingPairConsumer trainingPairs, CachedInputConsumer packedInputs) throws IOException {
+        LoadedFiles loadedFiles = new LoadedFiles();
+        Map<Enum, Integer> classificationCounts = new LinkedHashMap<>();
+        int window = loaderThreads * 4;
+
+        logger.info("Loading " + files.size() + " images in order with " + loaderThreads + " threads");
+        long startTime = System.nanoTime();
+        ExecutorService executorService = createLoaderPool();
+        try {
+            Deque<PendingInput> loading = new ArrayDeque<>();
+            for (int i : order) {
+                Enum classification = classifications.get(i);
+                ImageFile imageFile = new ImageFile(files.get(i), classification);
+                TrainingSetCache.CachedInput cachedInput = getCachedInput(classification, imageFile, cachedInputs);
+                if (cachedInput != null && (cachedInput.isUnreadable() || cachedInput.getNodeCount() == inputSize)) {
+                    loading.add(new PendingInput(imageFile, cachedInput, null));
+                    loadedFiles.cacheHits++;
+                } else {
+                    loading.add(new PendingInput(imageFile, null,
+                            CompletableFuture.supplyAsync(() -> getTrainingPair(classification, imageFile.file), executorService)));
                 }
-            } catch (IOException e) {
-                logger.warn("Failed to read file at " + file.getAbsolutePath(), e);
+
+                if (loading.size() >= window) {
+                    add(trainingPairs, packedInputs, loading.poll(), loadedFiles, classificationCounts);
+                }
+            }
+            while (!loading.isEmpty()) {
+                add(trainingPairs, packedInputs, loading.poll(), loadedFiles, classificationCounts);
+            }
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        if (!cachedInputs.isEmpty()) {
+            logger.info("Using " + loadedFiles.cacheHits + " cached inputs");
+        }
+        classificationCounts.forEach((classification, count) ->
+                logger.info("Found " + count + " training pairs for classification " + classification));
+        logLoaded(loadedFiles.added.size(), startTime);
+        return loadedFiles;
+    }
+
+    private void add(TrainingPairConsumer trainingPairs, CachedInputConsumer packedInputs, PendingInput pendingInput,
+                     LoadedFiles loadedFiles, Map<Enum, Integer> classificationCounts) throws IOException {
+        try {
+            if (pendingInput.cachedInput != null) {
+                if (pendingInput.cachedInput.isUnreadable()) {
+                    loadedFiles.unreadable.add(pendingInput.imageFile);
+                    return;
+                }
+                Enum classification = pendingInput.imageFile.classification;
+                packedInputs.accept(classification, pendingInput.cachedInput, recognitionOutputs.getNeuronLayer(classification));
+            } else {
+                TrainingPair trainingPair = pendingInput.trainingPair.join();
+                if (trainingPair == null) {
+                    loadedFiles.unreadable.add(pendingInput.imageFile);
+                    return;
+                }
+                trainingPairs.accept(trainingPair);
+            }
+        } catch (IllegalArgumentException e) {
+            logger.warn("Skipping image at " + pendingInput.imageFile.file.getAbsolutePath() + " which cannot be packed: " + e.getMessage());
+            return;
+        }
+        loadedFiles.added.add(pendingInput.imageFile);
+        classificationCounts.merge(pendingInput.imageFile.classification, 1, Integer::sum);
+    }
+
+    /**
+     * @return Returns the cached input of an image, or null if the image is not cached or has changed
+     */
+    private static TrainingSetCache.CachedInput getCachedInput(Enum classification, ImageFile imageFile, Map<String, TrainingSetCache.CachedInput> cachedInputs) {
+        TrainingSetCache.CachedInput cachedInput = cachedInputs.get(imageFile.file.getAbsolutePath());
+        if (cachedInput != null && cachedInput.matches(imageFile.size, imageFile.lastModified, classification.name())) {
+            return cachedInput;
+        }
+        return null;
+    }
+
+    /**
+     * @return Returns a TrainingPair expanded from the cached input of an image
+     */
+    private TrainingPair getCachedTrainingPair(Enum classification, TrainingSetCache.CachedInput cachedInput) {
+        NeuronLayer output = recognitionOutputs.getNeuronLayer(classification);
+        return new TrainingPair(classification, new NeuronLayer(cachedInput.getNodes()), output);
+    }
+
+    /**
+     * @return Returns a pool of the configured number of threads on which images are decoded, named so that they can be told apart
+     */
+    private ExecutorService createLoaderPool() {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(loaderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "training-loader-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static void logLoaded(int loaded, long startTime) {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        logger.info("Loaded training set of size " + loaded + " in " + String.format("%.2f", seconds) + "s ("
+                + String.format("%.1f", loaded / Math.max(seconds, 1e-9)) + " images/s)");
+    }
+
+    /**
+     * Replaces the cache with the inputs of every image that was loaded, and the files that could not be read
+     * @param trainingSetCache Cache to write to
+     * @param files Image files, in the same order as their TrainingPairs
+     * @param trainingPairs Loaded TrainingPairs, which are null for images that could not be read
+     */
+    private void updateCache(TrainingSetCache trainingSetCache, List<ImageFile> files, List<TrainingPair> trainingPairs) {
+        List<TrainingSetCache.CachedInput> cachedInputs = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            ImageFile imageFile = files.get(i);
+            TrainingPair trainingPair = trainingPairs.get(i);
+            if (trainingPair == null) {
+                cachedInputs.add(imageFile.toUnreadable());
+            } else if (TrainingSetCache.isCacheable(trainingPair.getInput().getNodes())) {
+                cachedInputs.add(new TrainingSetCache.CachedInput(imageFile.file.getAbsolutePath(), imageFile.size, imageFile.lastModified,
+                        trainingPair.getName().name(), trainingPair.getInput().getNodes()));
+            }
+        }
+        save(trainingSetCache, cachedInputs);
+    }
+
+    /**
+     * Replaces the cache with the inputs of a PackedTrainingSet, followed by the files that could not be read.
+     * Each input is copied from the set's words as the cache is written, so they are never expanded or all copied at once
+     * @param trainingSetCache Cache to write to
+     * @param loadedFiles Image files, in the same order as the set's TrainingPairs, and the files that could not be read
+     * @param trainingSet Loaded TrainingPairs
+     */
+    private void updateCache(TrainingSetCache trainingSetCache, LoadedFiles loadedFiles, PackedTrainingSet trainingSet) {
+        save(trainingSetCache, new AbstractList<TrainingSetCache.CachedInput>() {
+            @Override
+            public TrainingSetCache.CachedInput get(int index) {
+                if (index >= loadedFiles.added.size()) {
+                    return loadedFiles.unreadable.get(index - loadedFiles.added.size()).toUnreadable();
+                }
+                ImageFile imageFile = loadedFiles.added.get(index);
+                long[] words = new long[trainingSet.getWordsPerInput()];
+                trainingSet.getInputWords(index, words);
+                return new TrainingSetCache.CachedInput(imageFile.file.getAbsolutePath(), imageFile.size, imageFile.lastModified,
+                        trainingSet.getName(index).name(), words, trainingSet.getInputSize());
+            }
+
+            @Override
+            public int size() {
+                return loadedFiles.added.size() + loadedFiles.unreadable.size();
+            }
+        });
+    }
+
+    private static void save(TrainingSetCache trainingSetCache, Collection<TrainingSetCache.CachedInput> cachedInputs) {
+        try {
+            trainingSetCache.save(cachedInputs);
+        } catch (IOException e) {
+            logger.warn("Failed to write training set cache", e);
+        }
+    }
+
+    private static int countLoaded(List<CompletableFuture<TrainingPair>> trainingPairs) {
+        int loaded = 0;
+        for (CompletableFuture<TrainingPair> trainingPair : trainingPairs) {
+            if (trainingPair.join() != null) {
+                loaded++;
             }
         }
-        logger.info("Found " + trainingPairs.size() + " training pairs for classification " + classification);
-        return trainingPairs;
+        return loaded;
     }
 
     /**
      * Creates a TrainingPair, given a file.
      * It creates the input by parsing the image, and the output from the parent directory name.
+     * The image is decoded as images streamed for identification are, see FileUtilities.streamToImg,
+     * so that the network is trained on the same inputs as it later identifies.
      * @param classification Classification determing the output of the TrainingPair
      * @param file Image matching a valid classification type
-     * @return Returns a TrainingPair from information provided by the file. If the file is invalid, it returns null
-     * @throws IOException
+     * @return Returns a TrainingPair from information provided by the file. If the file is invalid or cannot be read, it returns null
      */
-    private TrainingPair getTrainingPair(Enum classification, File file) throws IOException {
-        BufferedImage img = ImageIO.read(file);
+    private TrainingPair getTrainingPair(Enum classification, File file) {
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            BufferedImage img = fileUtilities.streamToImg(is, resizeImg ? imageNetworkAccessor.getMinimumImageSize() : 0);
 
-        if (img != null) {
-            NeuronLayer input = imageNetworkAccessor.getInput(img, resizeImg);
-            NeuronLayer output = recognitionOutputs.getNeuronLayer(classificationMap.get(classification.name()));
-            return new TrainingPair(classification, input, output);
+            if (img != null) {
+                NeuronLayer input = imageNetworkAccessor.getInput(img, resizeImg);
+                NeuronLayer output = recognitionOutputs.getNeuronLayer(classificationMap.get(classification.name()));
+                return new TrainingPair(classification, input, output);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to read file at " + file.getAbsolutePath(), e);
         }
         return null;
     }
+
+    /**
+     * Destination for TrainingPairs loaded in order, such as a PackedTrainingSet or a TrainingShardWriter
+     */
+    private interface TrainingPairConsumer {
+        void accept(TrainingPair trainingPair) throws IOException;
+    }
+
+    /**
+     * Destination for cached inputs loaded in order, which may take them without expanding them
+     */
+    private interface CachedInputConsumer {
+        void accept(Enum classification, TrainingSetCache.CachedInput cachedInput, NeuronLayer output) throws IOException;
+    }
+
+    /**
+     * Training image with the size and modification time it had before it was decoded,
+     * which are what its cached input is stored against, so that a change made while decoding it is not missed
+     */
+    private static class ImageFile {
+        private final File file;
+        private final Enum classification;
+        private final long size;
+        private final long lastModified;
+
+        private ImageFile(File file, Enum classification) {
+            this.file = file;
+            this.classification = classification;
+            this.size = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        private TrainingSetCache.CachedInput toUnreadable() {
+            return TrainingSetCache.CachedInput.unreadable(file.getAbsolutePath(), size, lastModified, classification.name());
+        }
+    }
+
+    /**
+     * Images loaded in order, and the files among them that could not be read
+     */
+    private static class LoadedFiles {
+        private final List<ImageFile> added = new ArrayList<>();
+        private final List<ImageFile> unreadable = new ArrayList<>();
+        private int cacheHits;
+    }
+
+    /**
+     * Image waiting to be passed on in order, either already cached or still being loaded
+     */
+    private static class PendingInput {
+        private final ImageFile imageFile;
+        private final TrainingSetCache.CachedInput cachedInput;
+        private final CompletableFuture<TrainingPair> trainingPair;
+
+        private PendingInput(ImageFile imageFile, TrainingSetCache.CachedInput cachedInput, CompletableFuture<TrainingPair> trainingPair) {
+            this.imageFile = imageFile;
+            this.cachedInput = cachedInput;
+            this.trainingPair = trainingPair;
+        }
+    }
+
+    /**
+     * TrainingPairs that are still being loaded, in the order their images were submitted.
+     * Iterating waits for each TrainingPair as it is reached, skipping images that could not be read,
+     * while the size waits for every image to be loaded
+     */
+    private static class LoadingTrainingPairs extends AbstractCollection<TrainingPair> {
+        private final List<CompletableFuture<TrainingPair>> loading;
+        private volatile List<TrainingPair> loaded;
+
+        private LoadingTrainingPairs(List<CompletableFuture<TrainingPair>> loading) {
+            this.loading = loading;
+        }
+
+        @Override
+        public Iterator<TrainingPair> iterator() {
+            List<TrainingPair> trainingPairs = loaded;
+            if (trainingPairs != null) {
+                return trainingPairs.iterator();
+            }
+            return new Iterator<TrainingPair>() {
+                private final Iterator<CompletableFuture<TrainingPair>> futures = loading.iterator();
+                private TrainingPair next = advance();
+
+                private TrainingPair advance() {
+                    while (futures.hasNext()) {
+                        TrainingPair trainingPair = futures.next().join();
+                        if (trainingPair != null) {
+                            return trainingPair;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                @Override
+                public TrainingPair next() {
+                    if (next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    TrainingPair trainingPair = next;
+                    next = advance();
+                    return trainingPair;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return getLoaded().size();
+        }
+
+        private List<TrainingPair> getLoaded() {
+            List<TrainingPair> trainingPairs = loaded;
+            if (trainingPairs == null) {
+                trainingPairs = new ArrayList<>();
+                for (CompletableFuture<TrainingPair> trainingPair : loading) {
+                    if (trainingPair.join() != null) {
+                        trainingPairs.add(trainingPair.join());
+                    }
+                }
+                loaded = trainingPairs;
+            }
+            return trainingPairs;
+        }
+    }
 }
@@ -1,24 +1,45 @@
 package com.liemily.web.service;
 
+import com.liemily.imagerecognition.ClassificationCache;
 import com.liemily.imagerecognition.ImageNetworkAccessor;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.quantisation.NetworkQuantiser;
 import com.liemily.neuralnetwork.training.TrainingSet;
+import com.liemily.web.domain.TrainingProgress;
 import com.liemily.web.domain.TrainingSetGenerator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PreDestroy;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.*;
 
 /**
  * Constellation recognition service, bringing together the ImageNetworkAccessor and web application.
  *
- * As the neural network currently has no persisted state, the service trains the neural network at start up
+ * If no trained model has been saved to the configured model file, the service trains the neural network at start up
+ * and saves the result, so that later start ups can load the model instead of training again.
+ * The trained network may then be replaced by a quantised copy for faster identification.
+ *
+ * Training may run in the background so that the application starts straight away, reporting its progress as it goes.
+ * A copy of the network is trained privately and only published through the ModelRegistry once training is complete,
+ * unless another model has been published while it trained, in which case the trained copy is discarded.
+ * The service is ready once a model has been published, either by training or by the ModelRegistry,
+ * and until then refuses to identify images with a half trained network
  * @author Emily Li
  */
 @Component
@@ -26,11 +47,27 @@ public class ConstellationRecognitionService {
     private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
 
     private ImageNetworkAccessor imageNetworkAccessor;
+    private TrainingSetGenerator trainingSetGenerator;
+    private InferenceExecutor inferenceExecutor;
+    private ModelRegistry modelRegistry;
     private long identificationTimeoutMs;
+    private String trainingSetDir;
+    private String modelFile;
+    private boolean modelQuantised;
+    private ExecutorService trainingExecutor;
+    private volatile TrainingProgress trainingProgress;
+    // Network created at start up, which a copy is trained from, until the trained copy or another model has been published
+    private volatile NeuralNetwork unpublishedNetwork;
 
     @Autowired
-    public ConstellationRecognitionService(ImageNetworkAccessor imageNetworkAccessor, TrainingSetGenerator trainingSetGenerator, @Value("${app.training.dir}") String trainingSetDir, @Value("${app.training.iterations}") String trainingIterations, @Value("${app.identification.timeoutMs}") String identificationTimeoutMs) {
+    public ConstellationRecognitionService(ImageNetworkAccessor imageNetworkAccessor, TrainingSetGenerator trainingSetGenerator, InferenceExecutor inferenceExecutor, ModelRegistry modelRegistry, @Value("${app.training.dir}") String trainingSetDir, @Value("${app.training.iterations}") String trainingIterations, @Value("${app.identification.timeoutMs}") String identificationTimeoutMs, @Value("${network.model.file}") String modelFile, @Value("${network.model.quantised}") String modelQuantised, @Value("${app.training.background}") String trainInBackground) {
         this.imageNetworkAccessor = imageNetworkAccessor;
+        this.trainingSetGenerator = trainingSetGenerator;
+        this.inferenceExecutor = inferenceExecutor;
+        this.modelRegistry = modelRegistry;
+        this.trainingSetDir = trainingSetDir;
+        this.modelFile = modelFile;
+        this.modelQuantised = Boolean.parseBoolean(modelQuantised);
         if (identificationTimeoutMs == null || identificationTimeoutMs.isEmpty()) {
             this.identificationTimeoutMs = -1;
         } else {
@@ -49,26 +86,228 @@ public class ConstellationRecognitionService {
             iter = 0;
         }
 
-        if (iter > 0) {
+        boolean modelSaved = modelFile != null && !modelFile.isEmpty() && Files.exists(Paths.get(modelFile));
+        if (modelSaved || iter == 0) {
+            logger.info(modelSaved ? "Skipping training as the network was loaded from " + modelFile : "Skipping training");
+            if (this.modelQuantised) {
+                imageNetworkAccessor.setNeuralNetwork(quantise(imageNetworkAccessor.getNeuralNetwork(), null));
+            }
+            trainingProgress = new TrainingProgress(TrainingProgress.State.READY, 0, 0, 0, 0);
+            return;
+        }
+
+        int iterations = iter;
+        trainingProgress = new TrainingProgress(TrainingProgress.State.LOADING, 0, iterations, 0, 0);
+        unpublishedNetwork = imageNetworkAccessor.getNeuralNetwork();
+        if (!(unpublishedNetwork instanceof SupervisedFeedForwardNetwork)) {
+            throw new IllegalStateException("Only a " + SupervisedFeedForwardNetwork.class.getSimpleName() + " can be trained, not a "
+                    + unpublishedNetwork.getClass().getSimpleName());
+        }
+        // Training starts from the version published at start up, and the trained copy is only published if no other model has been since
+        long startVersion = modelRegistry.getVersion();
+        SupervisedFeedForwardNetwork neuralNetwork = ((SupervisedFeedForwardNetwork) unpublishedNetwork).copy();
+        if (Boolean.parseBoolean(trainInBackground)) {
+            logger.info("Training in the background, so identification is unavailable until training completes");
+            trainingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "network-training");
+                thread.setDaemon(true);
+                return thread;
+            });
+            trainingExecutor.submit(() -> train(neuralNetwork, iterations, startVersion));
+            trainingExecutor.shutdown();
+        } else {
+            train(neuralNetwork, iterations, startVersion);
+        }
+    }
+
+    /**
+     * Trains the network, reporting progress after each iteration, then optionally quantises it,
+     * and saves and publishes it through the ModelRegistry.
+     * The network is a copy of the one held by the ImageNetworkAccessor, so no published model is altered by training,
+     * and a model published while it is training is kept rather than replaced once training completes
+     * @param neuralNetwork Network to train, which is not used for identification until it is published
+     * @param iterations Number of training iterations
+     * @param startVersion Version published by the ModelRegistry when training started
+     */
+    private void train(SupervisedFeedForwardNetwork neuralNetwork, int iterations, long startVersion) {
+        try {
             TrainingSet trainingSet = trainingSetGenerator.getTrainingSet(trainingSetDir);
 
             logger.info("Training...");
-            double error = imageNetworkAccessor.trainNetwork(trainingSet, iter);
+            trainingProgress = new TrainingProgress(TrainingProgress.State.TRAINING, 0, iterations, 0, 0);
+            double error = 0;
+            for (int i = 1; i <= iterations; i++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("Training was stopped after " + (i - 1) + " iterations");
+                    trainingProgress = new TrainingProgress(TrainingProgress.State.FAILED, i - 1, iterations, error, 0);
+                    return;
+                }
+                long startTime = System.nanoTime();
+                error = neuralNetwork.train(trainingSet);
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                double pairsPerSecond = trainingSet.getTrainingPairs().size() / Math.max(seconds, 1e-9);
+                trainingProgress = new TrainingProgress(TrainingProgress.State.TRAINING, i, iterations, error, pairsPerSecond);
+                logger.info("Training iteration " + i + "/" + iterations + " had error " + error
+                        + " at " + String.format("%.1f", pairsPerSecond) + " training pairs/sec");
+            }
             logger.info("Completed training with final error: " + error);
-        } else {
-            logger.info("Skipping training");
+
+            NeuralNetwork trainedNetwork = modelQuantised ? quantise(neuralNetwork, trainingSet) : neuralNetwork;
+            long publishedVersion = modelRegistry.publishTrained(neuralNetwork, trainedNetwork, startVersion);
+            trainingProgress = new TrainingProgress(TrainingProgress.State.READY, iterations, iterations, error, trainingProgress.getPairsPerSecond());
+            if (publishedVersion < 0) {
+                logger.warn("Discarded the trained network, as model version " + modelRegistry.getVersion() + " was published while it trained");
+                return;
+            }
+            unpublishedNetwork = null;
+            logger.info("Published the trained network for identification");
+        } catch (RuntimeException e) {
+            logger.error("Training failed", e);
+            TrainingProgress progress = trainingProgress;
+            trainingProgress = new TrainingProgress(TrainingProgress.State.FAILED, progress.getIteration(), iterations, progress.getError(), progress.getPairsPerSecond());
+        }
+    }
+
+    /**
+     * Stops any background training at its next iteration when the application shuts down
+     */
+    @PreDestroy
+    public void stopTraining() {
+        if (trainingExecutor != null) {
+            trainingExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates a quantised copy of a network for faster identification,
+     * reporting how often the two agree on the training set if one was used for training
+     * @param neuralNetwork Network to quantise
+     * @param trainingSet TrainingSet the network was trained with, or null if it was not trained at start up
+     * @return Returns the quantised copy
+     */
+    private NeuralNetwork quantise(NeuralNetwork neuralNetwork, TrainingSet trainingSet) {
+        NetworkQuantiser networkQuantiser = new NetworkQuantiser();
+        NeuralNetwork quantisedNetwork = networkQuantiser.quantise(neuralNetwork);
+        if (trainingSet != null) {
+            double agreement = networkQuantiser.getTopOneAgreement(neuralNetwork, quantisedNetwork, trainingSet);
+            logger.info("Quantised network agrees with the trained network on " + agreement * 100 + "% of the training set");
+        }
+        return quantisedNetwork;
+    }
+
+    /**
+     * @return Returns how far training has got, which is reported while the service is not ready
+     */
+    public TrainingProgress getTrainingProgress() {
+        return trainingProgress;
+    }
+
+    /**
+     * @return Returns true once a model has been published for identification, either by training
+     *          or by replacing the network being trained, such as with the ModelRegistry
+     */
+    public boolean isReady() {
+        NeuralNetwork neuralNetwork = unpublishedNetwork;
+        return neuralNetwork == null || imageNetworkAccessor.getNeuralNetwork() != neuralNetwork;
+    }
+
+    private void checkReady() {
+        if (!isReady()) {
+            throw new IllegalStateException("The network cannot identify images until a model has been published: " + trainingProgress);
         }
     }
 
     /**
      * Produces an identification result for the neural network, given a MultipartFile provided by the Spring Boot application.
-     * This method converts the MultipartFile to a BufferedImage, compatible with the ImageNetworkAccessor
+     * The file is streamed as for identify(InputStream)
      * @param multipartFile Submission from the user
      * @return Enum matching the enums from the configured RecognitionOutputs
      * @throws IOException
      */
     public Enum identify(MultipartFile multipartFile) throws IOException {
-        return identify(new FileUtilities().fileToImg(multipartFile), identificationTimeoutMs);
+        try (InputStream is = multipartFile.getInputStream()) {
+            return identify(is);
+        }
+    }
+
+    /**
+     * Produces an identification result for an image streamed from the user, such as the body of a request.
+     * The image is decoded as it is read, skipping pixels down to the size the ImageNetworkAccessor resizes images to,
+     * so that neither the encoded file nor the full size image is held in memory.
+     * If the ImageNetworkAccessor has a ClassificationCache, the bytes are hashed as they are read,
+     * and a file with the same bytes as one identified before is given the cached identification without using the network
+     * @param is Stream of an encoded image, which is not closed
+     * @return Enum matching the enums from the configured RecognitionOutputs
+     * @throws IOException If the stream cannot be read or is not an image in a known format
+     */
+    public Enum identify(InputStream is) throws IOException {
+        return identify(is, img -> identify(img, identificationTimeoutMs));
+    }
+
+    /**
+     * Identifies an image without waiting for it, decoding and identifying it on the shared InferenceExecutor
+     * so that the calling thread, such as a request thread, is free straight away.
+     * The image is streamed as for identify(InputStream), and the timeout covers decoding as well as identification
+     * @param source Source of the encoded image, such as a MultipartFile, which is read on the InferenceExecutor
+     * @return Returns a future completed with the identification, with null if it timed out,
+     *          or exceptionally with an IdentificationRejectedException if too many images are already being identified
+     */
+    public CompletableFuture<Enum> identifyAsync(InputStreamSource source) {
+        checkReady();
+        return inferenceExecutor.invokeAsync(() -> {
+            try (InputStream is = source.getInputStream()) {
+                // Already on the InferenceExecutor, so the image is identified on this thread
+                return identify(is, this::identify);
+            }
+        }, identificationTimeoutMs);
+    }
+
+    /**
+     * Decodes an image on the calling thread, such as a RequestBodyReader thread reading the body of a request,
+     * then identifies it on the shared InferenceExecutor without waiting for it.
+     * The image is streamed as for identify(InputStream), so only the decoded image, subsampled towards the size
+     * images are resized to, is handed to the InferenceExecutor, and the timeout only covers identification
+     * @param is Stream of an encoded image, which is not closed
+     * @return Returns a future completed with the identification, with null if it timed out,
+     *          or exceptionally with an IdentificationRejectedException if too many images are already being identified
+     * @throws IOException If the stream cannot be read or is not an image in a known format
+     */
+    public CompletableFuture<Enum> identifyStreamAsync(InputStream is) throws IOException {
+        checkReady();
+        DecodedImage decodedImage = decode(is);
+        if (decodedImage.cached != null) {
+            return CompletableFuture.completedFuture(decodedImage.cached);
+        }
+        return inferenceExecutor.invokeAsync(new IdentifyTask(decodedImage.img), identificationTimeoutMs).thenApply(decodedImage::cache);
+    }
+
+    private Enum identify(InputStream is, ImageIdentifier imageIdentifier) throws IOException {
+        checkReady();
+        DecodedImage decodedImage = decode(is);
+        if (decodedImage.cached != null) {
+            return decodedImage.cached;
+        }
+        return decodedImage.cache(imageIdentifier.identify(decodedImage.img));
+    }
+
+    /**
+     * Decodes an image as it is read, hashing its bytes as they are read if the ImageNetworkAccessor has a ClassificationCache
+     * @param is Stream of an encoded image, which is not closed
+     * @return Returns the decoded image, along with any identification already cached for its bytes
+     * @throws IOException If the stream cannot be read or is not an image in a known format
+     */
+    private DecodedImage decode(InputStream is) throws IOException {
+        ClassificationCache cache = imageNetworkAccessor.getClassificationCache();
+        long generation = cache == null ? 0 : cache.getGeneration();
+        DigestInputStream digestInputStream = cache == null ? null : ClassificationCache.digestContent(is);
+        BufferedImage img = new FileUtilities().streamToImg(cache == null ? is : digestInputStream, imageNetworkAccessor.getMinimumImageSize());
+        if (img == null) {
+            throw new IOException("The upload is not an image in a known format");
+        }
+        if (cache == null) {
+            return new DecodedImage(img, null, null, generation);
+        }
+        return new DecodedImage(img, cache, ClassificationCache.getContentKey(digestInputStream), generation);
     }
 
     /**
@@ -78,39 +317,78 @@ public class ConstellationRecognitionService {
      * @throws IOException
      */
     public Enum identify(BufferedImage img) throws IOException {
+        checkReady();
         return imageNetworkAccessor.identify(img);
     }
 
     /**
-     * Allows for identification with a timeout
+     * Allows for identification with a timeout.
+     * The identification runs on the shared InferenceExecutor, and is cancelled if it times out
      * @param img BufferedImage to be passed to the ImageNetworkAccessor
-     * @param timeout Timeout specified in milliseconds
-     * @return Returns the identification of the image, matching enums from the configured RecognitionOutputs
+     * @param timeout Timeout specified in milliseconds, or 0 or less to wait until the identification completes
+     * @return Returns the identification of the image, matching enums from the configured RecognitionOutputs,
+     *          or null if the identification timed out
+     * @throws IdentificationRejectedException If too many images are already being identified
      * @throws IOException
      */
     public Enum identify(BufferedImage img, long timeout) throws IOException {
-        Enum result = null;
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        Future<Enum> futureResult = executorService.submit(new IdentifyTask(img));
-
-        if (timeout > 0) {
-            try {
-                result = futureResult.get(timeout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException | ExecutionException ie) {
-                throw new IOException("Failed to run identification", ie);
-            } catch (TimeoutException te) {
-                logger.info("Identification timed out", te);
-            }
-        } else {
-            result = identify(img);
-        }
-        return result;
+        checkReady();
+        return inferenceExecutor.invoke(new IdentifyTask(img), timeout);
+    }
+
+    /**
+     * @return Returns the load on the shared InferenceExecutor and the outcomes of identifications since start up
+     */
+    public Map<String, Long> getIdentificationStatistics() {
+        return inferenceExecutor.getStatistics();
+    }
+
+    /**
+     * @return Returns the entries, hits and misses by key type, evictions and invalidations of the ClassificationCache, or nothing if there is none
+     */
+    public Map<String, Long> getCacheStatistics() {
+        ClassificationCache cache = imageNetworkAccessor.getClassificationCache();
+        return cache == null ? Collections.emptyMap() : cache.getStatistics();
     }
 
     public long getIdentificationTimeoutMs() {
         return identificationTimeoutMs;
     }
 
+    /**
+     * Way of identifying a decoded image, either on the InferenceExecutor or on the current thread
+     */
+    private interface ImageIdentifier {
+        Enum identify(BufferedImage img) throws IOException;
+    }
+
+    /**
+     * Image decoded from a stream, with the key of its bytes in the ClassificationCache if there is one
+     */
+    private static class DecodedImage {
+        private final BufferedImage img;
+        private final ClassificationCache cache;
+        private final ClassificationCache.Key key;
+        // Read before decoding, so that an identification finished on a replaced network is not cached
+        private final long generation;
+        private final Enum cached;
+
+        private DecodedImage(BufferedImage img, ClassificationCache cache, ClassificationCache.Key key, long generation) {
+            this.img = img;
+            this.cache = cache;
+            this.key = key;
+            this.generation = generation;
+            this.cached = cache == null ? null : cache.get(key);
+        }
+
+        private Enum cache(Enum identification) {
+            if (cache != null) {
+                cache.put(key, identification, generation);
+            }
+            return identification;
+        }
+    }
+
     /**
      * Simple identification task that can be used by an ExecutorService
      */
@@ -3,9 +3,14 @@ package com.liemily.web.service;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
 
 /**
  * Utility class for helper methods to facilitate the link between the web application and neural network via the image network accessor
@@ -17,4 +22,38 @@ public class FileUtilities {
             return ImageIO.read(is);
         }
     }
+
+    /**
+     * Decodes an image as it is read from a stream, skipping pixels so that the full size image is never held in memory.
+     * Only every nth row and column is decoded, where n is the largest step that leaves the image at least minSize
+     * in width and height, and the bytes already decoded are discarded as the stream is read
+     * @param is Stream of an encoded image, which is not closed
+     * @param minSize Smallest width and height of the decoded image, or 0 or less to decode the image at full size
+     * @return Returns the decoded image, or null if no installed reader recognises its format, as with ImageIO.read
+     * @throws IOException
+     */
+    public BufferedImage streamToImg(InputStream is, int minSize) throws IOException {
+        ImageInputStream imageInputStream = new MemoryCacheImageInputStream(is);
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (minSize > 0) {
+                    int subsampling = Math.max(1, Math.min(reader.getWidth(0), reader.getHeight(0)) / minSize);
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            // Closing the ImageInputStream leaves the underlying stream open
+            imageInputStream.close();
+        }
+    }
 }
@@ -0,0 +1,11 @@
+package com.liemily.web.service;
+
+/**
+ * Thrown when an image cannot be identified because the InferenceExecutor is already at capacity
+ * @author Emily Li
+ */
+public class IdentificationRejectedException extends RuntimeException {
+    public IdentificationRejectedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,169 @@
+package com.liemily.web.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of threads on which identifications run, so that a burst of uploads cannot create a thread per upload.
+ *
+ * Identifications wait in a queue of limited size for a free thread, and are rejected straight away when the queue is full.
+ * An identification that times out is cancelled by interrupting its thread, which stops the network's forward pass
+ * before its next layer. Callers can either wait for an identification or be handed a future for it.
+ * Counts of what happened to each identification are kept for monitoring
+ * @author Emily Li
+ */
+@Component
+public class InferenceExecutor {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private ThreadPoolExecutor executor;
+    private ScheduledThreadPoolExecutor timer;
+    private AtomicLong submitted = new AtomicLong();
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong timedOut = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+
+    @Autowired
+    public InferenceExecutor(@Value("${app.identification.threads}") String threads, @Value("${app.identification.queueSize}") String queueSize) {
+        int threadCount = threads == null || threads.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid setting for app.identification.threads: " + threads);
+        }
+        int queueCapacity = Integer.parseInt(queueSize);
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid setting for app.identification.queueSize: " + queueSize);
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "identification-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "identification-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        logger.info("Identifying images on " + threadCount + " threads with a queue of " + queueCapacity);
+    }
+
+    /**
+     * Runs a task on the pool and waits for its result
+     * @param task Task to run, which should stop when its thread is interrupted
+     * @param timeout Time to wait in milliseconds, after which the task is cancelled, or 0 or less to wait until it completes
+     * @return Returns the task's result, or null if it timed out
+     * @throws IdentificationRejectedException If the pool and its queue are full
+     * @throws IOException If the task failed or the waiting thread was interrupted
+     */
+    public <T> T invoke(Callable<T> task, long timeout) throws IOException {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("Rejected identification as every thread is busy and the queue is full: " + getStatistics());
+            throw new IdentificationRejectedException("Too many images are being identified, please try again shortly");
+        }
+        submitted.incrementAndGet();
+
+        try {
+            T result = timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+            completed.incrementAndGet();
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timedOut.incrementAndGet();
+            logger.info("Identification timed out after " + timeout + "ms and was cancelled");
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for identification", e);
+        } catch (ExecutionException e) {
+            failed.incrementAndGet();
+            throw new IOException("Failed to run identification", e);
+        }
+    }
+
+    /**
+     * Runs a task on the pool without waiting for it, so that the calling thread is free as soon as the task is queued
+     * @param task Task to run, which should stop when its thread is interrupted
+     * @param timeout Time to wait in milliseconds, after which the task is cancelled, or 0 or less to wait until it completes
+     * @return Returns a future completed with the task's result, with null if it timed out,
+     *          or exceptionally with an IdentificationRejectedException if the pool and its queue are full
+     */
+    public <T> CompletableFuture<T> invokeAsync(Callable<T> task, long timeout) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    if (result.complete(task.call())) {
+                        completed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    // A task interrupted after timing out has already been given its result
+                    if (result.completeExceptionally(e)) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            logger.warn("Rejected identification as every thread is busy and the queue is full: " + getStatistics());
+            result.completeExceptionally(new IdentificationRejectedException("Too many images are being identified, please try again shortly"));
+            return result;
+        }
+        submitted.incrementAndGet();
+
+        if (timeout > 0) {
+            ScheduledFuture<?> timeoutCheck = timer.schedule(() -> {
+                if (result.complete(null)) {
+                    future.cancel(true);
+                    timedOut.incrementAndGet();
+                    logger.info("Identification timed out after " + timeout + "ms and was cancelled");
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, e) -> timeoutCheck.cancel(false));
+        }
+        return result;
+    }
+
+    /**
+     * @return Returns the pool's size and current load, and the number of identifications by outcome since start up
+     */
+    public Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("threads", (long) executor.getMaximumPoolSize());
+        statistics.put("active", (long) executor.getActiveCount());
+        statistics.put("queued", (long) executor.getQueue().size());
+        statistics.put("submitted", submitted.get());
+        statistics.put("completed", completed.get());
+        statistics.put("timedOut", timedOut.get());
+        statistics.put("rejected", rejected.get());
+        statistics.put("failed", failed.get());
+        return statistics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+}
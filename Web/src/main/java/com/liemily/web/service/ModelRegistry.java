@@ -0,0 +1,217 @@
+package com.liemily.web.service;
+
+import com.liemily.imagerecognition.ImageNetworkAccessor;
+import com.liemily.neuralnetwork.layers.FloatConnectionLayer;
+import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.persistence.ModelSerialiser;
+import com.liemily.neuralnetwork.quantisation.NetworkQuantiser;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the model used for identification, which rolls new weights into the running application.
+ *
+ * New models are loaded from model files on a background thread, prepared with the same settings as the model loaded at start up,
+ * and then published to the ImageNetworkAccessor with a single reference swap.
+ * Identifications already in progress finish on the previous model and later ones use the new model,
+ * so identification never waits for a model to load and takes no locks.
+ *
+ * If a reload interval is configured, the configured model file is checked for changes at that interval and reloaded when it changes.
+ * A network trained by the application is saved and published through the registry too, so that saving it to the model file
+ * does not publish it a second time, and so that it does not replace a model published while it was training
+ * @author Emily Li
+ */
+@Component
+public class ModelRegistry {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private ImageNetworkAccessor imageNetworkAccessor;
+    private ModelSerialiser modelSerialiser;
+    private String modelFile;
+    private boolean modelMapped;
+    private String weightPrecision;
+    private boolean modelQuantised;
+    private ScheduledExecutorService loader;
+    private AtomicLong version;
+    private volatile long loadedModelModified;
+
+    @Autowired
+    public ModelRegistry(ImageNetworkAccessor imageNetworkAccessor, @Value("${network.model.file}") String modelFile, @Value("${network.model.mapped}") String modelMapped, @Value("${network.weights.precision}") String weightPrecision, @Value("${network.model.quantised}") String modelQuantised, @Value("${network.model.reloadIntervalMs}") String reloadIntervalMs) throws IOException {
+        this.imageNetworkAccessor = imageNetworkAccessor;
+        this.modelSerialiser = new ModelSerialiser();
+        this.modelFile = modelFile;
+        this.modelMapped = Boolean.parseBoolean(modelMapped);
+        this.weightPrecision = weightPrecision;
+        this.modelQuantised = Boolean.parseBoolean(modelQuantised);
+        if ("float".equalsIgnoreCase(weightPrecision) && this.modelMapped) {
+            throw new IllegalArgumentException("network.weights.precision=float cannot be used with network.model.mapped=true");
+        }
+        this.version = new AtomicLong();
+        this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "model-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        boolean hasModelFile = modelFile != null && !modelFile.isEmpty();
+        if (hasModelFile && Files.exists(Paths.get(modelFile))) {
+            // The model file was loaded at start up
+            loadedModelModified = Files.getLastModifiedTime(Paths.get(modelFile)).toMillis();
+        }
+        if (hasModelFile && reloadIntervalMs != null && !reloadIntervalMs.isEmpty()) {
+            long interval = Long.parseLong(reloadIntervalMs);
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Invalid setting for network.model.reloadIntervalMs: " + reloadIntervalMs);
+            }
+            loader.scheduleWithFixedDelay(this::reloadIfChanged, interval, interval, TimeUnit.MILLISECONDS);
+            logger.info("Checking " + modelFile + " for new models every " + interval + "ms");
+        }
+    }
+
+    /**
+     * Loads the configured model file in the background and publishes it
+     * @return Returns the version of the published network once it has been loaded
+     */
+    public CompletableFuture<Long> reload() {
+        if (modelFile == null || modelFile.isEmpty()) {
+            CompletableFuture<Long> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("No model file is configured in network.model.file"));
+            return failed;
+        }
+        return load(Paths.get(modelFile));
+    }
+
+    /**
+     * Loads a model file in the background and publishes it
+     * @param path Location of the model file
+     * @return Returns the version of the published network once it has been loaded
+     */
+    public CompletableFuture<Long> load(Path path) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadAndPublish(path);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to load model from " + path, e);
+            }
+        }, loader);
+    }
+
+    /**
+     * Publishes a network for identification, replacing the current network
+     * @param neuralNetwork Network with the same input layer size and number of outputs as the current network
+     * @return Returns the version of the published network, which increases with each network published
+     */
+    public synchronized long publish(NeuralNetwork neuralNetwork) {
+        NeuralNetwork current = imageNetworkAccessor.getNeuralNetwork();
+        if (neuralNetwork.getInputLayer().size() != current.getInputLayer().size()
+                || neuralNetwork.getOutputLayer().size() != current.getOutputLayer().size()) {
+            throw new IllegalArgumentException("Cannot replace a network with " + current.getInputLayer().size() + " inputs and "
+                    + current.getOutputLayer().size() + " outputs with one with " + neuralNetwork.getInputLayer().size()
+                    + " inputs and " + neuralNetwork.getOutputLayer().size() + " outputs");
+        }
+        imageNetworkAccessor.setNeuralNetwork(neuralNetwork);
+        long publishedVersion = version.incrementAndGet();
+        logger.info("Published model version " + publishedVersion);
+        return publishedVersion;
+    }
+
+    /**
+     * Saves a trained network to the configured model file and publishes it,
+     * unless another network has been published since training started
+     * @param trainedNetwork Network that was trained, which is saved if a model file is configured
+     * @param neuralNetwork Network to publish, such as the trained network or a quantised copy of it
+     * @param expectedVersion Version that was published when training started
+     * @return Returns the version of the published network, or -1 if another network has been published since training started,
+     *          in which case the trained network is neither saved nor published
+     */
+    public synchronized long publishTrained(NeuralNetwork trainedNetwork, NeuralNetwork neuralNetwork, long expectedVersion) {
+        if (version.get() != expectedVersion) {
+            return -1;
+        }
+        if (modelFile != null && !modelFile.isEmpty()) {
+            Path path = Paths.get(modelFile);
+            try {
+                modelSerialiser.save(trainedNetwork, path);
+                // The saved model is the one being published, so it is not reloaded when the file is next checked
+                loadedModelModified = Files.getLastModifiedTime(path).toMillis();
+            } catch (IOException e) {
+                logger.warn("Failed to save model to " + modelFile + ", so it will be trained again at the next start up", e);
+            }
+        }
+        return publish(neuralNetwork);
+    }
+
+    /**
+     * @return Returns the number of networks published since start up, where 0 is the network created at start up
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loader.shutdownNow();
+    }
+
+    private long loadAndPublish(Path path) throws IOException {
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        NeuralNetwork neuralNetwork = prepare(modelMapped ? modelSerialiser.map(path) : modelSerialiser.load(path));
+        synchronized (this) {
+            long publishedVersion = publish(neuralNetwork);
+            if (modelFile != null && path.equals(Paths.get(modelFile))) {
+                loadedModelModified = modified;
+            }
+            return publishedVersion;
+        }
+    }
+
+    /**
+     * Applies the configured weight precision and quantisation to a loaded network
+     */
+    private NeuralNetwork prepare(SupervisedFeedForwardNetwork neuralNetwork) {
+        if ("float".equalsIgnoreCase(weightPrecision)) {
+            neuralNetwork.getConnectionLayers().replaceAll(FloatConnectionLayer::new);
+        }
+        return modelQuantised ? new NetworkQuantiser().quantise(neuralNetwork) : neuralNetwork;
+    }
+
+    private void reloadIfChanged() {
+        try {
+            Path path = Paths.get(modelFile);
+            if (!Files.exists(path)) {
+                return;
+            }
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == loadedModelModified) {
+                return;
+            }
+            logger.info("Model file " + modelFile + " has changed, so reloading it");
+            NeuralNetwork neuralNetwork = prepare(modelMapped ? modelSerialiser.map(path) : modelSerialiser.load(path));
+            synchronized (this) {
+                // The file may have been saved again while it loaded, such as by training, in which case the newer model is kept
+                if (Files.getLastModifiedTime(path).toMillis() != modified || loadedModelModified == modified) {
+                    logger.info("Model file " + modelFile + " changed again while it was reloaded, so discarding the reloaded model");
+                    return;
+                }
+                publish(neuralNetwork);
+                loadedModelModified = modified;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to reload model from " + modelFile, e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.liemily.web.service;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.invoke.MethodHandles;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of threads on which request bodies are read, so that slow uploads wait on threads of their own
+ * rather than holding the InferenceExecutor's threads, which are then only used to identify images.
+ *
+ * Reads wait in a queue of limited size for a free thread, and are rejected straight away when the queue is full.
+ * A body is passed as a stream to a BodyReader, such as an image decoder, so that it is never held in memory whole.
+ * It may be no larger than a limit, and must be read within a time limit, after which its stream is closed.
+ * A read whose future has been cancelled or completed, such as when the request it belongs to has timed out,
+ * stops before touching the stream again, as the container may have recycled the request
+ * @author Emily Li
+ */
+@Component
+public class RequestBodyReader {
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
+    private final long maxBytes;
+    private final long timeoutMs;
+    private ThreadPoolExecutor executor;
+    private ScheduledThreadPoolExecutor timer;
+
+    @Autowired
+    public RequestBodyReader(@Value("${app.identification.stream.threads}") String threads, @Value("${app.identification.stream.queueSize}") String queueSize, @Value("${app.identification.stream.maxBytes}") String maxBytes, @Value("${app.identification.stream.timeoutMs}") String timeoutMs) {
+        int threadCount = Integer.parseInt(threads);
+        int queueCapacity = Integer.parseInt(queueSize);
+        this.maxBytes = Long.parseLong(maxBytes);
+        this.timeoutMs = timeoutMs == null || timeoutMs.isEmpty() ? 0 : Long.parseLong(timeoutMs);
+        if (threadCount < 1 || queueCapacity < 1 || this.maxBytes < 1) {
+            throw new IllegalArgumentException("Invalid settings for app.identification.stream.threads, queueSize and maxBytes: " + threads + ", " + queueSize + ", " + maxBytes);
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "request-body-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "request-body-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        logger.info("Reading request bodies of up to " + maxBytes + " bytes on " + threadCount + " threads with a queue of " + queueCapacity
+                + (this.timeoutMs > 0 ? " and a time limit of " + this.timeoutMs + "ms" : ""));
+    }
+
+    /**
+     * Reads a body without waiting for it
+     * @param source Source of the body, such as a request, which is opened and closed on the pool
+     * @param bodyReader Reads what it needs from the body's stream on the pool
+     * @return Returns a future completed with what the BodyReader returned, or exceptionally with an IdentificationRejectedException
+     *          if too many bodies are already being read, a RequestBodyTooLargeException if the body is larger than the limit,
+     *          a SocketTimeoutException if it was not read in time, or any other exception from reading it.
+     *          Cancelling the future stops the read
+     */
+    public <T> CompletableFuture<T> read(InputStreamSource source, BodyReader<T> bodyReader) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // Set once the stream is open, so that it can be closed if the read times out
+        CompletableFuture<InputStream> opened = new CompletableFuture<>();
+        Future<?> future;
+        try {
+            future = executor.submit(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try (InputStream is = source.getInputStream()) {
+                    opened.complete(is);
+                    result.complete(bodyReader.read(new LimitedInputStream(is, result)));
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Rejected request body as every thread is busy and the queue is full");
+            result.completeExceptionally(new IdentificationRejectedException("Too many images are being uploaded, please try again shortly"));
+            return result;
+        }
+
+        if (timeoutMs > 0) {
+            ScheduledFuture<?> timeoutCheck = timer.schedule(() -> {
+                if (result.completeExceptionally(new SocketTimeoutException("Request body was not read within " + timeoutMs + "ms"))) {
+                    logger.info("Request body was not read within " + timeoutMs + "ms, so closing it");
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, e) -> timeoutCheck.cancel(false));
+        }
+        // A read that timed out or was cancelled is interrupted, and its stream closed so that nothing more is read from it
+        result.whenComplete((value, e) -> {
+            if (e != null) {
+                future.cancel(true);
+                opened.thenAccept(RequestBodyReader::closeQuietly);
+            }
+        });
+        return result;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    private static void closeQuietly(InputStream is) {
+        try {
+            is.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close request body", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Way of reading a request body from its stream, which should not close the stream
+     */
+    public interface BodyReader<T> {
+        T read(InputStream is) throws IOException;
+    }
+
+    /**
+     * Stream of a body that fails once more than the limit has been read, or once its read is no longer wanted
+     */
+    private class LimitedInputStream extends FilterInputStream {
+        private final CompletableFuture<?> result;
+        private long bytesRead;
+
+        private LimitedInputStream(InputStream in, CompletableFuture<?> result) {
+            super(in);
+            this.result = result;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkWanted();
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkWanted();
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkWanted();
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void checkWanted() throws IOException {
+            if (result.isDone()) {
+                throw new InterruptedIOException("Request body is no longer being read");
+            }
+        }
+
+        private void count(long bytes) throws IOException {
+            bytesRead += bytes;
+            if (bytesRead > maxBytes) {
+                throw new RequestBodyTooLargeException("Request body is larger than the limit of " + maxBytes + " bytes");
+            }
+        }
+    }
+}
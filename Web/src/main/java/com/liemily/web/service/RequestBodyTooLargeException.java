@@ -0,0 +1,13 @@
+package com.liemily.web.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request body is larger than the RequestBodyReader will read
+ * @author Emily Li
+ */
+public class RequestBodyTooLargeException extends IOException {
+    public RequestBodyTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -2,38 +2,402 @@ package com.liemily.web.service;
 
 import com.liemily.web.domain.Upload;
 import com.liemily.web.validator.UploadValidator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.validation.BindingResult;
+import org.springframework.web.multipart.MultipartFile;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.LongSupplier;
 
 /**
  * Upload Service used to store uploads provided by the user
+ *
+ * The bytes of each valid upload are read once when it is added, so that the MultipartFile is not held on to.
+ * Uploads larger than the memory limit are copied straight to the spill directory without being read into memory.
+ * Uploads are kept in memory up to a total number of bytes and a number of uploads, beyond which the least recently used
+ * are evicted. If a spill directory is configured, evicted uploads are written to it up to a limit of their own
+ * rather than discarded. Files are only written and read outside the lock, so a slow disk does not hold up other requests.
+ * Uploads that have not been used for the time to live are removed from memory and disk
  * @author Emily Li
  */
 @Component
 public class UploadService {
-    private Map<String, Upload> uploads;
+    private static final Logger logger = LogManager.getLogger(MethodHandles.lookup().lookupClass());
+
     private UploadValidator uploadValidator;
+    private long maxBytes;
+    private int maxEntries;
+    private long ttlMs;
+    private Path spillDir;
+    private long spillMaxBytes;
+    // Time in milliseconds that uploads are last used at and expire by
+    private LongSupplier currentTimeMillis;
+
+    // Both maps are in order of least recent use, and are guarded by this
+    private LinkedHashMap<String, StoredUpload> uploads;
+    private LinkedHashMap<String, StoredUpload> spilledUploads;
+    // Evicted uploads being written to the spill directory, guarded by this
+    private Map<String, StoredUpload> spillingUploads;
+    private long bytes;
+    private long spilledBytes;
+    // No spilled upload expires before this time, as spilled uploads keep the last used time they had in memory
+    private long nextSpilledExpiry = Long.MAX_VALUE;
+    private long evictions;
+    private long expirations;
+    private long spills;
+    private long refused;
 
     @Autowired
-    public UploadService(UploadValidator uploadValidator) {
+    public UploadService(UploadValidator uploadValidator, @Value("${app.uploads.maxBytes}") String maxBytes, @Value("${app.uploads.maxEntries}") String maxEntries, @Value("${app.uploads.ttlMs}") String ttlMs, @Value("${app.uploads.spillDir}") String spillDir, @Value("${app.uploads.spillMaxBytes}") String spillMaxBytes) throws IOException {
+        this(uploadValidator, maxBytes, maxEntries, ttlMs, spillDir, spillMaxBytes, System::currentTimeMillis);
+    }
+
+    /**
+     * @param currentTimeMillis Source of the current time in milliseconds, which uploads expire by
+     */
+    public UploadService(UploadValidator uploadValidator, String maxBytes, String maxEntries, String ttlMs, String spillDir, String spillMaxBytes, LongSupplier currentTimeMillis) throws IOException {
         this.uploadValidator = uploadValidator;
-        uploads = new ConcurrentHashMap<>();
+        this.currentTimeMillis = currentTimeMillis;
+        this.maxBytes = Long.parseLong(maxBytes);
+        this.maxEntries = Integer.parseInt(maxEntries);
+        if (this.maxBytes < 1 || this.maxEntries < 1) {
+            throw new IllegalArgumentException("Invalid settings for app.uploads.maxBytes and app.uploads.maxEntries: " + maxBytes + ", " + maxEntries);
+        }
+        this.ttlMs = ttlMs == null || ttlMs.isEmpty() ? 0 : Long.parseLong(ttlMs);
+        if (spillDir != null && !spillDir.isEmpty()) {
+            this.spillDir = Files.createDirectories(Paths.get(spillDir));
+            this.spillMaxBytes = Long.parseLong(spillMaxBytes);
+        }
+        uploads = new LinkedHashMap<>(16, 0.75f, true);
+        spilledUploads = new LinkedHashMap<>(16, 0.75f, true);
+        spillingUploads = new HashMap<>();
+        logger.info("Keeping up to " + maxEntries + " uploads and " + maxBytes + " bytes of uploads in memory"
+                + (this.spillDir == null ? "" : ", spilling up to " + this.spillMaxBytes + " bytes to " + this.spillDir));
     }
 
+    /**
+     * Validates an upload, and stores it if it is valid
+     * @param upload Upload provided by the user
+     * @param bindingResult Errors found with the upload, including if its file cannot be read
+     */
     public void add(Upload upload, BindingResult bindingResult) {
         uploadValidator.validate(upload, bindingResult);
-        add(upload);
+        if (uploadValidator.isValid(upload.getFile())) {
+            try {
+                add(upload);
+            } catch (IOException e) {
+                logger.warn("Failed to read upload " + upload.getId(), e);
+                bindingResult.rejectValue(UploadValidator.FILE_VALUE, UploadValidator.UNREADABLE_FILE_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Reads the bytes of an upload's file and stores them under the upload's id
+     * @param upload Upload with a file
+     * @throws IOException If the file cannot be read
+     */
+    public void add(Upload upload) throws IOException {
+        MultipartFile file = upload.getFile();
+        if (file.getSize() > maxBytes) {
+            try (InputStream is = file.getInputStream()) {
+                add(upload.getId(), is);
+            }
+        } else {
+            add(upload.getId(), file.getBytes());
+        }
+    }
+
+    /**
+     * Copies a stream straight to the spill directory under an id, replacing anything already stored under it,
+     * so that uploads too large to keep in memory are never read into memory. The stream is refused if no spill directory is configured
+     * @param id Id to retrieve the bytes with
+     * @param is Stream of the bytes to store, which is not closed
+     * @throws IOException If the stream could not be copied to disk
+     */
+    public void add(String id, InputStream is) throws IOException {
+        if (spillDir == null) {
+            synchronized (this) {
+                refused++;
+            }
+            logger.warn("Refused to store upload " + id + " as it is more than the limit of " + maxBytes + " bytes");
+            return;
+        }
+        Path spilledFile = Files.createTempFile(spillDir, "upload", ".bin");
+        long size;
+        try {
+            size = Files.copy(is, spilledFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(spilledFile);
+            throw e;
+        }
+
+        synchronized (this) {
+            long now = currentTimeMillis.getAsLong();
+            removeExpired(now);
+            remove(id);
+            StoredUpload storedUpload = new StoredUpload(size, null, now);
+            storedUpload.spilledFile = spilledFile;
+            putSpilled(id, storedUpload);
+        }
+    }
+
+    /**
+     * Stores bytes under an id, replacing any already stored under it.
+     * Bytes larger than the memory limit are spilled straight to disk if a spill directory is configured, and are refused otherwise
+     * @param id Id to retrieve the bytes with
+     * @param content Bytes to store, which must not be altered afterwards
+     * @throws IOException If the bytes could not be spilled to disk
+     */
+    public void add(String id, byte[] content) throws IOException {
+        if (content.length > maxBytes) {
+            add(id, new ByteArrayInputStream(content));
+            return;
+        }
+
+        List<Map.Entry<String, StoredUpload>> evictedUploads = new ArrayList<>();
+        synchronized (this) {
+            long now = currentTimeMillis.getAsLong();
+            removeExpired(now);
+            remove(id);
+            uploads.put(id, new StoredUpload(content.length, content, now));
+            bytes += content.length;
+            Iterator<Map.Entry<String, StoredUpload>> leastRecentlyUsed = uploads.entrySet().iterator();
+            while (bytes > maxBytes || uploads.size() > maxEntries) {
+                Map.Entry<String, StoredUpload> evicted = leastRecentlyUsed.next();
+                leastRecentlyUsed.remove();
+                bytes -= evicted.getValue().size;
+                evictions++;
+                if (spillDir != null) {
+                    // Still readable while it is written to disk
+                    spillingUploads.put(evicted.getKey(), evicted.getValue());
+                    evictedUploads.add(evicted);
+                }
+            }
+        }
+        for (Map.Entry<String, StoredUpload> evicted : evictedUploads) {
+            spill(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    /**
+     * @param id Id of an upload
+     * @return Returns the bytes of the upload's file, or null if there is no such upload or it has been evicted
+     * @throws IOException If the upload was spilled to disk and cannot be read
+     */
+    public byte[] getBytes(String id) throws IOException {
+        Path spilledFile;
+        synchronized (this) {
+            long now = currentTimeMillis.getAsLong();
+            removeExpired(now);
+            StoredUpload storedUpload = uploads.get(id);
+            if (storedUpload == null) {
+                storedUpload = spilledUploads.get(id);
+            }
+            if (storedUpload == null) {
+                storedUpload = spillingUploads.get(id);
+            }
+            if (storedUpload == null) {
+                return null;
+            }
+            storedUpload.lastUsed = now;
+            if (storedUpload.content != null) {
+                return storedUpload.content;
+            }
+            spilledFile = storedUpload.spilledFile;
+        }
+        try {
+            return Files.readAllBytes(spilledFile);
+        } catch (NoSuchFileException e) {
+            // Expired or evicted after it was looked up
+            return null;
+        }
+    }
+
+    /**
+     * @return Returns the uploads and bytes held in memory and on disk, and the number of uploads evicted,
+     *          spilled to disk, expired and refused since start up
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> statistics = new LinkedHashMap<>();
+        statistics.put("entries", (long) uploads.size());
+        statistics.put("bytes", bytes);
+        statistics.put("spilledEntries", (long) spilledUploads.size());
+        statistics.put("spilledBytes", spilledBytes);
+        statistics.put("evictions", evictions);
+        statistics.put("spills", spills);
+        statistics.put("expirations", expirations);
+        statistics.put("refused", refused);
+        return statistics;
+    }
+
+    /**
+     * Deletes the uploads spilled to disk
+     */
+    @PreDestroy
+    public synchronized void clear() {
+        uploads.clear();
+        bytes = 0;
+        for (StoredUpload spilledUpload : spilledUploads.values()) {
+            delete(spilledUpload);
+        }
+        spilledUploads.clear();
+        spilledBytes = 0;
+        spillingUploads.clear();
+        nextSpilledExpiry = Long.MAX_VALUE;
+    }
+
+    /**
+     * Writes an upload evicted from memory to the spill directory without holding the lock, then stores it as spilled
+     * unless it was replaced or removed while it was being written. Uploads that fail to be written are discarded
+     */
+    private void spill(String id, StoredUpload evicted) {
+        Path spilledFile;
+        try {
+            spilledFile = Files.createTempFile(spillDir, "upload", ".bin");
+            try {
+                Files.write(spilledFile, evicted.content);
+            } catch (IOException e) {
+                Files.deleteIfExists(spilledFile);
+                throw e;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to spill upload " + id + " to " + spillDir + ", so discarding it", e);
+            synchronized (this) {
+                spillingUploads.remove(id, evicted);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            // Keeps any use while it was being written
+            StoredUpload storedUpload = new StoredUpload(evicted.size, null, evicted.lastUsed);
+            storedUpload.spilledFile = spilledFile;
+            if (!spillingUploads.remove(id, evicted)) {
+                delete(storedUpload);
+                return;
+            }
+            putSpilled(id, storedUpload);
+        }
+    }
+
+    /**
+     * Stores an upload that has been written to the spill directory, deleting it if it does not fit
+     */
+    private void putSpilled(String id, StoredUpload storedUpload) {
+        if (!makeRoomToSpill(id, storedUpload)) {
+            delete(storedUpload);
+            return;
+        }
+        spilledUploads.put(id, storedUpload);
+        spilledBytes += storedUpload.size;
+        spills++;
+        if (ttlMs > 0) {
+            nextSpilledExpiry = Math.min(nextSpilledExpiry, storedUpload.lastUsed + ttlMs);
+        }
     }
 
-    public void add(Upload upload) {
-        uploads.put(upload.getId(), upload);
+    /**
+     * Evicts the least recently used spilled uploads until an upload fits within the spill limit
+     * @return Returns false if the upload is refused as it is larger than the spill limit on its own
+     */
+    private boolean makeRoomToSpill(String id, StoredUpload storedUpload) {
+        if (storedUpload.size > spillMaxBytes) {
+            refused++;
+            logger.warn("Refused to spill upload " + id + " of " + storedUpload.size + " bytes, which is more than the limit of " + spillMaxBytes);
+            return false;
+        }
+        Iterator<StoredUpload> leastRecentlyUsed = spilledUploads.values().iterator();
+        while (spilledBytes + storedUpload.size > spillMaxBytes) {
+            StoredUpload evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            spilledBytes -= evicted.size;
+            evictions++;
+            delete(evicted);
+        }
+        return true;
     }
 
-    public Upload get(String id) {
-        return uploads.get(id);
+    private void remove(String id) {
+        StoredUpload storedUpload = uploads.remove(id);
+        if (storedUpload != null) {
+            bytes -= storedUpload.size;
+        }
+        storedUpload = spilledUploads.remove(id);
+        if (storedUpload != null) {
+            spilledBytes -= storedUpload.size;
+            delete(storedUpload);
+        }
+        spillingUploads.remove(id);
+    }
+
+    /**
+     * Removes uploads that have not been used for the time to live.
+     * In memory these are always the least recently used. Spilled uploads keep the last used time they had in memory,
+     * so are not in order of it, and are all checked, but only once the earliest of them may have expired
+     */
+    private void removeExpired(long now) {
+        if (ttlMs <= 0) {
+            return;
+        }
+        for (Iterator<StoredUpload> leastRecentlyUsed = uploads.values().iterator(); leastRecentlyUsed.hasNext(); ) {
+            StoredUpload storedUpload = leastRecentlyUsed.next();
+            if (now - storedUpload.lastUsed < ttlMs) {
+                break;
+            }
+            leastRecentlyUsed.remove();
+            bytes -= storedUpload.size;
+            expirations++;
+        }
+        if (now < nextSpilledExpiry) {
+            return;
+        }
+        nextSpilledExpiry = Long.MAX_VALUE;
+        for (Iterator<StoredUpload> spilled = spilledUploads.values().iterator(); spilled.hasNext(); ) {
+            StoredUpload storedUpload = spilled.next();
+            if (now - storedUpload.lastUsed < ttlMs) {
+                nextSpilledExpiry = Math.min(nextSpilledExpiry, storedUpload.lastUsed + ttlMs);
+                continue;
+            }
+            spilled.remove();
+            spilledBytes -= storedUpload.size;
+            expirations++;
+            delete(storedUpload);
+        }
+    }
+
+    private void delete(StoredUpload spilledUpload) {
+        try {
+            Files.deleteIfExists(spilledUpload.spilledFile);
+        } catch (IOException e) {
+            logger.warn("Failed to delete spilled upload " + spilledUpload.spilledFile, e);
+        }
+    }
+
+    private static class StoredUpload {
+        private final long size;
+        private byte[] content;
+        private Path spilledFile;
+        private long lastUsed;
+
+        private StoredUpload(long size, byte[] content, long lastUsed) {
+            this.size = size;
+            this.content = content;
+            this.lastUsed = lastUsed;
+        }
     }
 }
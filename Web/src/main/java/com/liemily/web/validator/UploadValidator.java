@@ -14,6 +14,7 @@ public class UploadValidator {
     public static final String FILE_VALUE = "file";
     public static final String NULL_FILE_ERROR = "no.file.provided";
     public static final String NOT_AN_IMG_ERROR = "not.an.image";
+    public static final String UNREADABLE_FILE_ERROR = "file.not.readable";
 
     private static final String VALID_CONTENT_TYPE = "image";
 
@@ -30,4 +31,12 @@ public class UploadValidator {
             }
         }
     }
+
+    /**
+     * @param target File provided by the user
+     * @return Returns true if validating the file would find no errors
+     */
+    public boolean isValid(MultipartFile target) {
+        return target != null && target.getContentType().startsWith(VALID_CONTENT_TYPE);
+    }
 }
@@ -0,0 +1,5 @@
+<#include "header.ftl">
+<#include "logo.ftl">
+<#include "upload-input.ftl">
+<p style="text-align: center">Too many images are being identified right now. Please try again shortly</p>
+<#include "footer.ftl">
\ No newline at end of file
@@ -1,16 +1,28 @@
 package com.liemily.web;
 
+import com.liemily.imagerecognition.ClassificationCache;
 import com.liemily.imagerecognition.ImageConverter;
 import com.liemily.imagerecognition.ImageNetworkAccessor;
 import com.liemily.imagerecognition.RecognitionOutputs;
 import com.liemily.neuralnetwork.layers.NeuronLayer;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
 import com.liemily.neuralnetwork.networks.NeuralNetwork;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.persistence.ModelSerialiser;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
 import com.liemily.web.controller.ConstellationRecognitionController;
 import com.liemily.web.controller.UploadController;
+import com.liemily.web.domain.TrainingProgress;
 import com.liemily.web.domain.TrainingSetGenerator;
 import com.liemily.web.domain.Upload;
 import com.liemily.web.service.ConstellationRecognitionService;
 import com.liemily.web.service.FileUtilities;
+import com.liemily.web.service.IdentificationRejectedException;
+import com.liemily.web.service.InferenceExecutor;
+import com.liemily.web.service.ModelRegistry;
+import com.liemily.web.service.RequestBodyReader;
+import com.liemily.web.service.UploadService;
 import com.liemily.web.validator.UploadValidator;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,17 +30,37 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.DelegatingServletInputStream;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.ui.Model;
 import org.springframework.validation.BindingResult;
+import org.springframework.web.context.request.async.DeferredResult;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.ModelAndView;
 
+import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletRequest;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
@@ -49,8 +81,12 @@ public class WebClientTest {
     @Value("${imageNetworkAccessor.resizeImg}")
     private String resize;
 
+    private NeuralNetwork neuralNetwork;
     private ImageNetworkAccessor imageNetworkAccessor;
     private TrainingSetGenerator trainingSetGenerator;
+    private InferenceExecutor inferenceExecutor;
+    private RequestBodyReader requestBodyReader;
+    private ModelRegistry modelRegistry;
     private ConstellationRecognitionService constellationRecognitionService;
 
     private BufferedImage bufferedImage;
@@ -60,9 +96,13 @@ public class WebClientTest {
 
     @Before
     public void setup() throws Exception {
-        imageNetworkAccessor = spy(new ImageNetworkAccessor(imageConverter, mock(NeuralNetwork.class), mock(RecognitionOutputs.class), false));
+        neuralNetwork = mock(NeuralNetwork.class);
+        imageNetworkAccessor = spy(new ImageNetworkAccessor(imageConverter, neuralNetwork, mock(RecognitionOutputs.class), false));
         trainingSetGenerator = mock(TrainingSetGenerator.class);
-        constellationRecognitionService = spy(new ConstellationRecognitionService(imageNetworkAccessor, trainingSetGenerator, "", "", ""));
+        inferenceExecutor = new InferenceExecutor("2", "4");
+        requestBodyReader = new RequestBodyReader("2", "4", "268435456", "10000");
+        modelRegistry = new ModelRegistry(imageNetworkAccessor, "", "false", "double", "false", "");
+        constellationRecognitionService = spy(new ConstellationRecognitionService(imageNetworkAccessor, trainingSetGenerator, inferenceExecutor, modelRegistry, "", "", "", "", "", ""));
 
         bufferedImage = mock(BufferedImage.class);
         try (InputStream imgInputStream = getClass().getClassLoader().getResourceAsStream("img1.bmp")) {
@@ -102,7 +142,7 @@ public class WebClientTest {
         constellationRecognitionService.identify(multipartFile);
         BufferedImage bufferedImage = new FileUtilities().fileToImg(multipartFile);
         NeuronLayer imgLayer = imageConverter.convertToLayer(bufferedImage);
-        verify(imageNetworkAccessor, atLeastOnce()).setInput(imgLayer);
+        verify(neuralNetwork, atLeastOnce()).activate(aryEq(imgLayer.getNodes()));
     }
 
     // 17. The web client must be able to return the result
@@ -121,7 +161,7 @@ public class WebClientTest {
     //     if there is no positive result
     @Test
     public void testFailureReturnedWithNoRecognitionFound() throws IOException {
-        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(constellationRecognitionService);
+        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(constellationRecognitionService, requestBodyReader);
         Model model = mock(Model.class);
 
         Upload upload = new Upload();
@@ -136,13 +176,414 @@ public class WebClientTest {
     // 19. Identification must take no longer than a minute
     @Test (timeout = 65 * 1000)
     public void testIdentificationTimeout() throws Exception {
-        ConstellationRecognitionService mockService = new MockConstellationService(imageNetworkAccessor, trainingSetGenerator, "", "", "60000");
+        ConstellationRecognitionService mockService = new MockConstellationService(imageNetworkAccessor, trainingSetGenerator, inferenceExecutor, modelRegistry, "", "", "60000", "", "", "");
         mockService.identify(multipartFile);
     }
 
+    // Training in the background must not block start up,
+    // and the web client must not identify images until training is complete
+    @Test (timeout = 10 * 1000)
+    public void testBackgroundTraining() throws Exception {
+        CountDownLatch trainingSetRequested = new CountDownLatch(1);
+        CountDownLatch trainingSetLoaded = new CountDownLatch(1);
+        when(trainingSetGenerator.getTrainingSet(any())).thenAnswer(invocation -> {
+            trainingSetRequested.countDown();
+            trainingSetLoaded.await();
+            return new TrainingSet();
+        });
+        ImageNetworkAccessor accessor = spy(new ImageNetworkAccessor(imageConverter,
+                new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(1)), mock(RecognitionOutputs.class), false));
+        ModelRegistry modelRegistry = new ModelRegistry(accessor, "", "false", "double", "false", "");
+        ConstellationRecognitionService backgroundService = new ConstellationRecognitionService(accessor, trainingSetGenerator, inferenceExecutor, modelRegistry, "", "2", "", "", "", "true");
+        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(backgroundService, requestBodyReader);
+        Upload upload = new Upload();
+        upload.setFile(multipartFile);
+
+        trainingSetRequested.await();
+        assertFalse(backgroundService.isReady());
+        assertEquals("not-ready", constellationRecognitionController.identify(upload, mock(Model.class)));
+
+        trainingSetLoaded.countDown();
+        while (!backgroundService.isReady()) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, backgroundService.getTrainingProgress().getIteration());
+        assertEquals(1, modelRegistry.getVersion());
+        doReturn(null).when(accessor).identify(any());
+        assertEquals("no-result", constellationRecognitionController.identify(upload, mock(Model.class)));
+    }
+
+    // A model published while training must make the web client ready without being trained itself,
+    // and must not be replaced by the trained network once training completes
+    @Test (timeout = 10 * 1000)
+    public void testModelPublishedDuringTraining() throws Exception {
+        SupervisedFeedForwardNetwork initialNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(1));
+        SupervisedFeedForwardNetwork publishedNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(2));
+        double[] publishedWeights = publishedNetwork.getConnectionLayers().get(1).getWeights().clone();
+        double[] initialWeights = initialNetwork.getConnectionLayers().get(1).getWeights().clone();
+        ImageNetworkAccessor accessor = new ImageNetworkAccessor(imageConverter, initialNetwork, mock(RecognitionOutputs.class), false);
+        ModelRegistry modelRegistry = new ModelRegistry(accessor, "", "false", "double", "false", "");
+
+        CountDownLatch trainingSetRequested = new CountDownLatch(1);
+        CountDownLatch trainingSetLoaded = new CountDownLatch(1);
+        when(trainingSetGenerator.getTrainingSet(any())).thenAnswer(invocation -> {
+            trainingSetRequested.countDown();
+            trainingSetLoaded.await();
+            return new TrainingSet(Collections.singletonList(new TrainingPair(new NeuronLayer(new double[16]), new NeuronLayer(new double[]{1, 0, 0}))));
+        });
+        ConstellationRecognitionService backgroundService = new ConstellationRecognitionService(accessor, trainingSetGenerator, inferenceExecutor, modelRegistry, "", "2", "", "", "", "true");
+
+        trainingSetRequested.await();
+        assertFalse(backgroundService.isReady());
+        assertEquals(1, modelRegistry.publish(publishedNetwork));
+        assertTrue(backgroundService.isReady());
+
+        trainingSetLoaded.countDown();
+        while (backgroundService.getTrainingProgress().getState() != TrainingProgress.State.READY) {
+            Thread.sleep(10);
+        }
+        assertTrue(backgroundService.isReady());
+        assertSame(publishedNetwork, accessor.getNeuralNetwork());
+        assertEquals(1, modelRegistry.getVersion());
+        assertArrayEquals(publishedWeights, publishedNetwork.getConnectionLayers().get(1).getWeights(), 0);
+        // Training used a copy, so the network created at start up is unchanged too
+        assertArrayEquals(initialWeights, initialNetwork.getConnectionLayers().get(1).getWeights(), 0);
+        modelRegistry.shutdown();
+    }
+
+    // A trained network saved to the watched model file must be published once, rather than published again when the file is checked
+    @Test (timeout = 10 * 1000)
+    public void testTrainedModelSavedWithoutReload() throws Exception {
+        SupervisedFeedForwardNetwork initialNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(1));
+        double[] initialWeights = initialNetwork.getConnectionLayers().get(1).getWeights().clone();
+        ImageNetworkAccessor accessor = new ImageNetworkAccessor(imageConverter, initialNetwork, mock(RecognitionOutputs.class), false);
+        Path modelDir = Files.createTempDirectory("model");
+        Path modelFile = modelDir.resolve("model.cnn");
+        try {
+            ModelRegistry modelRegistry = new ModelRegistry(accessor, modelFile.toString(), "false", "double", "false", "20");
+            when(trainingSetGenerator.getTrainingSet(any())).thenReturn(
+                    new TrainingSet(Collections.singletonList(new TrainingPair(new NeuronLayer(new double[16]), new NeuronLayer(new double[]{1, 0, 0})))));
+            ConstellationRecognitionService service = new ConstellationRecognitionService(accessor, trainingSetGenerator, inferenceExecutor, modelRegistry, "", "2", "", modelFile.toString(), "", "");
+
+            assertTrue(service.isReady());
+            assertTrue(Files.exists(modelFile));
+            NeuralNetwork trainedNetwork = accessor.getNeuralNetwork();
+            assertNotSame(initialNetwork, trainedNetwork);
+            assertArrayEquals(initialWeights, initialNetwork.getConnectionLayers().get(1).getWeights(), 0);
+            // Give the registry several chances to find the saved model file
+            Thread.sleep(200);
+            assertEquals(1, modelRegistry.getVersion());
+            assertSame(trainedNetwork, accessor.getNeuralNetwork());
+            modelRegistry.shutdown();
+        } finally {
+            Files.deleteIfExists(modelFile);
+            Files.deleteIfExists(modelDir);
+        }
+    }
+
+    // A trained network must not be published over a model published since training started
+    @Test
+    public void testTrainedModelNotPublishedOverNewerModel() throws Exception {
+        SupervisedFeedForwardNetwork initialNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(1));
+        SupervisedFeedForwardNetwork publishedNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5), 16, 4, 1, 3, 1, new Random(2));
+        ImageNetworkAccessor accessor = new ImageNetworkAccessor(imageConverter, initialNetwork, mock(RecognitionOutputs.class), false);
+        ModelRegistry modelRegistry = new ModelRegistry(accessor, "", "false", "double", "false", "");
+
+        long startVersion = modelRegistry.getVersion();
+        assertEquals(1, modelRegistry.publish(publishedNetwork));
+        assertEquals(-1, modelRegistry.publishTrained(initialNetwork, initialNetwork, startVersion));
+        assertSame(publishedNetwork, accessor.getNeuralNetwork());
+        assertEquals(2, modelRegistry.publishTrained(initialNetwork, initialNetwork, 1));
+        assertSame(initialNetwork, accessor.getNeuralNetwork());
+        modelRegistry.shutdown();
+    }
+
+    // A new model must be loaded and swapped in for later identifications,
+    // while a model that does not fit the application must be refused
+    @Test
+    public void testModelHotSwap() throws Exception {
+        SupervisedFeedForwardNetwork replacement = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.1), 16, 4, 1, 3, 1, new Random(2));
+        ImageNetworkAccessor accessor = new ImageNetworkAccessor(imageConverter,
+                new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.1), 16, 4, 1, 3, 1, new Random(1)), mock(RecognitionOutputs.class), false);
+        Path modelFile = Files.createTempFile("model", ".cnn");
+        try {
+            new ModelSerialiser().save(replacement, modelFile);
+            ModelRegistry modelRegistry = new ModelRegistry(accessor, modelFile.toString(), "false", "double", "false", "");
+
+            assertEquals(1L, (long) modelRegistry.reload().get());
+            double[] input = new double[16];
+            input[3] = 1;
+            assertArrayEquals(replacement.activate(input), accessor.getNeuralNetwork().activate(input), 0);
+
+            try {
+                modelRegistry.publish(new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.1), 16, 4, 1, 5, 1));
+                fail("A network with the wrong number of outputs must be refused");
+            } catch (IllegalArgumentException e) {
+                assertEquals(1L, modelRegistry.getVersion());
+            }
+            modelRegistry.shutdown();
+        } finally {
+            Files.deleteIfExists(modelFile);
+        }
+    }
+
+    // Float weights must be refused for a mapped model, as converting them would copy the model onto the heap
+    @Test(expected = IllegalArgumentException.class)
+    public void testFloatPrecisionRefusedForMappedModel() throws Exception {
+        new ModelRegistry(imageNetworkAccessor, "", "true", "float", "false", "");
+    }
+
+    // A burst of identifications beyond the shared threads and their queue must be rejected,
+    // and an identification that times out must be cancelled rather than left running
+    @Test (timeout = 10 * 1000)
+    public void testIdentificationSaturation() throws Exception {
+        InferenceExecutor saturatedExecutor = new InferenceExecutor("1", "1");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        try {
+            assertNull(saturatedExecutor.invoke(() -> {
+                try {
+                    return release.await(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    cancelled.countDown();
+                    throw e;
+                }
+            }, 100));
+            cancelled.await();
+
+            Thread blocked = new Thread(() -> {
+                try {
+                    saturatedExecutor.invoke(() -> release.await(1, TimeUnit.MINUTES), 0);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            blocked.start();
+            Thread queued = new Thread(() -> {
+                try {
+                    saturatedExecutor.invoke(() -> true, 0);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            while (saturatedExecutor.getStatistics().get("active") < 1) {
+                Thread.sleep(10);
+            }
+            queued.start();
+            while (saturatedExecutor.getStatistics().get("queued") < 1) {
+                Thread.sleep(10);
+            }
+
+            try {
+                saturatedExecutor.invoke(() -> true, 0);
+                fail("An identification must be rejected when every thread is busy and the queue is full");
+            } catch (IdentificationRejectedException e) {
+                assertEquals(1L, (long) saturatedExecutor.getStatistics().get("rejected"));
+            }
+            release.countDown();
+            blocked.join();
+            queued.join();
+            assertEquals(1L, (long) saturatedExecutor.getStatistics().get("timedOut"));
+            assertEquals(2L, (long) saturatedExecutor.getStatistics().get("completed"));
+        } finally {
+            release.countDown();
+            saturatedExecutor.shutdown();
+        }
+    }
+
+    // Uploads beyond the memory limits must evict the least recently used, spilling them to disk if configured,
+    // and must still be returned from disk
+    @Test
+    public void testUploadEviction() throws Exception {
+        Path spillDir = Files.createTempDirectory("uploads");
+        UploadService uploadService = new UploadService(new UploadValidator(), "10", "2", "", spillDir.toString(), "8");
+        try {
+            uploadService.add("1", new byte[]{1, 1, 1, 1});
+            uploadService.add("2", new byte[]{2, 2, 2, 2});
+            assertArrayEquals(new byte[]{1, 1, 1, 1}, uploadService.getBytes("1"));
+            uploadService.add("3", new byte[]{3, 3, 3, 3});
+
+            assertEquals(2L, (long) uploadService.getStatistics().get("entries"));
+            assertEquals(8L, (long) uploadService.getStatistics().get("bytes"));
+            assertEquals(1L, (long) uploadService.getStatistics().get("spilledEntries"));
+            assertArrayEquals(new byte[]{2, 2, 2, 2}, uploadService.getBytes("2"));
+
+            uploadService.add("4", new byte[16]);
+            assertNull(uploadService.getBytes("4"));
+            assertEquals(1L, (long) uploadService.getStatistics().get("refused"));
+        } finally {
+            uploadService.clear();
+            Files.delete(spillDir);
+        }
+    }
+
+    // A spilled upload must expire by when it was last used, even behind a spilled upload used more recently
+    @Test
+    public void testSpilledUploadExpiry() throws Exception {
+        Path spillDir = Files.createTempDirectory("uploads");
+        AtomicLong currentTimeMillis = new AtomicLong(1000000);
+        UploadService uploadService = new UploadService(new UploadValidator(), "10", "1", "1000", spillDir.toString(), "100", currentTimeMillis::get);
+        try {
+            uploadService.add("1", new byte[]{1});
+            uploadService.add("2", new byte[]{2});
+            currentTimeMillis.addAndGet(600);
+            assertArrayEquals(new byte[]{1}, uploadService.getBytes("1"));
+            uploadService.add("3", new byte[]{3});
+            assertEquals(2L, (long) uploadService.getStatistics().get("spilledEntries"));
+
+            // Upload 2 was last used 1100ms ago, beyond the time to live, and upload 1 only 500ms ago
+            currentTimeMillis.addAndGet(500);
+            assertNull(uploadService.getBytes("2"));
+            assertArrayEquals(new byte[]{1}, uploadService.getBytes("1"));
+        } finally {
+            uploadService.clear();
+            Files.delete(spillDir);
+        }
+    }
+
+    // A streamed image with the same bytes as one identified before must be answered by its content key
+    // without reaching the network, counting one miss for each key type the first time
+    @Test
+    public void testRepeatedStreamSkipsNetwork() throws IOException {
+        when(imageNetworkAccessor.getRecognitionOutputs().getClassification(any())).thenReturn(Thread.State.NEW);
+        ClassificationCache classificationCache = new ClassificationCache(10);
+        imageNetworkAccessor.setClassificationCache(classificationCache);
+
+        assertEquals(Thread.State.NEW, constellationRecognitionService.identify(new ByteArrayInputStream(multipartFile.getBytes())));
+        assertEquals(Thread.State.NEW, constellationRecognitionService.identify(new ByteArrayInputStream(multipartFile.getBytes())));
+
+        verify(imageNetworkAccessor, times(1)).identify(any(BufferedImage.class));
+        verify(neuralNetwork, times(1)).activate(any(double[].class));
+        Map<String, Long> statistics = constellationRecognitionService.getCacheStatistics();
+        assertEquals(1L, (long) statistics.get("contentHits"));
+        assertEquals(1L, (long) statistics.get("contentMisses"));
+        assertEquals(0L, (long) statistics.get("inputHits"));
+        assertEquals(1L, (long) statistics.get("inputMisses"));
+    }
+
+    // A streamed request body must be decoded off the threads identifying images, which only identify the decoded image,
+    // and a body that is too slow or too large must be refused without reaching them
+    @Test (timeout = 10 * 1000)
+    public void testStreamedBodyReadOffInferenceThreads() throws Exception {
+        RequestBodyReader limitedReader = new RequestBodyReader("1", "1", "1048576", "500");
+        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(constellationRecognitionService, limitedReader);
+        String[] identifyingThread = new String[1];
+        doAnswer(invocation -> {
+            identifyingThread[0] = Thread.currentThread().getName();
+            return Thread.State.NEW;
+        }).when(imageNetworkAccessor).identify(any());
+        String[] decodingThread = new String[1];
+        doAnswer(invocation -> {
+            decodingThread[0] = Thread.currentThread().getName();
+            return invocation.callRealMethod();
+        }).when(imageNetworkAccessor).getMinimumImageSize();
+
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/identify/stream");
+        request.setContent(multipartFile.getBytes());
+        assertEquals(new ResponseEntity<>("NEW", HttpStatus.OK), awaitResult(constellationRecognitionController.identifyStream(request)));
+        assertTrue(identifyingThread[0].startsWith("identification-"));
+        assertTrue(decodingThread[0].startsWith("request-body-"));
+
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServletRequest slowRequest = mock(HttpServletRequest.class);
+        when(slowRequest.getInputStream()).thenReturn(new DelegatingServletInputStream(new InputStream() {
+            @Override
+            public int read() throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return -1;
+            }
+        }));
+        assertEquals(HttpStatus.REQUEST_TIMEOUT, awaitResult(constellationRecognitionController.identifyStream(slowRequest)).getStatusCode());
+        release.countDown();
+
+        MockHttpServletRequest largeRequest = new MockHttpServletRequest("POST", "/identify/stream");
+        largeRequest.setContent(encodeBmp(new BufferedImage(700, 700, BufferedImage.TYPE_3BYTE_BGR)));
+        assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, awaitResult(constellationRecognitionController.identifyStream(largeRequest)).getStatusCode());
+        assertEquals(1L, (long) inferenceExecutor.getStatistics().get("submitted"));
+        limitedReader.shutdown();
+    }
+
+    // A streamed request body larger than a buffered body could be must be decoded as it is read,
+    // handing only the subsampled image to the threads identifying images
+    @Test (timeout = 30 * 1000)
+    public void testLargeStreamedBodyIsDecodedAsItIsRead() throws Exception {
+        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(constellationRecognitionService, requestBodyReader);
+        BufferedImage[] identifiedImg = new BufferedImage[1];
+        doAnswer(invocation -> {
+            identifiedImg[0] = (BufferedImage) invocation.getArguments()[0];
+            return Thread.State.NEW;
+        }).when(imageNetworkAccessor).identify(any());
+        doReturn(100).when(imageNetworkAccessor).getMinimumImageSize();
+
+        byte[] body = encodeBmp(new BufferedImage(2400, 2400, BufferedImage.TYPE_3BYTE_BGR));
+        assertTrue(body.length > 16 * 1024 * 1024);
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/identify/stream");
+        request.setContent(body);
+        assertEquals(new ResponseEntity<>("NEW", HttpStatus.OK), awaitResult(constellationRecognitionController.identifyStream(request)));
+        assertEquals(100, identifiedImg[0].getWidth());
+        assertEquals(100, identifiedImg[0].getHeight());
+    }
+
+    private static byte[] encodeBmp(BufferedImage img) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(img, "bmp", encoded);
+        return encoded.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T awaitResult(DeferredResult<T> deferredResult) throws InterruptedException {
+        while (!deferredResult.hasResult()) {
+            Thread.sleep(10);
+        }
+        return (T) deferredResult.getResult();
+    }
+
+    // A streamed image must be decoded with pixels skipped down to no less than the size images are resized to
+    @Test
+    public void testStreamedImageIsSubsampled() throws IOException {
+        BufferedImage largeImg = new BufferedImage(450, 420, BufferedImage.TYPE_INT_RGB);
+        largeImg.setRGB(8, 4, 0xffffff);
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(largeImg, "png", encoded);
+
+        BufferedImage img = new FileUtilities().streamToImg(new ByteArrayInputStream(encoded.toByteArray()), 100);
+        assertEquals(113, img.getWidth());
+        assertEquals(105, img.getHeight());
+        assertEquals(0xffffff, img.getRGB(2, 1) & 0xffffff);
+    }
+
+    // The asynchronous identification must return to the caller straight away
+    // and be completed from the threads identifying images
+    @Test (timeout = 10 * 1000)
+    public void testAsynchronousIdentification() throws Exception {
+        ConstellationRecognitionController constellationRecognitionController = new ConstellationRecognitionController(constellationRecognitionService, requestBodyReader);
+        Upload upload = new Upload();
+        upload.setFile(multipartFile);
+        CountDownLatch release = new CountDownLatch(1);
+        String[] identifyingThread = new String[1];
+        doAnswer(invocation -> {
+            identifyingThread[0] = Thread.currentThread().getName();
+            release.await();
+            return null;
+        }).when(imageNetworkAccessor).identify(any());
+
+        DeferredResult<ModelAndView> deferredResult = constellationRecognitionController.identifyAsync(upload);
+        assertFalse(deferredResult.hasResult());
+        release.countDown();
+        while (!deferredResult.hasResult()) {
+            Thread.sleep(10);
+        }
+        assertEquals("no-result", ((ModelAndView) deferredResult.getResult()).getViewName());
+        assertTrue(identifyingThread[0].startsWith("identification-"));
+    }
+
     private class MockConstellationService extends ConstellationRecognitionService {
-        public MockConstellationService(ImageNetworkAccessor imageNetworkAccessor, TrainingSetGenerator trainingSetGenerator, String trainingSetDir, String trainingIterations, String identificationTimeoutMs) {
-            super(imageNetworkAccessor, trainingSetGenerator, trainingSetDir, trainingIterations, identificationTimeoutMs);
+        public MockConstellationService(ImageNetworkAccessor imageNetworkAccessor, TrainingSetGenerator trainingSetGenerator, InferenceExecutor inferenceExecutor, ModelRegistry modelRegistry, String trainingSetDir, String trainingIterations, String identificationTimeoutMs, String modelFile, String modelQuantised, String trainInBackground) {
+            super(imageNetworkAccessor, trainingSetGenerator, inferenceExecutor, modelRegistry, trainingSetDir, trainingIterations, identificationTimeoutMs, modelFile, modelQuantised, trainInBackground);
         }
 
         @Override
@@ -0,0 +1,361 @@
+package com.liemily.web.domain;
+
+import com.liemily.imagerecognition.BWImageConverter;
+import com.liemily.imagerecognition.ImageNetworkAccessor;
+import com.liemily.imagerecognition.InputAugmenter;
+import com.liemily.imagerecognition.RecognitionOutputs;
+import com.liemily.neuralnetwork.learning.BackPropagationLearningRule;
+import com.liemily.neuralnetwork.networks.SupervisedFeedForwardNetwork;
+import com.liemily.neuralnetwork.training.TrainingPair;
+import com.liemily.neuralnetwork.training.TrainingSet;
+import com.liemily.web.service.FileUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for loading training sets from directories of images
+ * @author Emily Li
+ */
+public class TrainingSetGeneratorTest {
+    private static final int IMAGE_SIZE = 20;
+    private static final int INPUT_SIZE = 100;
+
+    private Path trainingDir;
+    private RecognitionOutputs recognitionOutputs;
+    private ImageNetworkAccessor imageNetworkAccessor;
+    private List<File> images;
+
+    @Before
+    public void setup() throws IOException {
+        trainingDir = Files.createTempDirectory("training");
+        recognitionOutputs = new RecognitionOutputs(Constellation.values());
+        SupervisedFeedForwardNetwork neuralNetwork = new SupervisedFeedForwardNetwork(new BackPropagationLearningRule(0.5),
+                INPUT_SIZE, 4, 1, recognitionOutputs.size(), 0.5, new Random(1));
+        imageNetworkAccessor = spy(new ImageNetworkAccessor(new BWImageConverter(), neuralNetwork, recognitionOutputs, true));
+
+        Random random = new Random(2);
+        images = new ArrayList<>();
+        for (Constellation constellation : new Constellation[]{Constellation.ARIES, Constellation.LEO}) {
+            Path classificationDir = Files.createDirectory(trainingDir.resolve(constellation.name().toLowerCase()));
+            for (int i = 0; i < 3; i++) {
+                File image = classificationDir.resolve("image" + i + ".png").toFile();
+                ImageIO.write(createImage(random), "png", image);
+                images.add(image);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(trainingDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // A shard must not be published if loading its images fails part way,
+    // so that a later start up does not reuse a partly written shard as if it were complete
+    @Test
+    public void testFailedLoadDoesNotPublishShard() throws IOException {
+        Path shardFile = trainingDir.resolve("training.shard");
+        doCallRealMethod().doThrow(new IllegalStateException("Conversion failed")).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+        TrainingSetGenerator trainingSetGenerator = createTrainingSetGenerator("1", "", "false", shardFile.toString());
+
+        try {
+            trainingSetGenerator.getTrainingSet(trainingDir.toString());
+            fail("Expected loading to fail");
+        } catch (RuntimeException e) {
+            // Expected, as the second image cannot be converted
+        }
+        assertFalse(Files.exists(shardFile));
+        assertFalse(Files.exists(trainingDir.resolve("training.shard.tmp")));
+    }
+
+    // Images that have not changed must be read from the cache rather than decoded again,
+    // and a cache that is up to date must not be rewritten
+    @Test
+    public void testCachedInputsReused() throws IOException {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        List<List<Double>> inputs = getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString()));
+        assertEquals(images.size(), inputs.size());
+        verify(imageNetworkAccessor, times(images.size())).getInput(any(BufferedImage.class), anyBoolean());
+        Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(0));
+
+        assertEquals(inputs, getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString())));
+        verify(imageNetworkAccessor, times(images.size())).getInput(any(BufferedImage.class), anyBoolean());
+        assertEquals(0, Files.getLastModifiedTime(cacheFile).toMillis());
+    }
+
+    // Cached inputs must also be used when the training set is not packed
+    @Test
+    public void testCachedInputsReusedUnpacked() throws Exception {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        List<List<Double>> inputs = getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "false", "").getTrainingSet(trainingDir.toString()));
+        // The cache is written in the background once every image has loaded
+        while (!Files.exists(cacheFile)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(inputs, getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "false", "").getTrainingSet(trainingDir.toString())));
+        verify(imageNetworkAccessor, times(images.size())).getInput(any(BufferedImage.class), anyBoolean());
+    }
+
+    // A file that is not a readable image must be cached as such,
+    // so that it does not cause the cache to be rewritten at every start up
+    @Test
+    public void testUnreadableFileCached() throws IOException {
+        Files.write(trainingDir.resolve("aries").resolve("notes.txt"), "Not an image".getBytes("UTF-8"));
+        Path cacheFile = trainingDir.resolve("training.cache");
+        assertEquals(images.size(), getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString())).size());
+        Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(0));
+
+        assertEquals(images.size(), getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString())).size());
+        assertEquals(0, Files.getLastModifiedTime(cacheFile).toMillis());
+    }
+
+    // An image whose modification time has changed must be decoded again
+    @Test
+    public void testCacheInvalidatedByModificationTime() throws IOException {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        Path image = images.get(0).toPath();
+        Files.setLastModifiedTime(image, FileTime.fromMillis(Files.getLastModifiedTime(image).toMillis() + 10000));
+        Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(0));
+
+        createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        verify(imageNetworkAccessor, times(images.size() + 1)).getInput(any(BufferedImage.class), anyBoolean());
+        assertNotEquals(0, Files.getLastModifiedTime(cacheFile).toMillis());
+
+        createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        verify(imageNetworkAccessor, times(images.size() + 1)).getInput(any(BufferedImage.class), anyBoolean());
+    }
+
+    // An image whose size has changed must be decoded again, even if its modification time is the same
+    @Test
+    public void testCacheInvalidatedBySize() throws IOException {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        Path image = images.get(0).toPath();
+        FileTime lastModified = Files.getLastModifiedTime(image);
+        long size = Files.size(image);
+        BufferedImage replacement = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(3);
+        while (Files.size(image) == size) {
+            for (int i = 0; i < 20; i++) {
+                replacement.setRGB(random.nextInt(IMAGE_SIZE), random.nextInt(IMAGE_SIZE), 0xffffff);
+            }
+            ImageIO.write(replacement, "png", image.toFile());
+        }
+        Files.setLastModifiedTime(image, lastModified);
+
+        createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        verify(imageNetworkAccessor, times(images.size() + 1)).getInput(any(BufferedImage.class), anyBoolean());
+    }
+
+    // An image changed while it is decoded must be decoded again next time,
+    // as its cached input is stored against the size and modification time it had before it was decoded
+    @Test
+    public void testImageChangedWhileDecodingNotCached() throws IOException {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        AtomicBoolean changed = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (changed.compareAndSet(false, true)) {
+                for (File image : images) {
+                    Files.setLastModifiedTime(image.toPath(), FileTime.fromMillis(image.lastModified() + 10000));
+                }
+            }
+            return invocation.callRealMethod();
+        }).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+        createTrainingSetGenerator("1", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+
+        createTrainingSetGenerator("1", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString());
+        verify(imageNetworkAccessor, atLeast(images.size() + 1)).getInput(any(BufferedImage.class), anyBoolean());
+    }
+
+    // A cache that cannot be read must be rebuilt from the images
+    @Test
+    public void testUnreadableCacheRebuilt() throws IOException {
+        Path cacheFile = trainingDir.resolve("training.cache");
+        Files.write(cacheFile, new byte[]{1, 2, 3});
+        List<List<Double>> inputs = getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString()));
+        verify(imageNetworkAccessor, times(images.size())).getInput(any(BufferedImage.class), anyBoolean());
+        assertEquals(images.size(), new TrainingSetCache(cacheFile, imageNetworkAccessor.getInputSettings() + ";true;true;subsampled").load().size());
+
+        assertEquals(inputs, getInputs(createTrainingSetGenerator("2", cacheFile.toString(), "true", "").getTrainingSet(trainingDir.toString())));
+        verify(imageNetworkAccessor, times(images.size())).getInput(any(BufferedImage.class), anyBoolean());
+    }
+
+    // An image must be converted to the same network input for training as when it is streamed for identification,
+    // including when it is large enough for identification to skip pixels as it decodes
+    @Test
+    public void testTrainingInputMatchesIdentificationInput() throws IOException {
+        for (File image : images) {
+            Files.delete(image.toPath());
+        }
+        BufferedImage largeImage = new BufferedImage(IMAGE_SIZE * 12, IMAGE_SIZE * 9, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(6);
+        for (int i = 0; i < 2000; i++) {
+            largeImage.setRGB(random.nextInt(largeImage.getWidth()), random.nextInt(largeImage.getHeight()), 0xffffff);
+        }
+        File image = trainingDir.resolve("aries").resolve("large.png").toFile();
+        ImageIO.write(largeImage, "png", image);
+
+        double[] identificationInput;
+        try (InputStream is = Files.newInputStream(image.toPath())) {
+            identificationInput = imageNetworkAccessor.getInput(new FileUtilities().streamToImg(is, imageNetworkAccessor.getMinimumImageSize())).getNodes();
+        }
+        List<List<Double>> trainingInputs = getInputs(createTrainingSetGenerator("1", "", "false", "").getTrainingSet(trainingDir.toString()));
+        assertEquals(Collections.singletonList(toList(identificationInput)), trainingInputs);
+    }
+
+    // 20. Images loaded in parallel must be returned in the order they were submitted,
+    //     however quickly each one loads
+    @Test
+    public void testParallelLoadingKeepsOrder() throws Exception {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(5));
+        List<List<Double>> expected = new ArrayList<>();
+        for (int i : order) {
+            try (InputStream is = Files.newInputStream(images.get(i).toPath())) {
+                expected.add(toList(imageNetworkAccessor.getInput(new FileUtilities().streamToImg(is, imageNetworkAccessor.getMinimumImageSize())).getNodes()));
+            }
+        }
+
+        // Images submitted first take the longest to load
+        AtomicInteger calls = new AtomicInteger();
+        doAnswer(invocation -> {
+            Thread.sleep(Math.max(0, images.size() - calls.getAndIncrement()) * 20);
+            return invocation.callRealMethod();
+        }).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+        assertEquals(expected, getInputs(createTrainingSetGenerator("4", "", "false", "").getTrainingSet(trainingDir.toString())));
+
+        calls.set(0);
+        assertEquals(expected, getInputs(createTrainingSetGenerator("4", "", "true", "").getTrainingSet(trainingDir.toString())));
+    }
+
+    // 21. An image that fails to load on a loader thread must fail loading for the caller
+    @Test
+    public void testLoaderExceptionReachesCaller() throws IOException {
+        doCallRealMethod().doThrow(new IllegalStateException("Conversion failed")).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+        TrainingSet trainingSet = createTrainingSetGenerator("2", "", "false", "").getTrainingSet(trainingDir.toString());
+        try {
+            getInputs(trainingSet);
+            fail("Expected iterating over the training set to fail");
+        } catch (RuntimeException e) {
+            assertEquals("Conversion failed", getRootCause(e).getMessage());
+        }
+
+        doCallRealMethod().doThrow(new IllegalStateException("Conversion failed")).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+        try {
+            createTrainingSetGenerator("2", "", "true", "").getTrainingSet(trainingDir.toString());
+            fail("Expected loading a packed training set to fail");
+        } catch (RuntimeException e) {
+            assertEquals("Conversion failed", getRootCause(e).getMessage());
+        }
+    }
+
+    // 22. The loader threads must finish once loading fails, rather than being left running
+    @Test (timeout = 10 * 1000)
+    public void testLoaderThreadsShutDownOnFailure() throws Exception {
+        AtomicBoolean failed = new AtomicBoolean();
+        doAnswer(invocation -> {
+            if (failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Conversion failed");
+            }
+            Thread.sleep(200);
+            return invocation.callRealMethod();
+        }).when(imageNetworkAccessor).getInput(any(BufferedImage.class), anyBoolean());
+
+        try {
+            createTrainingSetGenerator("3", "", "true", "").getTrainingSet(trainingDir.toString());
+            fail("Expected loading a packed training set to fail");
+        } catch (RuntimeException e) {
+            assertEquals("Conversion failed", getRootCause(e).getMessage());
+        }
+        while (isLoaderThreadAlive()) {
+            Thread.sleep(10);
+        }
+
+        failed.set(false);
+        TrainingSet trainingSet = createTrainingSetGenerator("3", "", "false", "").getTrainingSet(trainingDir.toString());
+        try {
+            getInputs(trainingSet);
+            fail("Expected iterating over the training set to fail");
+        } catch (RuntimeException e) {
+            assertEquals("Conversion failed", getRootCause(e).getMessage());
+        }
+        while (isLoaderThreadAlive()) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isLoaderThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("training-loader-") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Throwable getRootCause(Throwable throwable) {
+        while (throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable;
+    }
+
+    private static List<Double> toList(double[] nodes) {
+        List<Double> list = new ArrayList<>();
+        for (double node : nodes) {
+            list.add(node);
+        }
+        return list;
+    }
+
+    private static List<List<Double>> getInputs(TrainingSet trainingSet) {
+        List<List<Double>> inputs = new ArrayList<>();
+        for (TrainingPair trainingPair : trainingSet.getTrainingPairs()) {
+            inputs.add(toList(trainingPair.getInput().getNodes()));
+        }
+        return inputs;
+    }
+
+    private TrainingSetGenerator createTrainingSetGenerator(String loaderThreads, String cacheFile, String packed, String shardFile) {
+        return new TrainingSetGenerator(imageNetworkAccessor, recognitionOutputs, "true", "5", loaderThreads, cacheFile, packed, shardFile,
+                "16", new InputAugmenter(0, 0, 0, 0), "0");
+    }
+
+    private static BufferedImage createImage(Random random) {
+        BufferedImage img = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 10; i++) {
+            img.setRGB(random.nextInt(IMAGE_SIZE), random.nextInt(IMAGE_SIZE), 0xffffff);
+        }
+        return img;
+    }
+}